@@ -16,6 +16,7 @@ import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.camera.view.PreviewView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import com.example.cbdc.util.EventLog;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.zxing.BinaryBitmap;
 import com.google.zxing.MultiFormatReader;
@@ -125,9 +126,7 @@ public class CameraQRScanActivity extends AppCompatActivity {
                 Result result = reader.decode(binaryBitmap);
                 String qrData = result.getText();
                 
-                Log.d(TAG, "✓ QR Code detected!");
-                Log.d(TAG, "QR Data length: " + qrData.length());
-                Log.d(TAG, "QR Data (first 200 chars): " + qrData.substring(0, Math.min(200, qrData.length())));
+                EventLog.record(EventLog.Event.QR_DETECTED, qrData.length());
                 
                 runOnUiThread(() -> {
                     Intent resultIntent = new Intent();
@@ -2,17 +2,24 @@ package com.example.cbdc;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.util.Log;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import com.example.cbdc.ble.TransportMetrics;
 import com.example.cbdc.crypto.DeviceKeyManager;
+import com.example.cbdc.crypto.EphemeralKeyPool;
 import com.example.cbdc.token.TokenManager;
 import com.example.cbdc.util.BluetoothHelper;
+import com.example.cbdc.util.PaymentTrace;
 import com.google.android.material.card.MaterialCardView;
 
+import java.io.File;
+
 public class MainActivity extends AppCompatActivity {
+    private static final String TAG = "MainActivity";
     
     private TextView balanceText;
     private MaterialCardView payerModeCard;
@@ -25,6 +32,9 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         
+        // Pre-generate ephemeral session keys off the critical path
+        EphemeralKeyPool.warmUp();
+        
         // Initialize managers
         deviceKeyManager = new DeviceKeyManager(this);
         tokenManager = new TokenManager(this, deviceKeyManager);
@@ -51,10 +61,45 @@ public class MainActivity extends AppCompatActivity {
             startActivity(intent);
         });
         
+        // Debug screen: long-press the toolbar for transport and payment phase metrics
+        findViewById(R.id.toolbar).setOnLongClickListener(v -> {
+            showTransportMetrics();
+            return true;
+        });
+        
         // Check and request permissions on startup
         checkAndRequestPermissions();
     }
     
+    private void showTransportMetrics() {
+        TransportMetrics metrics = TransportMetrics.getInstance();
+        new AlertDialog.Builder(this)
+            .setTitle("Transport Metrics")
+            .setMessage(metrics.getReport() + "\nPayment phases:\n" + PaymentTrace.getReport())
+            .setPositiveButton("Export", (dialog, which) -> exportTransportMetrics(metrics))
+            .setNeutralButton("Reset", (dialog, which) -> {
+                metrics.reset();
+                PaymentTrace.reset();
+            })
+            .setNegativeButton("Close", null)
+            .show();
+    }
+    
+    private void exportTransportMetrics(TransportMetrics metrics) {
+        // App-specific external storage, so the dump can be pulled with adb without root
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        try {
+            File file = metrics.dump(dir);
+            Toast.makeText(this, "Metrics saved to " + file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        } catch (Exception e) {
+            Log.e(TAG, "Metrics export failed", e);
+            Toast.makeText(this, "Metrics export failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+    }
+    
     private void checkAndRequestPermissions() {
         if (!BluetoothHelper.hasAllPermissions(this)) {
             showPermissionDialog();
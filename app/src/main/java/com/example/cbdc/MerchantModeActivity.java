@@ -21,18 +21,24 @@ import android.content.ServiceConnection;
 import android.os.IBinder;
 
 import com.example.cbdc.ble.MerchantNearbyService;
+import com.example.cbdc.ble.MerchantUpdateStream;
 import com.example.cbdc.crypto.DeviceKeyManager;
+import com.example.cbdc.crypto.EphemeralKeyPool;
 import com.example.cbdc.token.TokenManager;
 import com.example.cbdc.util.BluetoothHelper;
+import com.example.cbdc.util.EventLog;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 
 public class MerchantModeActivity extends AppCompatActivity {
@@ -50,16 +56,28 @@ public class MerchantModeActivity extends AppCompatActivity {
     private MerchantNearbyService nearbyService;
     private boolean isServiceBound = false;
     private String posId;
+    private MerchantUpdateStream updateStream;
     
-    // Track received tokens for receipt
-    private List<String> receivedTokenIds = new ArrayList<>();
-    private double transactionAmount = 0;
+    // Wallet summary kept up to date from payment deltas (UI thread only)
+    private double balance = 0;
+    private final Map<Integer, Integer> denominationCount = new TreeMap<>(Collections.reverseOrder());
+    // Serials already in the summary; a delta queued before a rebuild must not count its tokens twice
+    private final Set<String> countedSerials = new HashSet<>();
+    
+    // Receipt per connected payer, keyed by endpointId (UI thread only)
+    private final Map<String, SessionReceipt> sessionReceipts = new HashMap<>();
+    
+    private static class SessionReceipt {
+        final Map<String, Double> tokens = new LinkedHashMap<>(); // tokenSerial -> amount
+        double amount = 0;
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_merchant_mode);
 
+        EphemeralKeyPool.warmUp();
         deviceKeyManager = new DeviceKeyManager(this);
         tokenManager = new TokenManager(this, deviceKeyManager);
         tokenManager.ensureInitialWallet();
@@ -74,8 +92,9 @@ public class MerchantModeActivity extends AppCompatActivity {
         progressBar = findViewById(R.id.merchantProgressBar);
 
         posIdText.setText("POS ID: " + posId);
-        updateBalance();
         statusText.setText("Ready to accept payments");
+        
+        updateStream = new MerchantUpdateStream(merchantListener);
 
         displayQRButton.setOnClickListener(v -> {
             if (!checkPermissionsAndBluetooth()) {
@@ -85,29 +104,37 @@ public class MerchantModeActivity extends AppCompatActivity {
         });
     }
     
+    /**
+     * Rebuild the wallet summary from storage; payments received while visible are applied as deltas.
+     * Tokens are stored before their delta is delivered, so a rebuild may already include them.
+     */
     private void updateBalance() {
-        double balance = tokenManager.getBalance();
         List<com.example.cbdc.token.Token> tokens = tokenManager.getAllTokens();
-        
-        // Group tokens by denomination
+        balance = 0;
+        denominationCount.clear();
+        countedSerials.clear();
+        for (com.example.cbdc.token.Token token : tokens) {
+            addToBalance(token.getSerial(), token.getAmount());
+        }
+        showBalance();
+    }
+    
+    private void addToBalance(String tokenSerial, double amount) {
+        if (!countedSerials.add(tokenSerial)) {
+            return;
+        }
+        int denom = (int) amount;
+        balance += amount;
+        denominationCount.put(denom, denominationCount.getOrDefault(denom, 0) + 1);
+    }
+    
+    private void showBalance() {
         StringBuilder tokenDetails = new StringBuilder();
         tokenDetails.append("Balance: Rs ").append(String.format("%.0f", balance)).append("\n\n");
         tokenDetails.append("Tokens:\n");
         
-        // Count tokens by denomination
-        Map<Integer, Integer> denominationCount = new HashMap<>();
-        for (com.example.cbdc.token.Token token : tokens) {
-            int denom = (int) token.getAmount();
-            denominationCount.put(denom, denominationCount.getOrDefault(denom, 0) + 1);
-        }
-        
-        // Sort and display
-        List<Integer> denoms = new ArrayList<>(denominationCount.keySet());
-        Collections.sort(denoms, Collections.reverseOrder());
-        
-        for (int denom : denoms) {
-            int count = denominationCount.get(denom);
-            tokenDetails.append("Rs ").append(denom).append(" × ").append(count).append("\n");
+        for (Map.Entry<Integer, Integer> entry : denominationCount.entrySet()) {
+            tokenDetails.append("Rs ").append(entry.getKey()).append(" × ").append(entry.getValue()).append("\n");
         }
         
         balanceText.setText(tokenDetails.toString());
@@ -171,61 +198,8 @@ public class MerchantModeActivity extends AppCompatActivity {
             // Initialize service
             nearbyService.initialize(posId, deviceKeyManager, tokenManager);
             
-            // Set callback
-            nearbyService.setCallback(new MerchantNearbyService.MerchantCallback() {
-                @Override
-                public void onPaymentReceived(String tokenSerial, double amount) {
-                    runOnUiThread(() -> {
-                        // Track received tokens
-                        receivedTokenIds.add(tokenSerial);
-                        transactionAmount += amount;
-                        
-                        String shortId = tokenSerial.length() >= 8 ? tokenSerial.substring(0, 8) : tokenSerial;
-                        Log.d(TAG, "← Received token: Rs " + (int)amount + " [ID: " + shortId + "...]");
-                        
-                        statusText.setText("Receiving payment... Rs " + (int)transactionAmount);
-                    });
-                }
-
-                @Override
-                public void onError(String error) {
-                    runOnUiThread(() -> {
-                        progressBar.setVisibility(android.view.View.GONE);
-                        statusText.setText("Error: " + error);
-                        Toast.makeText(MerchantModeActivity.this,
-                                "Error: " + error, Toast.LENGTH_LONG).show();
-                        Log.e(TAG, "Payment error: " + error);
-                    });
-                }
-
-                @Override
-                public void onClientConnected() {
-                    runOnUiThread(() -> {
-                        // Reset transaction tracking
-                        receivedTokenIds.clear();
-                        transactionAmount = 0;
-                        
-                        statusText.setText("✓ Payer connected! Waiting for payment...");
-                        progressBar.setVisibility(android.view.View.VISIBLE);
-                        Log.d(TAG, "Payer connected");
-                    });
-                }
-
-                @Override
-                public void onClientDisconnected() {
-                    runOnUiThread(() -> {
-                        progressBar.setVisibility(android.view.View.GONE);
-                        
-                        // Show receipt if payment was received
-                        if (receivedTokenIds.size() > 0) {
-                            showTransactionReceipt();
-                            updateBalance();
-                        } else {
-                            statusText.setText("Payer disconnected. Ready for next payment.");
-                        }
-                    });
-                }
-            });
+            // Set callback; updates arrive coalesced, at most once per frame
+            nearbyService.setCallback(updateStream);
             
             // Start advertising
             nearbyService.startAdvertising();
@@ -258,7 +232,73 @@ public class MerchantModeActivity extends AppCompatActivity {
         }
     };
     
-    private void showTransactionReceipt() {
+    private final MerchantUpdateStream.Listener merchantListener = new MerchantUpdateStream.Listener() {
+        @Override
+        public void onPaymentReceived(String endpointId, MerchantUpdateStream.PaymentDelta delta) {
+            // Track received tokens for this payer only
+            SessionReceipt receipt = sessionReceipts.get(endpointId);
+            if (receipt == null) {
+                receipt = new SessionReceipt();
+                sessionReceipts.put(endpointId, receipt);
+            }
+            receipt.tokens.putAll(delta.tokens);
+            receipt.amount += delta.amount;
+            
+            // Tokens are already stored, so the wallet summary can move by the delta
+            for (Map.Entry<String, Double> token : delta.tokens.entrySet()) {
+                addToBalance(token.getKey(), token.getValue());
+            }
+            showBalance();
+            
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "← Received " + delta.count + " tokens from " + endpointId + ": Rs " + (int) delta.amount);
+            }
+            
+            statusText.setText("Receiving payment... Rs " + (int)receipt.amount + activePayersSuffix());
+        }
+
+        @Override
+        public void onError(String endpointId, String error) {
+            progressBar.setVisibility(android.view.View.GONE);
+            statusText.setText("Error: " + error);
+            Toast.makeText(MerchantModeActivity.this,
+                    "Error: " + error, Toast.LENGTH_LONG).show();
+            Log.e(TAG, "Payment error" + (endpointId != null ? " [" + endpointId + "]" : "") + ": " + error);
+        }
+
+        @Override
+        public void onClientConnected(String endpointId) {
+            // Fresh receipt for this payer; other payers' receipts are untouched
+            sessionReceipts.put(endpointId, new SessionReceipt());
+            
+            statusText.setText("✓ Payer connected! Waiting for payment..." + activePayersSuffix());
+            progressBar.setVisibility(android.view.View.VISIBLE);
+            Log.d(TAG, "Payer connected: " + endpointId);
+        }
+
+        @Override
+        public void onClientDisconnected(String endpointId) {
+            SessionReceipt receipt = sessionReceipts.remove(endpointId);
+            if (sessionReceipts.isEmpty()) {
+                progressBar.setVisibility(android.view.View.GONE);
+            }
+            
+            // Show receipt if payment was received
+            if (receipt != null && !receipt.tokens.isEmpty()) {
+                showTransactionReceipt(receipt);
+            } else {
+                statusText.setText("Payer disconnected. Ready for next payment." + activePayersSuffix());
+            }
+        }
+    };
+    
+    private String activePayersSuffix() {
+        int active = sessionReceipts.size();
+        return active > 1 ? " (" + active + " payers connected)" : "";
+    }
+    
+    private void showTransactionReceipt(SessionReceipt sessionReceipt) {
+        double transactionAmount = sessionReceipt.amount;
         StringBuilder receipt = new StringBuilder();
         receipt.append("========== PAYMENT RECEIPT ==========\n\n");
         receipt.append("Transaction Date: ").append(new SimpleDateFormat("dd/MM/yyyy HH:mm:ss", Locale.getDefault()).format(new Date())).append("\n");
@@ -266,12 +306,10 @@ public class MerchantModeActivity extends AppCompatActivity {
         receipt.append("Amount Received: Rs ").append((int)transactionAmount).append("\n\n");
         receipt.append("Tokens Received:\n");
         
-        for (String tokenSerial : receivedTokenIds) {
+        for (Map.Entry<String, Double> entry : sessionReceipt.tokens.entrySet()) {
+            String tokenSerial = entry.getKey();
             String shortId = tokenSerial.length() >= 8 ? tokenSerial.substring(0, 8) : tokenSerial;
-            com.example.cbdc.token.Token token = tokenManager.getTokenBySerial(tokenSerial);
-            if (token != null) {
-                receipt.append("• Rs ").append((int)token.getAmount()).append(" [ID: ").append(shortId).append("]\n");
-            }
+            receipt.append("• Rs ").append(entry.getValue().intValue()).append(" [ID: ").append(shortId).append("]\n");
         }
         
         receipt.append("\n✓ Payment successful!");
@@ -341,6 +379,7 @@ public class MerchantModeActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        updateStream.close();
         if (isServiceBound && nearbyService != null) {
             nearbyService.stopAdvertising();
             unbindService(serviceConnection);
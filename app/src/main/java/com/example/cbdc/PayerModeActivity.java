@@ -16,18 +16,26 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import com.example.cbdc.ble.MerchantEndpointCache;
+import com.example.cbdc.ble.MerchantRendezvous;
+import com.example.cbdc.ble.PayerConnectionPool;
 import com.example.cbdc.ble.PayerNearbyClient;
 import com.example.cbdc.crypto.DeviceKeyManager;
+import com.example.cbdc.crypto.EphemeralKeyPool;
 import com.example.cbdc.qr.QrParser;
 import com.example.cbdc.token.Token;
 import com.example.cbdc.token.TokenManager;
 import com.example.cbdc.util.BluetoothHelper;
+import com.example.cbdc.util.EventLog;
+import com.example.cbdc.util.PaymentTrace;
 import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
 import org.json.JSONObject;
 
+import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PayerModeActivity extends AppCompatActivity {
     private static final String TAG = "PayerModeActivity";
@@ -41,19 +49,32 @@ public class PayerModeActivity extends AppCompatActivity {
     private DeviceKeyManager deviceKeyManager;
     private TokenManager tokenManager;
     private PayerNearbyClient nearbyClient;
+    private final MerchantEndpointCache endpointCache = new MerchantEndpointCache();
+    private MerchantRendezvous rendezvous;
+    private final ExecutorService qrVerifier = Executors.newSingleThreadExecutor();
     private Handler handler;
     private String transactionId;
     private String posId;
+    private PublicKey merchantPublicKey;
     private boolean isConnected = false;
-    private boolean isConnectionEstablishing = false;
+    private boolean paymentAttempted = false;
+    private boolean paymentAccepted = false;
+
+    // Phases timed here; the protocol phases are traced inside the client
+    private PaymentTrace.Span scanSpan;
+    private PaymentTrace.Span paymentSpan;
+
+    // Keeps the session open after a payment so the next one to this POS skips the handshake
+    private final PayerConnectionPool connectionPool = PayerConnectionPool.getInstance();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_payer_mode);
 
-        deviceKeyManager = new DeviceKeyManager(this);
-        tokenManager = new TokenManager(this, deviceKeyManager);
+        EphemeralKeyPool.warmUp();
+        deviceKeyManager = new DeviceKeyManager(getApplicationContext());
+        tokenManager = new TokenManager(getApplicationContext(), deviceKeyManager);
         handler = new Handler();
 
         balanceText = findViewById(R.id.payerBalanceText);
@@ -63,6 +84,12 @@ public class PayerModeActivity extends AppCompatActivity {
 
         updateBalance();
 
+        // Discover merchants while the payer frames the QR, so the scan can connect at once
+        rendezvous = new MerchantRendezvous(endpointCache, endpoint ->
+                nearbyClient.connectToEndpoint(endpoint.getEndpointId(), endpoint.getEndpointName()));
+        initializeNearbyClient();
+        startBackgroundDiscovery();
+
         scanQRButton.setOnClickListener(v -> {
             if (!checkPermissionsAndBluetooth()) {
                 return;
@@ -99,12 +126,30 @@ public class PayerModeActivity extends AppCompatActivity {
         return true;
     }
 
+    private void startBackgroundDiscovery() {
+        if (BluetoothHelper.hasAllPermissions(this) && BluetoothHelper.isBluetoothEnabled(this)) {
+            nearbyClient.startBackgroundDiscovery();
+        }
+    }
+
     private void updateBalance() {
         double balance = tokenManager.getBalance();
         balanceText.setText(getString(R.string.balance, String.format("%.2f", balance)));
     }
 
     private void startQRScan() {
+        if (paymentAttempted) {
+            // Fresh client (and ephemeral key) per payment; the endpoint cache carries over
+            nearbyClient.disconnect();
+            initializeNearbyClient();
+            paymentAttempted = false;
+        }
+        rendezvous.reset();
+
+        // Discovery runs at full power for as long as the camera is open
+        nearbyClient.startDiscovery();
+
+        scanSpan = PaymentTrace.begin(PaymentTrace.Phase.SCAN);
         Intent intent = new Intent(this, CameraQRScanActivity.class);
         startActivityForResult(intent, CAMERA_REQUEST_CODE);
     }
@@ -112,6 +157,14 @@ public class PayerModeActivity extends AppCompatActivity {
     @Override
     protected void onActivityResult(int requestCode, int resultCode, android.content.Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == CAMERA_REQUEST_CODE && scanSpan != null) {
+            if (resultCode == RESULT_OK) {
+                scanSpan.end();
+            } else {
+                scanSpan.abandon();
+            }
+            scanSpan = null;
+        }
         if (requestCode == CAMERA_REQUEST_CODE && resultCode == RESULT_OK) {
             String qrDataString = data.getStringExtra("qr_data");
             if (qrDataString != null) {
@@ -122,6 +175,7 @@ public class PayerModeActivity extends AppCompatActivity {
         } else if (requestCode == BluetoothHelper.REQUEST_ENABLE_BT) {
             if (resultCode == RESULT_OK) {
                 Toast.makeText(this, "Bluetooth enabled", Toast.LENGTH_SHORT).show();
+                startBackgroundDiscovery();
             } else {
                 Toast.makeText(this, "Bluetooth is required for payments", Toast.LENGTH_LONG).show();
             }
@@ -129,135 +183,196 @@ public class PayerModeActivity extends AppCompatActivity {
     }
 
     private void processQRCode(String qrDataString) {
-        Log.d(TAG, "=== Processing QR Code ===");
-        Log.d(TAG, "QR Data Length: " + (qrDataString != null ? qrDataString.length() : "null"));
-        Log.d(TAG, "QR Data (first 200 chars): " + (qrDataString != null ? qrDataString.substring(0, Math.min(200, qrDataString.length())) : "null"));
-        
+        statusText.setText("QR Scanned! Verifying merchant...");
+        progressBar.setVisibility(android.view.View.VISIBLE);
+
+        // Signature checks run here while discovery keeps going on the main thread
+        qrVerifier.execute(() -> {
+            JSONObject qrData;
+            try (PaymentTrace.Span ignored = PaymentTrace.section(PaymentTrace.Phase.QR_VERIFY)) {
+                qrData = verifyQRCode(qrDataString);
+            }
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (qrData != null) {
+                    onQRVerified(qrData);
+                }
+            });
+        });
+    }
+
+    /**
+     * Parse and verify scanned QR data off the UI thread; returns null after reporting an error
+     */
+    private JSONObject verifyQRCode(String qrDataString) {
         try {
             if (qrDataString == null || qrDataString.isEmpty()) {
-                showError("QR scan returned empty data.");
-                return;
+                showErrorOnUiThread("QR scan returned empty data.");
+                return null;
             }
             
             JSONObject qrData = QrParser.parseQRString(qrDataString);
             if (qrData == null) {
-                showError("Invalid QR code format.\n\nExpected JSON starting with '{'");
+                showErrorOnUiThread("Invalid QR code format.\n\nExpected JSON starting with '{'");
                 Log.e(TAG, "QR Parser returned null.");
-                return;
+                return null;
             }
             
-            Log.d(TAG, "✓ QR parsed successfully");
-            Log.d(TAG, "QR Data keys: " + qrData.keys().toString());
-
             if (!QrParser.verifyQRSignature(qrData)) {
-                showError("QR signature verification failed. The QR code may be tampered with.");
-                return;
+                showErrorOnUiThread("QR signature verification failed. The QR code may be tampered with.");
+                return null;
             }
 
-            posId = QrParser.extractPosId(qrData);
-            if (posId == null) {
-                showError("Failed to extract POS ID from QR code.");
-                return;
+            if (QrParser.extractPosId(qrData) == null) {
+                showErrorOnUiThread("Failed to extract POS ID from QR code.");
+                return null;
             }
-            
+            EventLog.record(EventLog.Event.QR_VERIFIED, qrDataString.length());
+            return qrData;
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing QR code", e);
+            showErrorOnUiThread("Error processing QR code: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void onQRVerified(JSONObject qrData) {
+        posId = QrParser.extractPosId(qrData);
+        merchantPublicKey = QrParser.extractMerchantPublicKey(qrData);
+        if (EventLog.VERBOSE) {
             Log.d(TAG, "✓ QR verified. POS ID: " + posId);
+        }
 
-            statusText.setText("QR Scanned! Discovering merchant...");
-            progressBar.setVisibility(android.view.View.VISIBLE);
-            isConnectionEstablishing = true;
+        PayerNearbyClient pooled = connectionPool.acquire(posId, merchantPublicKey, payerCallback);
+        if (pooled != null) {
+            // Still connected and keyed from the last payment: straight to the amount
+            nearbyClient.disconnect();
+            nearbyClient = pooled;
+            paymentAttempted = true;
+            payerCallback.onConnected();
+            return;
+        }
 
-            initializeNearbyClient();
-            nearbyClient.startDiscovery();
-
-            handler.postDelayed(() -> {
-                if (isConnectionEstablishing && !isConnected) {
-                    showError("Connection timeout. Please ensure merchant device is nearby and try again.");
-                    if (nearbyClient != null) {
-                        nearbyClient.disconnect();
-                    }
-                    isConnectionEstablishing = false;
-                }
-            }, 15000); // 15 second timeout
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error processing QR code", e);
-            showError("Error processing QR code: " + e.getMessage());
+        statusText.setText("QR Scanned! Connecting to merchant...");
+
+        // Only use protocol features the merchant advertised
+        nearbyClient.setMerchantCapabilities(QrParser.extractCapabilities(qrData));
+
+        // Unacknowledged earlier payments to this POS are resent once the session is up;
+        // receipts must be signed under the QR's merchant key
+        nearbyClient.setMerchant(posId, merchantPublicKey);
+
+        // Repeat payment to this POS: resume instead of a fresh ECDH
+        nearbyClient.enableResumption(posId);
+
+        // Signed merchant ephemeral key lets us skip the key exchange round trip
+        PublicKey merchantEphemeralKey = QrParser.extractEphemeralPublicKey(qrData);
+        if (merchantEphemeralKey != null) {
+            nearbyClient.enableZeroRtt(merchantEphemeralKey);
         }
+        paymentAttempted = true;
+
+        // Each protocol step now has its own deadline in the client, starting with discovery
+        nearbyClient.awaitMerchant();
+
+        // Connects at once if discovery already found the merchant, otherwise when it does
+        rendezvous.onTargetVerified(posId, merchantPublicKey);
     }
 
     private void initializeNearbyClient() {
-        nearbyClient = new PayerNearbyClient(this, deviceKeyManager, tokenManager,
-            new PayerNearbyClient.PayerCallback() {
-
-                @Override
-                public void onEndpointDiscovered(String endpointId, String endpointName, String serviceId) {
-                    Log.d(TAG, "Endpoint discovered: " + endpointName + " [" + endpointId + "]");
-                    if (posId != null && posId.equals(endpointName)) {
-                        Log.d(TAG, "Found target merchant! Connecting...");
-                        nearbyClient.connectToEndpoint(endpointId, endpointName);
-                    }
-                }
+        // Application context: the client may outlive this screen in the connection pool
+        nearbyClient = new PayerNearbyClient(getApplicationContext(), deviceKeyManager, tokenManager,
+                payerCallback);
+        nearbyClient.setEndpointCache(endpointCache);
+    }
 
-                @Override
-                public void onEndpointLost(String endpointId) {
-                    Log.d(TAG, "Endpoint lost: " + endpointId);
-                }
+    private final PayerNearbyClient.PayerCallback payerCallback = new PayerNearbyClient.PayerCallback() {
+        @Override
+        public void onEndpointDiscovered(String endpointId, String endpointName, String serviceId) {
+            // The client has already cached it; connects only if it matches a verified QR
+            rendezvous.onEndpointFound();
+        }
 
-                @Override
-                public void onPaymentSent() {
-                    runOnUiThread(() -> {
-                        statusText.setText("Payment sent, waiting for confirmation...");
-                    });
-                }
+        @Override
+        public void onEndpointLost(String endpointId) {
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "Endpoint lost: " + endpointId);
+            }
+        }
+
+        @Override
+        public void onPaymentSent() {
+            runOnUiThread(() -> {
+                statusText.setText("Payment sent, waiting for confirmation...");
+            });
+        }
 
-                @Override
-                public void onPaymentAccepted(JSONObject acceptReceipt) {
-                    runOnUiThread(() -> {
-                        progressBar.setVisibility(android.view.View.GONE);
-                        statusText.setText("✓ Payment accepted!");
+        @Override
+        public void onTransferProgress(long bytesSent, long totalBytes) {
+            runOnUiThread(() -> {
+                statusText.setText("Sending payment... " + (100 * bytesSent / totalBytes) + "%");
+            });
+        }
 
-                        Toast.makeText(PayerModeActivity.this, "Payment successful!", Toast.LENGTH_SHORT).show();
+        @Override
+        public void onPaymentAccepted(JSONObject acceptReceipt) {
+            runOnUiThread(() -> {
+                progressBar.setVisibility(android.view.View.GONE);
+                statusText.setText("✓ Payment accepted!");
 
-                        updateBalance();
-                        handler.postDelayed(() -> finish(), 2000);
-                    });
-                }
+                Toast.makeText(PayerModeActivity.this, "Payment successful!", Toast.LENGTH_SHORT).show();
 
-                @Override
-                public void onError(String error) {
-                    runOnUiThread(() -> {
-                        isConnectionEstablishing = false;
-                        isConnected = false;
-                        progressBar.setVisibility(android.view.View.GONE);
-                        showError("Payment error: " + error);
-                        Log.e(TAG, "Payment error: " + error);
-                    });
+                paymentAccepted = true;
+                if (paymentSpan != null) {
+                    paymentSpan.end();
+                    paymentSpan = null;
                 }
+                if (EventLog.VERBOSE) {
+                    Log.d(TAG, "Payment phases:\n" + PaymentTrace.getReport());
+                }
+                updateBalance();
+                handler.postDelayed(() -> finish(), 2000);
+            });
+        }
 
-                @Override
-                public void onConnected() {
-                    runOnUiThread(() -> {
-                        isConnected = true;
-                        isConnectionEstablishing = false;
-                        statusText.setText("✓ Connection established! Enter amount to send:");
-                        progressBar.setVisibility(android.view.View.GONE);
-
-                        // Show amount dialog immediately after connection
-                        handler.postDelayed(() -> showAmountDialog(), 500);
-                    });
+        @Override
+        public void onError(String error) {
+            runOnUiThread(() -> {
+                isConnected = false;
+                if (paymentSpan != null) {
+                    paymentSpan.abandon();
+                    paymentSpan = null;
                 }
+                progressBar.setVisibility(android.view.View.GONE);
+                showError("Payment error: " + error);
+                Log.e(TAG, "Payment error: " + error);
+            });
+        }
 
-                @Override
-                public void onDisconnected() {
-                    runOnUiThread(() -> {
-                        isConnected = false;
-                        if (!isFinishing()) {
-                            statusText.setText("Disconnected from merchant");
-                        }
-                    });
+        @Override
+        public void onConnected() {
+            runOnUiThread(() -> {
+                isConnected = true;
+                statusText.setText("✓ Connection established! Enter amount to send:");
+                progressBar.setVisibility(android.view.View.GONE);
+
+                // Show amount dialog immediately after connection
+                handler.postDelayed(() -> showAmountDialog(), 500);
+            });
+        }
+
+        @Override
+        public void onDisconnected() {
+            runOnUiThread(() -> {
+                isConnected = false;
+                if (!isFinishing()) {
+                    statusText.setText("Disconnected from merchant");
                 }
             });
-    }
+        }
+    };
 
     private void showAmountDialog() {
         if (!isConnected) {
@@ -288,11 +403,6 @@ public class PayerModeActivity extends AppCompatActivity {
                     return;
                 }
 
-                String tokenInfo = "Sending: " + tokensToSend.stream()
-                    .map(t -> "Rs " + (int)t.getAmount())
-                    .collect(Collectors.joining(", "));
-                Log.d(TAG, tokenInfo);
-
                 statusText.setText("Sending payment of Rs " + (int)amount + "...");
                 progressBar.setVisibility(android.view.View.VISIBLE);
                 sendPayment(tokensToSend);
@@ -320,14 +430,21 @@ public class PayerModeActivity extends AppCompatActivity {
             return;
         }
 
-        for (Token token : tokens) {
-            nearbyClient.sendTokenTransfer(token, posId);
+        paymentSpan = PaymentTrace.begin(PaymentTrace.Phase.PAYMENT);
+        if (!nearbyClient.sendTokenBatch(tokens, posId)) {
+            paymentSpan.abandon();
+            paymentSpan = null;
+            return;
         }
 
         for (Token token : tokens) {
             tokenManager.deleteToken(token.getSerial());
-            Log.d(TAG, "Deleted token from wallet: " + token.getSerial() + " (Rs " + token.getAmount() + ")");
         }
+        EventLog.record(EventLog.Event.TOKENS_DELETED, tokens.size());
+    }
+
+    private void showErrorOnUiThread(String error) {
+        runOnUiThread(() -> showError(error));
     }
 
     private void showError(String error) {
@@ -343,6 +460,7 @@ public class PayerModeActivity extends AppCompatActivity {
         if (requestCode == BluetoothHelper.REQUEST_BT_PERMISSIONS) {
             if (BluetoothHelper.hasAllPermissions(this)) {
                 Toast.makeText(this, "Permissions granted. You can now scan QR codes.", Toast.LENGTH_SHORT).show();
+                startBackgroundDiscovery();
             } else {
                 Toast.makeText(this, "Some permissions were denied. Please grant all permissions in app settings.", Toast.LENGTH_LONG).show();
             }
@@ -352,8 +470,13 @@ public class PayerModeActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        qrVerifier.shutdownNow();
         if (nearbyClient != null) {
-            nearbyClient.disconnect();
+            if (paymentAccepted && posId != null) {
+                connectionPool.release(posId, merchantPublicKey, nearbyClient);
+            } else {
+                nearbyClient.disconnect();
+            }
         }
     }
 }
@@ -8,6 +8,7 @@ import android.widget.TextView;
 import androidx.appcompat.app.AppCompatActivity;
 import com.example.cbdc.crypto.CryptoUtil;
 import com.example.cbdc.crypto.DeviceKeyManager;
+import com.example.cbdc.crypto.EphemeralKeyPool;
 import com.example.cbdc.qr.QrGenerator;
 import com.example.cbdc.util.Base64Util;
 
@@ -41,20 +42,20 @@ public class QRDisplayActivity extends AppCompatActivity {
     
     private void generateAndDisplayQR() {
         try {
-            KeyPair deviceKey = deviceKeyManager.getOrCreateDeviceKey();
+            DeviceKeyManager.SessionSigningKey signingKey = deviceKeyManager.getSessionSigningKey();
             
             // Get ephemeral public key from BLE server (passed via intent)
             String ephemeralKeyBase64 = getIntent().getStringExtra("ephemeral_public_key");
-            org.json.JSONObject qrData;
+            PublicKey ephemeralPublicKey;
             
             if (ephemeralKeyBase64 != null) {
-                PublicKey serverEphemeralPublicKey = CryptoUtil.decodePublicKey(Base64Util.decode(ephemeralKeyBase64));
-                qrData = QrGenerator.generateMerchantQRWithPublicKey(
-                    posId, deviceKey, serverEphemeralPublicKey);
+                ephemeralPublicKey = CryptoUtil.decodePublicKey(Base64Util.decode(ephemeralKeyBase64));
             } else {
-                KeyPair ephemeralKey = CryptoUtil.generateX25519KeyPair();
-                qrData = QrGenerator.generateMerchantQR(posId, deviceKey, ephemeralKey);
+                KeyPair ephemeralKey = EphemeralKeyPool.take();
+                ephemeralPublicKey = ephemeralKey.getPublic();
             }
+            org.json.JSONObject qrData = QrGenerator.generateMerchantQRWithSigningKey(
+                posId, signingKey, ephemeralPublicKey);
             
             Log.d("QRDisplayActivity", "Generated QR Data: " + qrData.toString());
             Log.d("QRDisplayActivity", "QR Data length: " + qrData.toString().length());
@@ -0,0 +1,169 @@
+package com.example.cbdc.ble;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merchant-side load shedding.
+ * Caps concurrent payer sessions, rate-limits payloads per endpoint, and rate-limits
+ * handshakes globally so ECDH work cannot be driven faster than the CPU can absorb.
+ * Every check is a few arithmetic operations and runs before any public-key work.
+ */
+public class AdmissionController {
+    private static final String TAG = "AdmissionController";
+
+    public static final int DEFAULT_MAX_SESSIONS = 8;
+    public static final double DEFAULT_PAYLOADS_PER_SECOND = 4;
+    public static final int DEFAULT_PAYLOAD_BURST = 8;
+    public static final double DEFAULT_HANDSHAKES_PER_SECOND = 10;
+    public static final int DEFAULT_HANDSHAKE_BURST = 10;
+
+    private final int maxSessions;
+    private final double payloadsPerSecond;
+    private final int payloadBurst;
+    private final TokenBucket handshakeBucket;
+
+    private final Map<String, TokenBucket> admitted = new ConcurrentHashMap<>(); // endpointId -> payload bucket
+
+    // Counters
+    private final AtomicLong sessionsAdmitted = new AtomicLong();
+    private final AtomicLong sessionsRejected = new AtomicLong();
+    private final AtomicLong payloadsQueued = new AtomicLong();
+    private final AtomicLong payloadsRateLimited = new AtomicLong();
+    private final AtomicLong payloadsQueueFull = new AtomicLong();
+    private final AtomicLong handshakesShed = new AtomicLong();
+
+    public AdmissionController() {
+        this(DEFAULT_MAX_SESSIONS, DEFAULT_PAYLOADS_PER_SECOND, DEFAULT_PAYLOAD_BURST,
+                DEFAULT_HANDSHAKES_PER_SECOND, DEFAULT_HANDSHAKE_BURST);
+    }
+
+    public AdmissionController(int maxSessions, double payloadsPerSecond, int payloadBurst,
+                               double handshakesPerSecond, int handshakeBurst) {
+        this.maxSessions = maxSessions;
+        this.payloadsPerSecond = payloadsPerSecond;
+        this.payloadBurst = payloadBurst;
+        this.handshakeBucket = new TokenBucket(handshakesPerSecond, handshakeBurst);
+    }
+
+    /**
+     * Admit a new connection unless the session limit is reached
+     */
+    public synchronized boolean tryAdmit(String endpointId) {
+        if (admitted.containsKey(endpointId)) {
+            return true;
+        }
+        if (admitted.size() >= maxSessions) {
+            sessionsRejected.incrementAndGet();
+            Log.w(TAG, "✗ Rejecting " + endpointId + ": " + admitted.size() + "/" + maxSessions + " sessions active");
+            return false;
+        }
+        admitted.put(endpointId, new TokenBucket(payloadsPerSecond, payloadBurst));
+        sessionsAdmitted.incrementAndGet();
+        return true;
+    }
+
+    public synchronized void release(String endpointId) {
+        admitted.remove(endpointId);
+    }
+
+    /**
+     * Check the endpoint's payload rate; payloads from unadmitted endpoints are refused
+     */
+    public boolean allowPayload(String endpointId) {
+        TokenBucket bucket = admitted.get(endpointId);
+        if (bucket == null || !bucket.tryTake()) {
+            payloadsRateLimited.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the global handshake rate before doing ECDH or ticket decryption
+     */
+    public boolean allowHandshake() {
+        if (!handshakeBucket.tryTake()) {
+            handshakesShed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void recordQueued() {
+        payloadsQueued.incrementAndGet();
+    }
+
+    public void recordQueueFull() {
+        payloadsQueueFull.incrementAndGet();
+    }
+
+    public int getActiveSessions() {
+        return admitted.size();
+    }
+
+    public long getSessionsAdmitted() {
+        return sessionsAdmitted.get();
+    }
+
+    public long getSessionsRejected() {
+        return sessionsRejected.get();
+    }
+
+    public long getPayloadsQueued() {
+        return payloadsQueued.get();
+    }
+
+    public long getPayloadsRateLimited() {
+        return payloadsRateLimited.get();
+    }
+
+    public long getPayloadsQueueFull() {
+        return payloadsQueueFull.get();
+    }
+
+    public long getHandshakesShed() {
+        return handshakesShed.get();
+    }
+
+    public String getMetricsSummary() {
+        return "active=" + admitted.size() + "/" + maxSessions
+                + " admitted=" + sessionsAdmitted.get()
+                + " rejected=" + sessionsRejected.get()
+                + " queued=" + payloadsQueued.get()
+                + " rateLimited=" + payloadsRateLimited.get()
+                + " queueFull=" + payloadsQueueFull.get()
+                + " handshakesShed=" + handshakesShed.get();
+    }
+
+    /**
+     * Classic token bucket refilled lazily from the monotonic clock
+     */
+    static class TokenBucket {
+        private final double ratePerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefillNanos;
+
+        TokenBucket(double ratePerSecond, int capacity) {
+            this.ratePerNano = ratePerSecond / 1_000_000_000d;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        synchronized boolean tryTake() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * ratePerNano);
+            lastRefillNanos = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.cbdc.ble;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Protocol features a device supports, exchanged as a bitset so new fast paths
+ * can coexist with devices on the original JSON protocol.
+ * The merchant advertises its set in the QR and in its framed key exchange; the
+ * payer sends its set in its framed key exchange or first flight. Both sides use
+ * only the intersection. A peer that sends no set is treated as NONE.
+ */
+public class Capabilities {
+    public static final int NONE = 0;
+
+    public static final int FRAMING = 1;         // binary Frame header on every payload
+    public static final int BATCH = 1 << 1;      // TOKEN_BATCH instead of one TOKEN_TRANSFER per token
+    public static final int ZERO_RTT = 1 << 2;   // payer first flight keyed from the QR ephemeral key
+    public static final int RESUMPTION = 1 << 3; // session tickets
+    public static final int COMPRESSION = 1 << 4; // preset-dictionary Deflate, flagged in the frame header
+
+    // Everything this build implements
+    public static final int LOCAL = FRAMING | BATCH | ZERO_RTT | RESUMPTION | COMPRESSION;
+
+    // Features signalled through frame flags, unusable without framing
+    private static final int NEEDS_FRAMING = COMPRESSION;
+
+    private static final int LENGTH = 4;
+
+    /**
+     * Features both sides support
+     */
+    public static int negotiate(int local, int remote) {
+        int common = local & remote;
+        if (!has(common, FRAMING)) {
+            common &= ~NEEDS_FRAMING;
+        }
+        return common;
+    }
+
+    public static boolean has(int capabilities, int feature) {
+        return (capabilities & feature) == feature;
+    }
+
+    /**
+     * Prefix a handshake body with our capability set: [u32 capabilities][body]
+     */
+    public static byte[] prepend(int capabilities, byte[] body) {
+        return ByteBuffer.allocate(LENGTH + body.length)
+                .putInt(capabilities)
+                .put(body)
+                .array();
+    }
+
+    public static int read(byte[] handshakeBody) {
+        if (handshakeBody.length < LENGTH) {
+            throw new IllegalArgumentException("Missing capabilities");
+        }
+        return ByteBuffer.wrap(handshakeBody).getInt();
+    }
+
+    public static byte[] strip(byte[] handshakeBody) {
+        if (handshakeBody.length < LENGTH) {
+            throw new IllegalArgumentException("Missing capabilities");
+        }
+        return Arrays.copyOfRange(handshakeBody, LENGTH, handshakeBody.length);
+    }
+
+    /**
+     * Both capability sets exactly as sent, for the handshake transcript. They travel in
+     * plaintext, so binding them into the key schedule makes a downgrade in transit fail
+     * decryption instead of silently turning features off.
+     */
+    public static byte[] transcriptWords(int payerCapabilities, int merchantCapabilities) {
+        return ByteBuffer.allocate(2 * LENGTH)
+                .putInt(payerCapabilities)
+                .putInt(merchantCapabilities)
+                .array();
+    }
+
+    public static String toString(int capabilities) {
+        if (capabilities == NONE) {
+            return "[legacy]";
+        }
+        StringBuilder sb = new StringBuilder("[");
+        append(sb, capabilities, FRAMING, "framing");
+        append(sb, capabilities, BATCH, "batch");
+        append(sb, capabilities, ZERO_RTT, "0-rtt");
+        append(sb, capabilities, RESUMPTION, "resumption");
+        append(sb, capabilities, COMPRESSION, "compression");
+        return sb.append("]").toString();
+    }
+
+    private static void append(StringBuilder sb, int capabilities, int feature, String name) {
+        if (has(capabilities, feature)) {
+            if (sb.length() > 1) {
+                sb.append(",");
+            }
+            sb.append(name);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.cbdc.ble;
+
+import com.example.cbdc.crypto.CryptoUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+
+/**
+ * Compact binary endpoint info the merchant advertises instead of a name string:
+ * [version][u64 posId hash][u64 merchant key fingerprint]
+ * Both fields are truncated SHA-256, so a payer holding the scanned QR can tell
+ * whether a discovered endpoint is its POS without connecting to it.
+ * Legacy merchants advertise "CBDC-Merchant-{posId}", which never starts with VERSION.
+ */
+public class EndpointInfo {
+    public static final byte VERSION = 1;
+    public static final int LENGTH = 17;
+
+    // Fingerprint of a legacy endpoint, whose name carries no key
+    public static final long UNKNOWN_FINGERPRINT = 0;
+
+    public final long posIdHash;
+    public final long keyFingerprint;
+
+    private EndpointInfo(long posIdHash, long keyFingerprint) {
+        this.posIdHash = posIdHash;
+        this.keyFingerprint = keyFingerprint;
+    }
+
+    public static byte[] encode(String posId, PublicKey merchantKey) {
+        return ByteBuffer.allocate(LENGTH)
+                .put(VERSION)
+                .putLong(hashPosId(posId))
+                .putLong(fingerprint(merchantKey))
+                .array();
+    }
+
+    /**
+     * Parse advertised endpoint info, or return null if it is not a record we can read
+     */
+    public static EndpointInfo decode(byte[] endpointInfo) {
+        if (endpointInfo == null || endpointInfo.length != LENGTH || endpointInfo[0] != VERSION) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(endpointInfo, 1, LENGTH - 1);
+        return new EndpointInfo(buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Info for a legacy merchant known only by its posId
+     */
+    public static EndpointInfo fromPosId(String posId) {
+        return new EndpointInfo(hashPosId(posId), UNKNOWN_FINGERPRINT);
+    }
+
+    public static long hashPosId(String posId) {
+        return truncatedSha256(posId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static long fingerprint(PublicKey merchantKey) {
+        return truncatedSha256(CryptoUtil.encodePublicKey(merchantKey));
+    }
+
+    private static long truncatedSha256(byte[] data) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(data)).getLong();
+        } catch (Exception e) {
+            throw new RuntimeException("Endpoint info hashing failed", e);
+        }
+    }
+}
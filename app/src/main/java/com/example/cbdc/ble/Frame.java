@@ -0,0 +1,135 @@
+package com.example.cbdc.ble;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary frame carried by every payload on the framed protocol:
+ * [magic][version][type][flags][u32 seq][u32 body length][body]
+ * Receivers route, reject unknown types and drop replays from the header alone.
+ * The first 8 header bytes are the AEAD associated data of encrypted bodies, so
+ * type, flags and sequence number cannot be altered in transit.
+ * Unframed payloads start with 0x30 (SPKI) or a HandshakeMessages marker, never MAGIC.
+ */
+public class Frame {
+    public static final byte MAGIC = (byte) 0xCB;
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 12;
+    private static final int AAD_LENGTH = 8;
+
+    // Message types
+    public static final byte KEY_EXCHANGE = 0x01;   // plaintext ephemeral SPKI
+    public static final byte RESUME_REJECT = 0x02;  // empty body
+    public static final byte TOKEN_TRANSFER = 0x10; // encrypted JSON
+    public static final byte TOKEN_BATCH = 0x11;    // encrypted JSON
+    public static final byte ACCEPT = 0x20;         // encrypted JSON
+
+    // Flags
+    public static final byte FLAG_FIRST_FLIGHT = 0x01; // body starts with a 0-RTT or resumption prefix
+    public static final byte FLAG_COMPRESSED = 0x02;   // plaintext is PayloadCompression output
+    public static final byte FLAG_CHUNKED = 0x04;      // one chunk of a streamed message
+    public static final byte FLAG_FINAL_CHUNK = 0x08;  // last chunk of a streamed message
+
+    public final byte version;
+    public final byte type;
+    public final byte flags;
+    public final long seq;
+    public final byte[] body;
+
+    private Frame(byte version, byte type, byte flags, long seq, byte[] body) {
+        this.version = version;
+        this.type = type;
+        this.flags = flags;
+        this.seq = seq;
+        this.body = body;
+    }
+
+    public static boolean isFramed(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH && data[0] == MAGIC;
+    }
+
+    /**
+     * Whether type is a message the given side sends; receivers drop anything else
+     */
+    public static boolean isKnownType(byte type, boolean fromPayer) {
+        switch (type) {
+            case KEY_EXCHANGE:
+                return true;
+            case TOKEN_TRANSFER:
+            case TOKEN_BATCH:
+                return fromPayer;
+            case RESUME_REJECT:
+            case ACCEPT:
+                return !fromPayer;
+            default:
+                return false;
+        }
+    }
+
+    public boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Header bytes authenticated with the body: everything except the length
+     */
+    public static byte[] associatedData(byte type, byte flags, long seq) {
+        return ByteBuffer.allocate(AAD_LENGTH)
+                .put(MAGIC)
+                .put(VERSION)
+                .put(type)
+                .put(flags)
+                .putInt((int) seq)
+                .array();
+    }
+
+    public byte[] associatedData() {
+        return associatedData(type, flags, seq);
+    }
+
+    public static byte[] encode(byte type, byte flags, long seq, byte[] body) {
+        return ByteBuffer.allocate(HEADER_LENGTH + body.length)
+                .put(associatedData(type, flags, seq))
+                .putInt(body.length)
+                .put(body)
+                .array();
+    }
+
+    /**
+     * Parse a frame, rejecting versions we cannot read and length mismatches
+     */
+    public static Frame decode(byte[] data) {
+        if (!isFramed(data)) {
+            throw new IllegalArgumentException("Not a framed payload");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.get(); // magic
+        byte version = buffer.get();
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        long seq = buffer.getInt() & 0xFFFFFFFFL;
+        long length = buffer.getInt() & 0xFFFFFFFFL;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported frame version " + version);
+        }
+        if (length != data.length - HEADER_LENGTH) {
+            throw new IllegalArgumentException("Frame length mismatch");
+        }
+        return new Frame(version, type, flags, seq,
+                Arrays.copyOfRange(data, HEADER_LENGTH, data.length));
+    }
+
+    /**
+     * Frame type for a JSON message "type" field
+     */
+    public static byte typeOf(String messageType) {
+        if ("TOKEN_BATCH".equals(messageType)) {
+            return TOKEN_BATCH;
+        } else if ("TOKEN_TRANSFER".equals(messageType)) {
+            return TOKEN_TRANSFER;
+        } else if ("ACCEPT".equals(messageType)) {
+            return ACCEPT;
+        }
+        throw new IllegalArgumentException("No frame type for " + messageType);
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.cbdc.ble;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Wire format for handshake messages that are not a bare public key.
+ * Legacy key exchange payloads are raw X.509 SPKI bytes, which always start
+ * with an ASN.1 SEQUENCE tag (0x30), so the markers below never collide with them.
+ */
+public class HandshakeMessages {
+
+    // HKDF info labels for the two ways a session key can be established
+    public static final String SESSION_INFO = "CBDC_SESSION";
+    public static final String ZERO_RTT_INFO = "CBDC_SESSION_0RTT";
+
+    // 0-RTT first flight: [marker][u16 key length][payer ephemeral SPKI][encrypted first message]
+    public static final byte ZERO_RTT = 0x01;
+
+    // Resumption first flight: [marker][u16 ticket length][ticket][nonce][encrypted first message]
+    public static final byte RESUME = 0x02;
+
+    // Merchant could not redeem the ticket: payer falls back to a full handshake
+    public static final byte RESUME_REJECT = 0x03;
+
+    private static final int HEADER_LENGTH = 3;
+
+    /**
+     * Concatenate handshake values into the transcript that salts the session key schedule
+     */
+    public static byte[] transcript(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            buffer.put(part);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Prepend the payer's ephemeral public key to the first encrypted message
+     */
+    public static byte[] encodeZeroRtt(byte[] payerPublicKey, byte[] encryptedMessage) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payerPublicKey.length + encryptedMessage.length);
+        buffer.put(ZERO_RTT);
+        buffer.putShort((short) payerPublicKey.length);
+        buffer.put(payerPublicKey);
+        buffer.put(encryptedMessage);
+        return buffer.array();
+    }
+
+    public static boolean isZeroRtt(byte[] data) {
+        return data != null && data.length > HEADER_LENGTH && data[0] == ZERO_RTT;
+    }
+
+    /**
+     * Extract the payer's ephemeral public key from a 0-RTT first flight
+     */
+    public static byte[] zeroRttPublicKey(byte[] data) {
+        int keyLength = fieldLength(data);
+        return Arrays.copyOfRange(data, HEADER_LENGTH, HEADER_LENGTH + keyLength);
+    }
+
+    /**
+     * Extract the encrypted first message from a 0-RTT first flight
+     */
+    public static byte[] zeroRttCiphertext(byte[] data) {
+        int keyLength = fieldLength(data);
+        return Arrays.copyOfRange(data, HEADER_LENGTH + keyLength, data.length);
+    }
+
+    public static byte[] encodeResume(byte[] ticket, byte[] nonce, byte[] encryptedMessage) {
+        ByteBuffer buffer = ByteBuffer.allocate(
+                HEADER_LENGTH + ticket.length + nonce.length + encryptedMessage.length);
+        buffer.put(RESUME);
+        buffer.putShort((short) ticket.length);
+        buffer.put(ticket);
+        buffer.put(nonce);
+        buffer.put(encryptedMessage);
+        return buffer.array();
+    }
+
+    public static boolean isResume(byte[] data) {
+        return data != null && data.length > HEADER_LENGTH + SessionResumption.NONCE_LENGTH && data[0] == RESUME;
+    }
+
+    public static byte[] resumeTicket(byte[] data) {
+        int ticketLength = fieldLength(data);
+        return Arrays.copyOfRange(data, HEADER_LENGTH, HEADER_LENGTH + ticketLength);
+    }
+
+    public static byte[] resumeNonce(byte[] data) {
+        int start = HEADER_LENGTH + fieldLength(data);
+        return Arrays.copyOfRange(data, start, start + SessionResumption.NONCE_LENGTH);
+    }
+
+    public static byte[] resumeCiphertext(byte[] data) {
+        int start = HEADER_LENGTH + fieldLength(data) + SessionResumption.NONCE_LENGTH;
+        if (start > data.length) {
+            throw new IllegalArgumentException("Malformed resumption handshake");
+        }
+        return Arrays.copyOfRange(data, start, data.length);
+    }
+
+    public static byte[] encodeResumeReject() {
+        return new byte[] { RESUME_REJECT };
+    }
+
+    public static boolean isResumeReject(byte[] data) {
+        return data != null && data.length == 1 && data[0] == RESUME_REJECT;
+    }
+
+    /**
+     * Legacy key exchange payloads are bare SPKI keys (ASN.1 SEQUENCE)
+     */
+    public static boolean isPublicKey(byte[] data) {
+        return data != null && data.length > 0 && data[0] == 0x30;
+    }
+
+    private static int fieldLength(byte[] data) {
+        int length = ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+        if (length == 0 || HEADER_LENGTH + length > data.length) {
+            throw new IllegalArgumentException("Malformed handshake");
+        }
+        return length;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.cbdc.ble;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Medium and measured throughput of one connection.
+ * Throughput comes from payload transfer updates: the bytes a payload moved between its
+ * first and last update over the time between them, smoothed across payloads. Payloads
+ * that finish in a single update carry no timing and only count toward the byte total.
+ */
+public class LinkStats {
+    // Smaller payloads are dominated by per-payload latency, not link speed
+    private static final long MIN_SAMPLE_BYTES = 4 * 1024;
+    private static final double SMOOTHING = 0.5;
+
+    private PaymentTransport.Medium medium = PaymentTransport.Medium.UNKNOWN;
+    private final Map<Long, long[]> transfers = new HashMap<>(); // payloadId -> {first update nanos, bytes}
+    private double throughputBytesPerSecond = 0; // 0 until measured
+    private long bytesTransferred = 0;
+    private int mediumChanges = 0;
+
+    /**
+     * New connection: the medium is unknown again, the throughput estimate carries over
+     */
+    public synchronized void reset() {
+        medium = PaymentTransport.Medium.UNKNOWN;
+        transfers.clear();
+    }
+
+    public synchronized void onBandwidthChanged(PaymentTransport.Medium medium) {
+        if (medium != this.medium) {
+            if (this.medium != PaymentTransport.Medium.UNKNOWN) {
+                mediumChanges++;
+                // Measured on the old medium, no longer meaningful
+                throughputBytesPerSecond = 0;
+            }
+            this.medium = medium;
+        }
+    }
+
+    public synchronized void onTransferUpdate(long payloadId, PaymentTransport.TransferStatus status,
+                                              long bytes) {
+        long now = System.nanoTime();
+        long[] first = transfers.get(payloadId);
+        if (status == PaymentTransport.TransferStatus.IN_PROGRESS) {
+            if (first == null) {
+                transfers.put(payloadId, new long[] {now, bytes});
+            }
+            return;
+        }
+        transfers.remove(payloadId);
+        if (status != PaymentTransport.TransferStatus.SUCCESS) {
+            return;
+        }
+        bytesTransferred += bytes;
+        if (first == null || bytes - first[1] < MIN_SAMPLE_BYTES || now <= first[0]) {
+            return;
+        }
+        double sample = (bytes - first[1]) * 1e9 / (now - first[0]);
+        throughputBytesPerSecond = throughputBytesPerSecond == 0
+                ? sample : SMOOTHING * sample + (1 - SMOOTHING) * throughputBytesPerSecond;
+    }
+
+    public synchronized PaymentTransport.Medium getMedium() {
+        return medium;
+    }
+
+    /**
+     * Smoothed throughput on the current medium, or 0 if no large payload was measured yet
+     */
+    public synchronized long getThroughputBytesPerSecond() {
+        return (long) throughputBytesPerSecond;
+    }
+
+    public synchronized long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    public synchronized String getMetricsSummary() {
+        return "medium=" + medium
+                + " throughput=" + (throughputBytesPerSecond > 0
+                        ? (long) (throughputBytesPerSecond / 1024) + "KB/s" : "n/a")
+                + " bytes=" + bytesTransferred
+                + " mediumChanges=" + mediumChanges;
+    }
+}
@@ -0,0 +1,411 @@
+package com.example.cbdc.ble;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process PaymentTransport for running the payment protocol on a plain JVM.
+ * All transports created from one Network share a single event thread, so callbacks
+ * are serialized like Nearby's main-thread callbacks. Each payload is delayed by the
+ * configured one-way latency plus its transmission time at the configured bandwidth,
+ * and payloads on one link queue behind each other in order. Stream payloads are read
+ * whole on the sending side and handed to the receiver once fully transmitted.
+ */
+public class LoopbackTransport implements PaymentTransport {
+
+    /**
+     * Simulated radio medium shared by a set of loopback devices
+     */
+    public static class Network {
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "LoopbackTransport");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final Map<String, LoopbackTransport> transports = new ConcurrentHashMap<>();
+        private final AtomicInteger nextEndpointId = new AtomicInteger();
+        private final AtomicLong nextPayloadId = new AtomicLong();
+
+        private volatile long latencyMs;
+        private volatile long bandwidthBytesPerSecond;
+
+        // Metrics
+        private final AtomicLong payloadsDelivered = new AtomicLong();
+        private final AtomicLong bytesDelivered = new AtomicLong();
+
+        /**
+         * @param latencyMs one-way delay added to every payload and connection step
+         * @param bandwidthBytesPerSecond link throughput, or 0 for unlimited
+         */
+        public Network(long latencyMs, long bandwidthBytesPerSecond) {
+            this.latencyMs = latencyMs;
+            this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        }
+
+        public LoopbackTransport createTransport() {
+            String endpointId = String.format("LB%02X", nextEndpointId.incrementAndGet());
+            LoopbackTransport transport = new LoopbackTransport(this, endpointId);
+            transports.put(endpointId, transport);
+            return transport;
+        }
+
+        public void setLatencyMs(long latencyMs) {
+            this.latencyMs = latencyMs;
+        }
+
+        public void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+            this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        }
+
+        public long getPayloadsDelivered() {
+            return payloadsDelivered.get();
+        }
+
+        public long getBytesDelivered() {
+            return bytesDelivered.get();
+        }
+
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+
+        private void post(Runnable task) {
+            executor.execute(task);
+        }
+
+        private void postDelayed(Runnable task, long delayNanos) {
+            executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private long latencyNanos() {
+            return TimeUnit.MILLISECONDS.toNanos(latencyMs);
+        }
+
+        private long transmitNanos(int length) {
+            long bandwidth = bandwidthBytesPerSecond;
+            return bandwidth > 0 ? length * TimeUnit.SECONDS.toNanos(1) / bandwidth : 0;
+        }
+    }
+
+    /**
+     * One side of a connection. Only touched on the network thread.
+     */
+    private static class Link {
+        final ConnectionListener connectionListener;
+        PayloadListener payloadListener;
+        boolean accepted = false;
+        boolean connected = false;
+        long busyUntilNanos = 0;
+
+        Link(ConnectionListener connectionListener) {
+            this.connectionListener = connectionListener;
+        }
+    }
+
+    // Granularity of simulated stream progress updates
+    private static final int STREAM_CHUNK_LENGTH = 16 * 1024;
+
+    private final Network network;
+    private final String endpointId;
+
+    // Network-thread state
+    private byte[] advertisedInfo;
+    private String advertisedName;
+    private String advertisedServiceId;
+    private ConnectionListener advertisingListener;
+    private String discoveryServiceId;
+    private DiscoveryListener discoveryListener;
+    private final Map<String, Link> links = new HashMap<>(); // remote endpointId -> link
+
+    private LoopbackTransport(Network network, String endpointId) {
+        this.network = network;
+        this.endpointId = endpointId;
+    }
+
+    public String getEndpointId() {
+        return endpointId;
+    }
+
+    @Override
+    public void startAdvertising(byte[] endpointInfo, String serviceId,
+                                 ConnectionListener connectionListener, ResultListener resultListener) {
+        network.post(() -> {
+            advertisedInfo = endpointInfo;
+            advertisedName = new String(endpointInfo, StandardCharsets.UTF_8);
+            advertisedServiceId = serviceId;
+            advertisingListener = connectionListener;
+            resultListener.onSuccess();
+            for (LoopbackTransport peer : peers()) {
+                if (serviceId.equals(peer.discoveryServiceId)) {
+                    peer.discoveryListener.onEndpointFound(endpointId, advertisedName, endpointInfo, serviceId);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stopAdvertising() {
+        network.post(() -> {
+            if (advertisedServiceId == null) {
+                return;
+            }
+            for (LoopbackTransport peer : peers()) {
+                if (advertisedServiceId.equals(peer.discoveryServiceId)) {
+                    peer.discoveryListener.onEndpointLost(endpointId);
+                }
+            }
+            advertisedInfo = null;
+            advertisedName = null;
+            advertisedServiceId = null;
+            advertisingListener = null;
+        });
+    }
+
+    @Override
+    public void startDiscovery(String serviceId, DiscoveryListener discoveryListener,
+                               ResultListener resultListener) {
+        network.post(() -> {
+            discoveryServiceId = serviceId;
+            this.discoveryListener = discoveryListener;
+            resultListener.onSuccess();
+            for (LoopbackTransport peer : peers()) {
+                if (serviceId.equals(peer.advertisedServiceId)) {
+                    discoveryListener.onEndpointFound(peer.endpointId, peer.advertisedName,
+                            peer.advertisedInfo, serviceId);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stopDiscovery() {
+        network.post(() -> {
+            discoveryServiceId = null;
+            discoveryListener = null;
+        });
+    }
+
+    @Override
+    public void requestConnection(String endpointName, String remoteEndpointId,
+                                  ConnectionListener connectionListener, ResultListener resultListener) {
+        network.post(() -> {
+            LoopbackTransport remote = network.transports.get(remoteEndpointId);
+            if (remote == null || remote.advertisingListener == null) {
+                resultListener.onFailure(new IllegalStateException("Endpoint not found: " + remoteEndpointId));
+                return;
+            }
+            if (links.containsKey(remoteEndpointId)) {
+                resultListener.onFailure(new IllegalStateException("Already connected to: " + remoteEndpointId));
+                return;
+            }
+            resultListener.onSuccess();
+
+            // Both sides see the connection after one trip across the link
+            network.postDelayed(() -> {
+                Link local = new Link(connectionListener);
+                Link peer = new Link(remote.advertisingListener);
+                links.put(remoteEndpointId, local);
+                remote.links.put(endpointId, peer);
+                peer.connectionListener.onConnectionInitiated(endpointId, endpointName);
+                local.connectionListener.onConnectionInitiated(remoteEndpointId, remote.advertisedName);
+            }, network.latencyNanos());
+        });
+    }
+
+    @Override
+    public void acceptConnection(String remoteEndpointId, PayloadListener payloadListener) {
+        network.post(() -> {
+            Link local = links.get(remoteEndpointId);
+            LoopbackTransport remote = network.transports.get(remoteEndpointId);
+            if (local == null || remote == null) {
+                return;
+            }
+            local.payloadListener = payloadListener;
+            local.accepted = true;
+
+            Link peer = remote.links.get(endpointId);
+            if (peer == null || !peer.accepted) {
+                return;
+            }
+            network.postDelayed(() -> {
+                if (links.get(remoteEndpointId) != local || remote.links.get(endpointId) != peer) {
+                    return;
+                }
+                local.connected = true;
+                peer.connected = true;
+                local.connectionListener.onConnectionResult(remoteEndpointId, true, "SUCCESS");
+                peer.connectionListener.onConnectionResult(endpointId, true, "SUCCESS");
+            }, network.latencyNanos());
+        });
+    }
+
+    @Override
+    public void rejectConnection(String remoteEndpointId) {
+        network.post(() -> {
+            Link local = links.remove(remoteEndpointId);
+            LoopbackTransport remote = network.transports.get(remoteEndpointId);
+            if (local == null || remote == null) {
+                return;
+            }
+            Link peer = remote.links.remove(endpointId);
+            network.postDelayed(() -> {
+                local.connectionListener.onConnectionResult(remoteEndpointId, false, "CONNECTION_REJECTED");
+                if (peer != null) {
+                    peer.connectionListener.onConnectionResult(endpointId, false, "CONNECTION_REJECTED");
+                }
+            }, network.latencyNanos());
+        });
+    }
+
+    @Override
+    public void sendBytes(String remoteEndpointId, byte[] data) {
+        byte[] copy = Arrays.copyOf(data, data.length);
+        network.post(() -> {
+            Link local = links.get(remoteEndpointId);
+            LoopbackTransport remote = network.transports.get(remoteEndpointId);
+            if (local == null || !local.connected || remote == null) {
+                return;
+            }
+
+            // Payloads on one link are transmitted back to back, then cross the latency
+            long now = System.nanoTime();
+            long start = Math.max(now, local.busyUntilNanos);
+            local.busyUntilNanos = start + network.transmitNanos(copy.length);
+            long deliverAt = local.busyUntilNanos + network.latencyNanos();
+
+            network.postDelayed(() -> {
+                Link peer = remote.links.get(endpointId);
+                if (peer == null || !peer.connected || peer.payloadListener == null) {
+                    return;
+                }
+                network.payloadsDelivered.incrementAndGet();
+                network.bytesDelivered.addAndGet(copy.length);
+                peer.payloadListener.onBytesReceived(endpointId, copy);
+            }, deliverAt - now);
+        });
+    }
+
+    @Override
+    public long sendStream(String remoteEndpointId, InputStream data) {
+        long payloadId = network.nextPayloadId.incrementAndGet();
+        network.post(() -> {
+            Link local = links.get(remoteEndpointId);
+            LoopbackTransport remote = network.transports.get(remoteEndpointId);
+            if (local == null || !local.connected || remote == null) {
+                return;
+            }
+            byte[] bytes;
+            try {
+                bytes = readFully(data);
+            } catch (IOException e) {
+                notifyTransfer(local, remoteEndpointId, payloadId, TransferStatus.FAILURE, 0);
+                return;
+            }
+
+            long now = System.nanoTime();
+            long start = Math.max(now, local.busyUntilNanos);
+            local.busyUntilNanos = start + network.transmitNanos(bytes.length);
+            long deliverAt = local.busyUntilNanos + network.latencyNanos();
+
+            // Sender sees progress per chunk as the link drains the stream
+            for (int sent = STREAM_CHUNK_LENGTH; sent < bytes.length; sent += STREAM_CHUNK_LENGTH) {
+                long transferred = sent;
+                network.postDelayed(() -> notifyTransfer(local, remoteEndpointId, payloadId,
+                        TransferStatus.IN_PROGRESS, transferred), start + network.transmitNanos(sent) - now);
+            }
+            network.postDelayed(() -> notifyTransfer(local, remoteEndpointId, payloadId,
+                    TransferStatus.SUCCESS, bytes.length), local.busyUntilNanos - now);
+
+            network.postDelayed(() -> {
+                Link peer = remote.links.get(endpointId);
+                if (peer == null || !peer.connected || peer.payloadListener == null) {
+                    return;
+                }
+                network.payloadsDelivered.incrementAndGet();
+                network.bytesDelivered.addAndGet(bytes.length);
+                peer.payloadListener.onStreamReceived(endpointId, payloadId, new ByteArrayInputStream(bytes));
+                notifyTransfer(peer, endpointId, payloadId, TransferStatus.SUCCESS, bytes.length);
+            }, deliverAt - now);
+        });
+        return payloadId;
+    }
+
+    @Override
+    public void disconnectFromEndpoint(String remoteEndpointId) {
+        network.post(() -> disconnectLink(remoteEndpointId));
+    }
+
+    @Override
+    public void stopAllEndpoints() {
+        stopAdvertising();
+        stopDiscovery();
+        network.post(() -> {
+            for (String remoteEndpointId : new ArrayList<>(links.keySet())) {
+                disconnectLink(remoteEndpointId);
+            }
+        });
+    }
+
+    /**
+     * Drop the link on both sides; like Nearby, only the remote side is notified
+     */
+    private void disconnectLink(String remoteEndpointId) {
+        if (links.remove(remoteEndpointId) == null) {
+            return;
+        }
+        LoopbackTransport remote = network.transports.get(remoteEndpointId);
+        if (remote == null) {
+            return;
+        }
+        Link peer = remote.links.remove(endpointId);
+        if (peer != null) {
+            network.postDelayed(() -> peer.connectionListener.onDisconnected(endpointId),
+                    network.latencyNanos());
+        }
+    }
+
+    private static void notifyTransfer(Link link, String remoteEndpointId, long payloadId,
+                                       TransferStatus status, long bytesTransferred) {
+        if (link.payloadListener != null) {
+            link.payloadListener.onTransferUpdate(remoteEndpointId, payloadId, status, bytesTransferred, -1);
+        }
+    }
+
+    private static byte[] readFully(InputStream data) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[STREAM_CHUNK_LENGTH];
+            int count;
+            while ((count = data.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            data.close();
+        }
+    }
+
+    private List<LoopbackTransport> peers() {
+        List<LoopbackTransport> peers = new ArrayList<>();
+        for (LoopbackTransport transport : network.transports.values()) {
+            if (transport != this) {
+                peers.add(transport);
+            }
+        }
+        return peers;
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.cbdc.ble;
+
+import android.util.Log;
+
+import com.example.cbdc.util.MerchantEndpoint;
+
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Payer-side cache of merchants seen by background discovery, keyed by posId hash and
+ * merchant key fingerprint, so an advertiser reusing a merchant's posId cannot replace
+ * the real merchant's entry. Lets a scanned QR connect straight to a known endpoint id
+ * instead of waiting for discovery. Entries expire after MerchantEndpoint's TTL.
+ */
+public class MerchantEndpointCache {
+    private static final String TAG = "MerchantEndpointCache";
+
+    private final Map<Key, Entry> endpoints = new ConcurrentHashMap<>();
+
+    private static final class Key {
+        final long posIdHash;
+        final long keyFingerprint; // UNKNOWN_FINGERPRINT for legacy endpoints
+
+        Key(long posIdHash, long keyFingerprint) {
+            this.posIdHash = posIdHash;
+            this.keyFingerprint = keyFingerprint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return posIdHash == other.posIdHash && keyFingerprint == other.keyFingerprint;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(posIdHash) * 31 + Long.hashCode(keyFingerprint);
+        }
+    }
+
+    private static class Entry {
+        final MerchantEndpoint endpoint;
+        final EndpointInfo info;
+
+        Entry(MerchantEndpoint endpoint, EndpointInfo info) {
+            this.endpoint = endpoint;
+            this.info = info;
+        }
+    }
+
+    /**
+     * Record a discovered endpoint from its binary endpoint info, or from a legacy
+     * "CBDC-Merchant-{posId}" name; anything else is ignored.
+     * Binary records carry only a posId hash, so their MerchantEndpoint has no posId.
+     */
+    public void put(String endpointId, String endpointName, byte[] endpointInfo) {
+        EndpointInfo info = EndpointInfo.decode(endpointInfo);
+        String posId = null;
+        if (info == null) {
+            posId = MerchantEndpoint.extractPosIdFromName(endpointName);
+            if (posId == null) {
+                return;
+            }
+            info = EndpointInfo.fromPosId(posId);
+        }
+        MerchantEndpoint endpoint = new MerchantEndpoint(endpointId, endpointName, posId, System.currentTimeMillis());
+        endpoints.put(new Key(info.posIdHash, info.keyFingerprint), new Entry(endpoint, info));
+        Log.d(TAG, "Cached [" + endpointId + "] (" + endpoints.size() + " cached)");
+    }
+
+    /**
+     * Cached endpoint for the merchant in the QR, or null if unknown or expired.
+     * Only an endpoint advertising the QR's merchant key is returned, or failing
+     * that a legacy endpoint, whose name carries no key.
+     */
+    public MerchantEndpoint get(String posId, PublicKey merchantKey) {
+        long posIdHash = EndpointInfo.hashPosId(posId);
+        MerchantEndpoint endpoint = null;
+        if (merchantKey != null) {
+            endpoint = lookup(new Key(posIdHash, EndpointInfo.fingerprint(merchantKey)));
+        }
+        if (endpoint == null) {
+            endpoint = lookup(new Key(posIdHash, EndpointInfo.UNKNOWN_FINGERPRINT));
+        }
+        return endpoint;
+    }
+
+    private MerchantEndpoint lookup(Key key) {
+        Entry entry = endpoints.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.endpoint.isValid()) {
+            endpoints.remove(key, entry);
+            return null;
+        }
+        return entry.endpoint;
+    }
+
+    public void remove(String endpointId) {
+        Iterator<Entry> iterator = endpoints.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().endpoint.getEndpointId().equals(endpointId)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    public void clear() {
+        endpoints.clear();
+    }
+}
@@ -7,50 +7,50 @@ import android.os.IBinder;
 import android.util.Log;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
-
 import com.example.cbdc.crypto.CryptoUtil;
 import com.example.cbdc.crypto.DeviceKeyManager;
+import com.example.cbdc.crypto.EphemeralKeyPool;
+import com.example.cbdc.crypto.SessionCipher;
+import com.example.cbdc.crypto.SigningCertificate;
 import com.example.cbdc.token.ChainProof;
+import com.example.cbdc.token.Token;
 import com.example.cbdc.token.TokenManager;
 import com.example.cbdc.util.Base64Util;
+import com.example.cbdc.util.EventLog;
 import com.example.cbdc.util.JsonUtil;
-import com.google.android.gms.nearby.Nearby;
-import com.google.android.gms.nearby.connection.AdvertisingOptions;
-import com.google.android.gms.nearby.connection.ConnectionInfo;
-import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
-import com.google.android.gms.nearby.connection.ConnectionResolution;
-import com.google.android.gms.nearby.connection.ConnectionsClient;
-import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.PayloadCallback;
-import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
-import com.google.android.gms.nearby.connection.Strategy;
+import com.example.cbdc.util.PaymentTrace;
 import com.google.gson.Gson;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.PublicKey;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.UnaryOperator;
 
 import javax.crypto.SecretKey;
 
+
 /**
  * Merchant Nearby Service - Handles receiving payments via Google Nearby Connections API
- * Replaces the old MerchantBleServer with a more reliable implementation
+ * Replaces the old MerchantBleServer with a more reliable implementation.
+ * The radio is behind PaymentTransport, so the same protocol runs over loopback.
  */
 public class MerchantNearbyService extends Service {
     private static final String TAG = "MerchantNearbyService";
     private static final String SERVICE_ID = "com.example.cbdc.CBDC_SERVICE";
+    private static final int WORKER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
     
-    // Use P2P_STAR strategy for one-to-one merchant-payer connections
-    private static final Strategy STRATEGY = Strategy.P2P_STAR;
-    
-    private ConnectionsClient connectionsClient;
-    private final IBinder binder = new LocalBinder();
+    private PaymentTransport transport;
+    private IBinder binder; // created on bind, so the service can be constructed off-device
     private MerchantCallback callback;
     
     // Device and session management
@@ -60,17 +60,37 @@ public class MerchantNearbyService extends Service {
     
     // Ephemeral keys for session encryption
     private KeyPair ephemeralKeyPair;
-    private final Map<String, SecretKey> sessionKeys = new HashMap<>(); // endpointId -> sessionKey
-    private final Map<String, PublicKey> payerPublicKeys = new HashMap<>(); // endpointId -> payerPublicKey
     
-    // Track connected payers
-    private final Map<String, String> connectedEndpoints = new HashMap<>(); // endpointId -> payerName
+    // Session resumption for repeat payers
+    private SessionResumption.TicketIssuer ticketIssuer;
+    
+    // Connected payers, each processed independently on the worker pool
+    private final Map<String, MerchantSession> sessions = new ConcurrentHashMap<>(); // endpointId -> session
+    private final ExecutorService sessionWorkers = Executors.newFixedThreadPool(WORKER_THREADS, r -> {
+        Thread thread = new Thread(r, "MerchantSessionWorker");
+        thread.setDaemon(true);
+        return thread;
+    });
     
+    // Verify and persist stages of the receive pipeline
+    private final PaymentPipeline pipeline = new PaymentPipeline(WORKER_THREADS);
+    
+    // Session limit and payload/handshake rate limits
+    private final AdmissionController admission = new AdmissionController();
+    
+    // Completed transfers for idempotent resends, and transfers still in the pipeline
+    private ProcessedTransfers processedTransfers;
+    private final Map<String, PaymentPipeline.PaymentJob> inFlightTransfers = new ConcurrentHashMap<>();
+    
+    /**
+     * Callbacks are tagged with the payer's endpointId and may arrive on worker threads.
+     * endpointId is null for errors not tied to a payer.
+     */
     public interface MerchantCallback {
-        void onPaymentReceived(String tokenSerial, double amount);
-        void onError(String error);
-        void onClientConnected();
-        void onClientDisconnected();
+        void onPaymentReceived(String endpointId, String tokenSerial, double amount);
+        void onError(String endpointId, String error);
+        void onClientConnected(String endpointId);
+        void onClientDisconnected(String endpointId);
     }
     
     public class LocalBinder extends Binder {
@@ -82,12 +102,17 @@ public class MerchantNearbyService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        connectionsClient = Nearby.getConnectionsClient(this);
+        if (transport == null) {
+            transport = new NearbyTransport(this);
+        }
         Log.d(TAG, "MerchantNearbyService created");
     }
     
     @Override
     public IBinder onBind(Intent intent) {
+        if (binder == null) {
+            binder = new LocalBinder();
+        }
         return binder;
     }
     
@@ -95,83 +120,89 @@ public class MerchantNearbyService extends Service {
         this.callback = callback;
     }
     
+    /**
+     * Replace the Nearby transport, e.g. with a LoopbackTransport. Call before startAdvertising().
+     */
+    public void setTransport(PaymentTransport transport) {
+        this.transport = transport;
+    }
+    
     public void initialize(String posId, DeviceKeyManager deviceKeyManager, TokenManager tokenManager) {
         this.posId = posId;
         this.deviceKeyManager = deviceKeyManager;
         this.tokenManager = tokenManager;
         
-        // Generate ephemeral key pair for this session
-        ephemeralKeyPair = CryptoUtil.generateX25519KeyPair();
+        // Take a pre-generated ephemeral key pair for this session
+        ephemeralKeyPair = EphemeralKeyPool.take();
+        ticketIssuer = new SessionResumption.TicketIssuer();
+        processedTransfers = new ProcessedTransfers(tokenManager.getPreferences());
         Log.d(TAG, "Service initialized for POS: " + posId);
+        Log.d(TAG, "Ephemeral key pool: " + EphemeralKeyPool.getMetricsSummary());
     }
     
     public void startAdvertising() {
         if (posId == null || deviceKeyManager == null || tokenManager == null) {
             Log.e(TAG, "✗ Service not initialized. Call initialize() first.");
             if (callback != null) {
-                callback.onError("Service not initialized");
+                callback.onError(null, "Service not initialized");
             }
             return;
         }
         
-        // Log diagnostic info
-        Log.d(TAG, "========== Starting BLE Advertising ==========");
-        Log.d(TAG, "POS ID: " + posId);
-        Log.d(TAG, "Service ID: " + SERVICE_ID);
-        Log.d(TAG, "Strategy: " + STRATEGY);
-        
-        AdvertisingOptions options = new AdvertisingOptions.Builder()
-                .setStrategy(STRATEGY)
-                .build();
+        if (EventLog.VERBOSE) {
+            Log.d(TAG, "Starting advertising for POS " + posId + " on " + SERVICE_ID
+                    + " via " + transport.getClass().getSimpleName());
+        }
         
-        String deviceName = "CBDC-Merchant-" + posId;
-        Log.d(TAG, "Device Name: " + deviceName);
-        Log.d(TAG, "Calling Nearby.startAdvertising()...");
+        // posId hash and identity key fingerprint, so payers match the QR without connecting
+        byte[] endpointInfo = EndpointInfo.encode(posId,
+                deviceKeyManager.getSessionSigningKey().getRootPublic());
         
-        connectionsClient.startAdvertising(
-                deviceName,
-                SERVICE_ID,
-                connectionLifecycleCallback,
-                options
-        )
-        .addOnSuccessListener(aVoid -> {
-            Log.d(TAG, "✓✓ Advertising started successfully!");
-            Log.d(TAG, "Merchant is now discoverable as: " + deviceName);
-            Log.d(TAG, "Advertising service: " + SERVICE_ID);
-            Log.d(TAG, "Waiting for payer to connect...");
-        })
-        .addOnFailureListener(e -> {
-            Log.e(TAG, "✗✗ Advertising FAILED!");
-            Log.e(TAG, "Error: " + e.getMessage(), e);
-            Log.e(TAG, "Error class: " + e.getClass().getName());
-            
-            String errorMsg = "Failed to start advertising: ";
-            if (e.getMessage() != null) {
-                if (e.getMessage().contains("BLUETOOTH")) {
-                    errorMsg += "Bluetooth permission denied or not enabled";
-                } else if (e.getMessage().contains("ADVERTISE")) {
-                    errorMsg += "Bluetooth advertising not supported";
-                } else if (e.getMessage().contains("8029")) {
-                    errorMsg += "NEARBY_WIFI_DEVICES permission missing (Android 13+). Grant permission or use BLE-only mode.";
-                } else {
-                    errorMsg += e.getMessage();
-                }
-            } else {
-                errorMsg += "Unknown error";
+        transport.startAdvertising(endpointInfo, SERVICE_ID, connectionListener,
+                new PaymentTransport.ResultListener() {
+            @Override
+            public void onSuccess() {
+                EventLog.record(EventLog.Event.ADVERTISING_STARTED, endpointInfo.length);
             }
             
-            if (callback != null) {
-                callback.onError(errorMsg);
+            @Override
+            public void onFailure(Exception e) {
+                onAdvertisingFailed(e);
             }
         });
     }
     
+    private void onAdvertisingFailed(Exception e) {
+        Log.e(TAG, "✗✗ Advertising FAILED!");
+        Log.e(TAG, "Error: " + e.getMessage(), e);
+        Log.e(TAG, "Error class: " + e.getClass().getName());
+        
+        String errorMsg = "Failed to start advertising: ";
+        if (e.getMessage() != null) {
+            if (e.getMessage().contains("BLUETOOTH")) {
+                errorMsg += "Bluetooth permission denied or not enabled";
+            } else if (e.getMessage().contains("ADVERTISE")) {
+                errorMsg += "Bluetooth advertising not supported";
+            } else if (e.getMessage().contains("8029")) {
+                errorMsg += "NEARBY_WIFI_DEVICES permission missing (Android 13+). Grant permission or use BLE-only mode.";
+            } else {
+                errorMsg += e.getMessage();
+            }
+        } else {
+            errorMsg += "Unknown error";
+        }
+        
+        if (callback != null) {
+            callback.onError(null, errorMsg);
+        }
+    }
+    
     public void stopAdvertising() {
-        connectionsClient.stopAdvertising();
-        connectionsClient.stopAllEndpoints();
-        sessionKeys.clear();
-        payerPublicKeys.clear();
-        connectedEndpoints.clear();
+        transport.stopAdvertising();
+        transport.stopAllEndpoints();
+        for (String endpointId : sessions.keySet()) {
+            closeSession(endpointId);
+        }
         Log.d(TAG, "Advertising stopped");
     }
     
@@ -179,176 +210,667 @@ public class MerchantNearbyService extends Service {
         return ephemeralKeyPair;
     }
     
-    private final ConnectionLifecycleCallback connectionLifecycleCallback = new ConnectionLifecycleCallback() {
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
+    
+    private final PaymentTransport.ConnectionListener connectionListener = new PaymentTransport.ConnectionListener() {
         @Override
-        public void onConnectionInitiated(@NonNull String endpointId, @NonNull ConnectionInfo connectionInfo) {
-            Log.i(TAG, "✓ Connection initiated with: " + connectionInfo.getEndpointName());
-            // Automatically accept all connections
-            connectionsClient.acceptConnection(endpointId, payloadCallback);
+        public void onConnectionInitiated(String endpointId, String endpointName) {
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "Connection initiated with: " + endpointName);
+            }
+            if (!admission.tryAdmit(endpointId)) {
+                // At capacity: refuse before any session state or key material is created
+                transport.rejectConnection(endpointId);
+                return;
+            }
+            MerchantSession session = new MerchantSession(endpointId, endpointName, sessionWorkers);
+            sessions.put(endpointId, session);
+            
+            // Each payer's payloads run in order on its own worker, within its rate limit
+            transport.acceptConnection(endpointId, new PaymentTransport.PayloadListener() {
+                @Override
+                public void onBytesReceived(String id, byte[] data) {
+                    queuePayload(session, () -> handleIncomingMessage(session, data));
+                }
+                
+                @Override
+                public void onStreamReceived(String id, long payloadId, InputStream stream) {
+                    if (!queuePayload(session, () -> handleStream(session, stream))) {
+                        MessageStream.closeQuietly(stream);
+                    }
+                }
+                
+                @Override
+                public void onTransferUpdate(String id, long payloadId, PaymentTransport.TransferStatus status,
+                                             long bytesTransferred, long totalBytes) {
+                    session.linkStats.onTransferUpdate(payloadId, status, bytesTransferred);
+                    if (status != PaymentTransport.TransferStatus.IN_PROGRESS) {
+                        session.execute(() -> onStreamDrained(session, payloadId));
+                    }
+                    if (status == PaymentTransport.TransferStatus.FAILURE
+                            || status == PaymentTransport.TransferStatus.CANCELED) {
+                        Log.w(TAG, "✗ Payload " + payloadId + " with " + id + " " + status
+                                + " after " + bytesTransferred + " bytes");
+                    }
+                }
+            });
+        }
+        
+        private boolean queuePayload(MerchantSession session, Runnable task) {
+            if (!admission.allowPayload(session.endpointId)) {
+                Log.w(TAG, "Rate limit exceeded, dropping payload from " + session.endpointId);
+                return false;
+            }
+            if (!session.offer(task)) {
+                admission.recordQueueFull();
+                return false;
+            }
+            admission.recordQueued();
+            return true;
         }
         
         @Override
-        public void onConnectionResult(@NonNull String endpointId, @NonNull ConnectionResolution result) {
-            if (result.getStatus().isSuccess()) {
-                Log.i(TAG, "✓✓ Connection SUCCESSFUL with payer: " + endpointId);
-                connectedEndpoints.put(endpointId, "Payer");
+        public void onConnectionResult(String endpointId, boolean success, String status) {
+            if (success) {
+                EventLog.record(EventLog.Event.PAYER_CONNECTED, EventLog.id(endpointId), sessions.size());
+                MerchantSession session = sessions.get(endpointId);
+                if (session != null) {
+                    session.moveTo(MerchantSession.State.HANDSHAKING);
+                }
                 if (callback != null) {
-                    callback.onClientConnected();
+                    callback.onClientConnected(endpointId);
                 }
             } else {
-                Log.w(TAG, "✗ Connection FAILED with: " + endpointId + " - Status: " + result.getStatus());
+                Log.w(TAG, "✗ Connection FAILED with: " + endpointId + " - Status: " + status);
+                closeSession(endpointId);
                 if (callback != null) {
-                    callback.onError("Connection failed with payer");
+                    callback.onError(endpointId, "Connection failed with payer");
                 }
             }
         }
         
         @Override
-        public void onDisconnected(@NonNull String endpointId) {
-            Log.i(TAG, "⚠ Disconnected from payer: " + endpointId);
-            sessionKeys.remove(endpointId);
-            payerPublicKeys.remove(endpointId);
-            connectedEndpoints.remove(endpointId);
+        public void onDisconnected(String endpointId) {
+            EventLog.record(EventLog.Event.PAYER_DISCONNECTED, EventLog.id(endpointId));
+            closeSession(endpointId);
             if (callback != null) {
-                callback.onClientDisconnected();
+                callback.onClientDisconnected(endpointId);
+            }
+        }
+        
+        @Override
+        public void onBandwidthChanged(String endpointId, PaymentTransport.Medium medium) {
+            MerchantSession session = sessions.get(endpointId);
+            if (session != null) {
+                if (EventLog.VERBOSE) {
+                    Log.d(TAG, "↑ Link to payer " + endpointId + " now on " + medium);
+                }
+                session.linkStats.onBandwidthChanged(medium);
             }
         }
     };
     
-    private final PayloadCallback payloadCallback = new PayloadCallback() {
-        @Override
-        public void onPayloadReceived(@NonNull String endpointId, @NonNull Payload payload) {
-            if (payload.getType() == Payload.Type.BYTES) {
-                handleIncomingMessage(endpointId, payload.asBytes());
+    private void closeSession(String endpointId) {
+        MerchantSession session = sessions.remove(endpointId);
+        if (session != null) {
+            session.moveTo(MerchantSession.State.CLOSED);
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "Link " + endpointId + ": " + session.linkStats.getMetricsSummary());
             }
         }
-        
-        @Override
-        public void onPayloadTransferUpdate(@NonNull String endpointId, @NonNull PayloadTransferUpdate update) {
-            // Not used for byte payloads
+        admission.release(endpointId);
+        if (EventLog.VERBOSE) {
+            Log.d(TAG, "Admission: " + admission.getMetricsSummary());
         }
-    };
+    }
     
-    private void handleIncomingMessage(String endpointId, byte[] encryptedData) {
+    /**
+     * Runs on the session's worker, never concurrently for the same payer
+     */
+    private void handleIncomingMessage(MerchantSession merchantSession, byte[] data) {
+        String endpointId = merchantSession.endpointId;
+        if (merchantSession.getState() == MerchantSession.State.CLOSED) {
+            Log.w(TAG, "Dropping payload for closed session " + endpointId);
+            return;
+        }
         try {
-            SecretKey sessionKey = sessionKeys.get(endpointId);
+            if (Frame.isFramed(data)) {
+                handleFrame(merchantSession, Frame.decode(data));
+            } else {
+                handleUnframed(merchantSession, data);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "✗ Failed to handle incoming message: " + e.getMessage(), e);
+            if (callback != null) {
+                callback.onError(endpointId, "Failed to process payment: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Framed protocol: type and replay checks use the header alone, before any crypto
+     */
+    private void handleFrame(MerchantSession merchantSession, Frame frame) throws Exception {
+        if (frame.hasFlag(Frame.FLAG_CHUNKED)) {
+            Log.w(TAG, "Dropping chunk outside a stream from " + merchantSession.endpointId);
+            return;
+        }
+        byte[] plaintext = openFrame(merchantSession, frame);
+        if (plaintext != null) {
+            deliverMessage(merchantSession, frame, plaintext);
+        }
+    }
+    
+    /**
+     * Header checks, handshake and decryption for one frame.
+     * Returns the decrypted body, or null if the frame was a handshake or was dropped.
+     */
+    private byte[] openFrame(MerchantSession merchantSession, Frame frame) throws Exception {
+        String endpointId = merchantSession.endpointId;
+        if (!Frame.isKnownType(frame.type, true)) {
+            Log.w(TAG, "Rejecting frame type " + frame.type + " from " + endpointId);
+            return null;
+        }
+        if (frame.seq <= merchantSession.lastReceivedSeq) {
+            Log.w(TAG, "Dropping replayed frame " + frame.seq + " from " + endpointId);
+            return null;
+        }
+        merchantSession.framed = true;
+        
+        SessionCipher session = merchantSession.cipher;
+        byte[] ciphertext = frame.body;
+        if (session == null) {
+            if (frame.type != Frame.KEY_EXCHANGE && !frame.hasFlag(Frame.FLAG_FIRST_FLIGHT)) {
+                // Sent under a rejected resumption key before the payer saw our reject
+                Log.w(TAG, "Dropping message without session from " + endpointId);
+                return null;
+            }
+            if (!admitHandshake(merchantSession)) {
+                return null;
+            }
             
-            if (sessionKey == null) {
+            // Handshake bodies carry the payer's capability set ahead of the key material
+            int payerCapabilities = Capabilities.read(frame.body);
+            merchantSession.capabilities = Capabilities.negotiate(Capabilities.LOCAL, payerCapabilities);
+            byte[] handshake = Capabilities.strip(frame.body);
+            // Both sets as sent go into the key schedule, so tampering with them breaks the session
+            byte[] capabilityWords = Capabilities.transcriptWords(payerCapabilities, Capabilities.LOCAL);
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "Negotiated " + Capabilities.toString(merchantSession.capabilities) + " with " + endpointId);
+            }
+            
+            if (frame.type == Frame.KEY_EXCHANGE) {
+                PublicKey payerPublicKey = CryptoUtil.decodePublicKey(handshake);
+                establishTranscriptSession(merchantSession, payerPublicKey, capabilityWords,
+                        HandshakeMessages.SESSION_INFO);
+                merchantSession.lastReceivedSeq = frame.seq;
+                
+                sendFrame(merchantSession, Frame.KEY_EXCHANGE, Capabilities.prepend(Capabilities.LOCAL,
+                        CryptoUtil.encodePublicKey(ephemeralKeyPair.getPublic())));
+                EventLog.record(EventLog.Event.PAYER_SESSION_READY, EventLog.id(endpointId), 0);
+                return null;
+            }
+            session = establishFromFirstFlight(merchantSession, handshake, capabilityWords);
+            if (session == null) {
+                return null;
+            }
+            ciphertext = firstFlightCiphertext(handshake);
+        } else if (frame.type == Frame.KEY_EXCHANGE) {
+            Log.w(TAG, "Ignoring repeated key exchange from " + endpointId);
+            return null;
+        }
+        
+        EventLog.record(EventLog.Event.FRAME_RECEIVED, frame.seq, EventLog.id(endpointId));
+        byte[] plaintext = session.decrypt(ciphertext, frame.associatedData());
+        merchantSession.lastReceivedSeq = frame.seq;
+        return plaintext;
+    }
+    
+    /**
+     * Decompress and dispatch a decrypted message; first is its only or first frame
+     */
+    private void deliverMessage(MerchantSession merchantSession, Frame frame, byte[] plaintext)
+            throws Exception {
+        if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+            plaintext = PayloadCompression.decompress(plaintext);
+        }
+        
+        JSONObject message = JsonUtil.fromBytes(plaintext);
+        if (Frame.typeOf(message.getString("type")) != frame.type) {
+            throw new Exception("Frame type does not match message");
+        }
+        dispatchPayment(merchantSession, message);
+    }
+    
+    /**
+     * Streamed message: check and decrypt chunk frames as they arrive, then handle the
+     * reassembled body like a single frame. Runs on the session worker, so later
+     * payloads from this payer wait until the stream is complete.
+     */
+    private void handleStream(MerchantSession merchantSession, InputStream stream) {
+        String endpointId = merchantSession.endpointId;
+        try (MessageStream.Reader reader = new MessageStream.Reader(stream)) {
+            if (merchantSession.getState() == MerchantSession.State.CLOSED) {
+                Log.w(TAG, "Dropping stream for closed session " + endpointId);
+                return;
+            }
+            Frame first = reader.next();
+            if (!first.hasFlag(Frame.FLAG_CHUNKED) || first.type == Frame.KEY_EXCHANGE) {
+                throw new Exception("Stream does not start a chunked message");
+            }
+            byte[] plaintext = openFrame(merchantSession, first);
+            if (plaintext == null) {
+                return;
+            }
+            MessageStream.Assembler assembler = new MessageStream.Assembler();
+            assembler.add(plaintext);
+            
+            Frame previous = first;
+            while (!MessageStream.isFinal(previous)) {
+                Frame chunk = reader.next();
+                MessageStream.checkContinuation(first, previous, chunk);
+                plaintext = openFrame(merchantSession, chunk);
+                if (plaintext == null) {
+                    return;
+                }
+                assembler.add(plaintext);
+                previous = chunk;
+            }
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "← Received streamed message from " + endpointId + ": "
+                        + (previous.seq - first.seq + 1) + " chunks");
+            }
+            deliverMessage(merchantSession, first, assembler.toByteArray());
+        } catch (Exception e) {
+            Log.e(TAG, "✗ Failed to handle incoming stream: " + e.getMessage(), e);
+            if (callback != null) {
+                callback.onError(endpointId, "Failed to process payment: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Original protocol: the first payload is a raw public key or a 0-RTT/resumption first flight
+     */
+    private void handleUnframed(MerchantSession merchantSession, byte[] encryptedData) throws Exception {
+        String endpointId = merchantSession.endpointId;
+        SessionCipher session = merchantSession.cipher;
+        
+        if (session == null) {
+            boolean isFirstFlight = HandshakeMessages.isResume(encryptedData)
+                    || HandshakeMessages.isZeroRtt(encryptedData);
+            if (!isFirstFlight && !HandshakeMessages.isPublicKey(encryptedData)) {
+                // Sent under a rejected resumption key before the payer saw our reject
+                Log.w(TAG, "Dropping message without session from " + endpointId);
+                return;
+            }
+            if (!admitHandshake(merchantSession)) {
+                return;
+            }
+            if (!isFirstFlight) {
                 // First message: payer's ephemeral public key for ECDH
-                Log.d(TAG, "← Received payer's ephemeral public key");
                 PublicKey payerPublicKey = CryptoUtil.decodePublicKey(encryptedData);
-                payerPublicKeys.put(endpointId, payerPublicKey);
-                
-                // Perform ECDH key exchange
-                byte[] sharedSecret = CryptoUtil.performECDH(
-                        ephemeralKeyPair.getPrivate(),
-                        payerPublicKey
-                );
-                
-                // Derive session key
-                byte[] salt = new byte[32]; // Zero salt for simplicity
-                byte[] info = "CBDC_SESSION".getBytes();
-                SecretKey derivedSessionKey = CryptoUtil.deriveSessionKey(sharedSecret, salt, info);
-                sessionKeys.put(endpointId, derivedSessionKey);
+                establishLegacySession(merchantSession, payerPublicKey);
                 
                 // Send our ephemeral public key back
                 byte[] ourPublicKey = CryptoUtil.encodePublicKey(ephemeralKeyPair.getPublic());
-                Payload responsePayload = Payload.fromBytes(ourPublicKey);
-                connectionsClient.sendPayload(endpointId, responsePayload);
+                transport.sendBytes(endpointId, ourPublicKey);
                 
-                Log.d(TAG, "✓ Session key established with payer " + endpointId);
-                Log.d(TAG, "→ Sent our ephemeral public key back to payer");
+                EventLog.record(EventLog.Event.PAYER_SESSION_READY, EventLog.id(endpointId), 0);
                 return;
             }
-            
-            // Decrypt message
-            Log.d(TAG, "← Received encrypted payment message");
-            byte[] plaintext = CryptoUtil.decryptAEAD(sessionKey, encryptedData, null);
-            JSONObject message = JsonUtil.fromBytes(plaintext);
-            
-            String messageType = message.getString("type");
-            
-            if ("TOKEN_TRANSFER".equals(messageType)) {
-                Log.d(TAG, "Processing TOKEN_TRANSFER message");
-                handleTokenTransfer(endpointId, message);
+            session = establishFromFirstFlight(merchantSession, encryptedData, new byte[0]);
+            if (session == null) {
+                return;
             }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "✗ Failed to handle incoming message: " + e.getMessage(), e);
-            if (callback != null) {
-                callback.onError("Failed to process payment: " + e.getMessage());
+            encryptedData = firstFlightCiphertext(encryptedData);
+        }
+        
+        // Decrypt message
+        byte[] plaintext = session.decrypt(encryptedData, null);
+        dispatchPayment(merchantSession, JsonUtil.fromBytes(plaintext));
+    }
+    
+    /**
+     * Apply the global handshake rate before any ticket decryption or ECDH
+     */
+    private boolean admitHandshake(MerchantSession merchantSession) {
+        if (admission.allowHandshake()) {
+            return true;
+        }
+        // Shed load; the payer can retry
+        Log.w(TAG, "✗ Handshake rate exceeded, disconnecting " + merchantSession.endpointId);
+        transport.disconnectFromEndpoint(merchantSession.endpointId);
+        closeSession(merchantSession.endpointId);
+        return false;
+    }
+    
+    /**
+     * Establish the session from a 0-RTT or resumption first flight.
+     * Returns null if the resumption ticket was rejected (the payer is told to fall back).
+     * capabilityWords are the transcript words of a framed first flight, empty otherwise.
+     */
+    private SessionCipher establishFromFirstFlight(MerchantSession merchantSession, byte[] firstFlight,
+                                                   byte[] capabilityWords) {
+        String endpointId = merchantSession.endpointId;
+        if (HandshakeMessages.isResume(firstFlight)) {
+            // Repeat payer: redeem the resumption ticket instead of doing ECDH
+            byte[] ticket = HandshakeMessages.resumeTicket(firstFlight);
+            byte[] resumptionSecret = ticketIssuer.redeem(ticket);
+            if (resumptionSecret == null) {
+                Log.w(TAG, "✗ Resumption rejected for " + endpointId + ", payer will fall back");
+                if (merchantSession.framed) {
+                    sendFrame(merchantSession, Frame.RESUME_REJECT, new byte[0]);
+                } else {
+                    transport.sendBytes(endpointId, HandshakeMessages.encodeResumeReject());
+                }
+                return null;
             }
+            SessionCipher session = SessionResumption.resumedSession(resumptionSecret, ticket,
+                    HandshakeMessages.resumeNonce(firstFlight), capabilityWords, false);
+            merchantSession.cipher = session;
+            merchantSession.moveTo(MerchantSession.State.ESTABLISHED);
+            EventLog.record(EventLog.Event.PAYER_SESSION_READY, EventLog.id(endpointId), 2);
+            return session;
         }
+        
+        // 0-RTT: payer already knows our ephemeral key from the QR and sent
+        // its own key together with the first encrypted message
+        PublicKey payerPublicKey = CryptoUtil.decodePublicKey(
+                HandshakeMessages.zeroRttPublicKey(firstFlight));
+        SessionCipher session = establishTranscriptSession(
+                merchantSession, payerPublicKey, capabilityWords, HandshakeMessages.ZERO_RTT_INFO);
+        EventLog.record(EventLog.Event.PAYER_SESSION_READY, EventLog.id(endpointId), 1);
+        return session;
     }
     
-    private void handleTokenTransfer(String endpointId, JSONObject message) {
-        try {
-            Log.d(TAG, "Extracting token and transfer data");
-            JSONObject tokenData = message.getJSONObject("token");
-            JSONObject transfer = message.getJSONObject("transfer");
-            
-            String tokenSerial = tokenData.getString("serial");
-            double amount = tokenData.getDouble("amount");
-            
-            Log.d(TAG, "Token: " + tokenSerial + ", Amount: Rs " + amount);
-            
-            // Verify transfer signature
-            String payerPublicKeyBase64 = transfer.getString("payer_public_key");
-            PublicKey payerKey = CryptoUtil.decodePublicKey(Base64Util.decode(payerPublicKeyBase64));
-            
-            String transferData = transfer.toString();
-            String signatureBase64 = transfer.getString("signature");
-            byte[] signature = Base64Util.decode(signatureBase64);
-            
-            // Remove signature for verification
-            JSONObject transferForVerify = new JSONObject(transferData);
-            transferForVerify.remove("signature");
-            
-            Log.d(TAG, "Verifying transfer signature...");
-            boolean verified = CryptoUtil.verify(
-                    payerKey,
-                    transferForVerify.toString().getBytes(),
-                    signature
-            );
-            
-            if (!verified) {
-                Log.e(TAG, "✗ Transfer signature verification FAILED");
-                throw new Exception("Transfer signature verification failed");
+    private static byte[] firstFlightCiphertext(byte[] firstFlight) {
+        return HandshakeMessages.isResume(firstFlight)
+                ? HandshakeMessages.resumeCiphertext(firstFlight)
+                : HandshakeMessages.zeroRttCiphertext(firstFlight);
+    }
+    
+    private void dispatchPayment(MerchantSession merchantSession, JSONObject message) throws Exception {
+        PaymentPipeline.PaymentJob job = parsePayment(merchantSession, message);
+        if (job != null) {
+            // Hand off so this worker is free for the next payload
+            merchantSession.moveTo(MerchantSession.State.PROCESSING);
+            pipeline.verify(() -> verifyPayment(job));
+        }
+    }
+    
+    /**
+     * Send a frame on this session's sequence; call from the session worker
+     */
+    private void sendFrame(MerchantSession merchantSession, byte type, byte[] body) {
+        transport.sendBytes(merchantSession.endpointId,
+                Frame.encode(type, (byte) 0, merchantSession.nextSendSeq(), body));
+    }
+    
+    /**
+     * Legacy key exchange: single shared key, kept for payers on the original protocol
+     */
+    private SessionCipher establishLegacySession(MerchantSession merchantSession, PublicKey payerPublicKey) {
+        merchantSession.payerEphemeralKey = payerPublicKey;
+        
+        byte[] sharedSecret = CryptoUtil.performECDH(
+                ephemeralKeyPair.getPrivate(),
+                payerPublicKey
+        );
+        
+        byte[] salt = new byte[32]; // Zero salt for simplicity
+        SecretKey sessionKey = CryptoUtil.deriveSessionKey(
+                sharedSecret, salt, HandshakeMessages.SESSION_INFO.getBytes());
+        SessionCipher session = SessionCipher.legacy(sessionKey);
+        merchantSession.cipher = session;
+        merchantSession.moveTo(MerchantSession.State.ESTABLISHED);
+        return session;
+    }
+    
+    /**
+     * 0-RTT and framed key exchange: directional keys bound to both capability sets and
+     * both ephemeral public keys
+     */
+    private SessionCipher establishTranscriptSession(MerchantSession merchantSession, PublicKey payerPublicKey,
+                                                     byte[] capabilityWords, String label) {
+        merchantSession.payerEphemeralKey = payerPublicKey;
+        
+        byte[] sharedSecret = CryptoUtil.performECDH(
+                ephemeralKeyPair.getPrivate(),
+                payerPublicKey
+        );
+        byte[] transcript = HandshakeMessages.transcript(
+                capabilityWords,
+                CryptoUtil.encodePublicKey(payerPublicKey),
+                CryptoUtil.encodePublicKey(ephemeralKeyPair.getPublic()));
+        SessionCipher session = CryptoUtil.deriveSessionCipher(
+                sharedSecret, transcript, label, false);
+        merchantSession.cipher = session;
+        merchantSession.moveTo(MerchantSession.State.ESTABLISHED);
+        return session;
+    }
+    
+    /**
+     * Stage 1 (session worker): extract tokens and transfers from a decrypted message
+     */
+    private PaymentPipeline.PaymentJob parsePayment(MerchantSession session, JSONObject message)
+            throws Exception {
+        String messageType = message.getString("type");
+        
+        if ("TOKEN_BATCH".equals(messageType)) {
+            String batchId = message.getString("batch_id");
+            JSONArray items = message.getJSONArray("items");
+            if (items.length() == 0) {
+                throw new Exception("Empty token batch");
             }
             
-            Log.d(TAG, "✓ Transfer signature verified");
-            
-            // Create accept receipt
-            JSONObject acceptReceipt = createAcceptReceipt(tokenData, transfer);
+            PaymentPipeline.PaymentJob job = new PaymentPipeline.PaymentJob(session, true, batchId);
+            for (int i = 0; i < items.length(); i++) {
+                JSONObject item = items.getJSONObject(i);
+                JSONObject tokenData = item.getJSONObject("token");
+                JSONObject transfer = item.getJSONObject("transfer");
+                
+                String tokenSerial = tokenData.getString("serial");
+                if (!tokenSerial.equals(transfer.getString("token_serial"))
+                        || !batchId.equals(transfer.optString("batch_id"))) {
+                    throw new Exception("Transfer does not match token " + tokenSerial);
+                }
+                job.tokenData.add(tokenData);
+                job.transfers.add(transfer);
+                job.totalAmount += tokenData.getDouble("amount");
+            }
+            EventLog.record(EventLog.Event.PAYMENT_PARSED, items.length(), EventLog.id(session.endpointId));
+            return job;
+        }
+        
+        if ("TOKEN_TRANSFER".equals(messageType)) {
+            // Single-token message from payers on the original protocol
+            PaymentPipeline.PaymentJob job = new PaymentPipeline.PaymentJob(session, false, null);
+            JSONObject tokenData = message.getJSONObject("token");
+            job.tokenData.add(tokenData);
+            job.transfers.add(message.getJSONObject("transfer"));
+            job.totalAmount = tokenData.getDouble("amount");
+            EventLog.record(EventLog.Event.PAYMENT_PARSED, 1, EventLog.id(session.endpointId));
+            return job;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Stage 2 (CPU pool): verify every transfer and sign the ACCEPT.
+     * The receipt is signed here because the stored chain proof embeds it.
+     */
+    private void verifyPayment(PaymentPipeline.PaymentJob job) {
+        try (PaymentTrace.Span ignored = PaymentTrace.section(PaymentTrace.Phase.MERCHANT_VERIFY)) {
+            // A resend after a lost ACCEPT: answer with the original receipt, never store twice
+            job.transferKey = ProcessedTransfers.key(
+                    job.transfers.get(0).getString("payer_public_key"),
+                    job.batch ? job.batchId : job.tokenData.get(0).getString("serial"));
             
-            // Store token with chain proof
-            ChainProof chainProof = new ChainProof();
-            chainProof.addTransfer(transfer);
-            chainProof.setAcceptReceipt(acceptReceipt);
+            for (JSONObject transfer : job.transfers) {
+                verifyTransfer(transfer);
+            }
+            EventLog.record(EventLog.Event.TRANSFERS_VERIFIED, job.transfers.size(),
+                    EventLog.id(job.session.endpointId));
             
-            tokenManager.addReceivedToken(tokenData, chainProof);
-            Log.d(TAG, "✓ Token stored in merchant wallet");
+            if (isDuplicateTransfer(job)) {
+                return;
+            }
             
-            // Send accept receipt back
-            sendAcceptReceipt(endpointId, acceptReceipt);
+            if (job.batch) {
+                JSONArray tokenSerials = new JSONArray();
+                for (JSONObject tokenData : job.tokenData) {
+                    tokenSerials.put(tokenData.getString("serial"));
+                }
+                job.acceptReceipt = createBatchAcceptReceipt(job.batchId, tokenSerials, job.totalAmount);
+            } else {
+                job.acceptReceipt = createAcceptReceipt(job.tokenData.get(0), job.transfers.get(0));
+            }
             
-            if (callback != null) {
-                callback.onPaymentReceived(tokenSerial, amount);
+            job.tokens = new ArrayList<>();
+            for (int i = 0; i < job.tokenData.size(); i++) {
+                ChainProof chainProof = new ChainProof();
+                chainProof.addTransfer(job.transfers.get(i));
+                chainProof.setAcceptReceipt(job.acceptReceipt);
+                
+                Token token = new Token(job.tokenData.get(i));
+                token.setChainProof(chainProof);
+                job.tokens.add(token);
             }
             
-            Log.d(TAG, "✓✓ Payment completed successfully: Rs " + amount);
+            pipeline.persist(() -> persistPayment(job));
+        } catch (Exception e) {
+            failPayment(job, "Token transfer failed", e);
+        }
+    }
+    
+    /**
+     * Verify stage: true if this transfer was already handled (or is being handled)
+     * for this payer, in which case the original ACCEPT is sent instead
+     */
+    private boolean isDuplicateTransfer(PaymentPipeline.PaymentJob job) {
+        while (true) {
+            JSONObject receipt = processedTransfers.receiptFor(job.transferKey);
+            if (receipt != null) {
+                EventLog.record(EventLog.Event.TRANSFER_REPLAYED, EventLog.id(job.session.endpointId));
+                replayAcceptReceipt(job.session, receipt);
+                return true;
+            }
+            PaymentPipeline.PaymentJob original = inFlightTransfers.putIfAbsent(job.transferKey, job);
+            if (original == null) {
+                return false;
+            }
+            if (original.addDuplicate(job.session)) {
+                if (EventLog.VERBOSE) {
+                    Log.d(TAG, "↺ Transfer " + job.transferKey + " still in progress, will answer both");
+                }
+                return true;
+            }
+            // Original finished meanwhile: its receipt is recorded (or it failed), look again
+            inFlightTransfers.remove(job.transferKey, original);
+        }
+    }
+    
+    private void replayAcceptReceipt(MerchantSession merchantSession, JSONObject acceptReceipt) {
+        merchantSession.execute(() -> {
+            sendAcceptReceipt(merchantSession, acceptReceipt);
+            merchantSession.moveTo(MerchantSession.State.ESTABLISHED);
+        });
+    }
+    
+    /**
+     * Stage 3 (single writer): store the whole payment and its transfer record in one wallet write
+     */
+    private void persistPayment(PaymentPipeline.PaymentJob job) {
+        try (PaymentTrace.Span ignored = PaymentTrace.section(PaymentTrace.Phase.PERSIST)) {
+            // Tokens and the transfer record in one commit: a crash cannot leave one without the other
+            tokenManager.addReceivedTokens(job.tokens,
+                    editor -> processedTransfers.writeRecord(editor, job.transferKey, job.acceptReceipt));
+            processedTransfers.recorded(job.transferKey, job.acceptReceipt);
+            EventLog.record(EventLog.Event.TOKENS_STORED, job.tokens.size());
             
+            // Back to the session worker so ciphertexts leave in counter order
+            job.session.execute(() -> completePayment(job));
         } catch (Exception e) {
-            Log.e(TAG, "✗ Failed to handle token transfer: " + e.getMessage(), e);
-            if (callback != null) {
-                callback.onError("Token transfer failed: " + e.getMessage());
+            failPayment(job, "Token storage failed", e);
+        }
+    }
+    
+    /**
+     * Stage 4 (session worker): encrypt and send the ACCEPT, then notify the UI
+     */
+    private void completePayment(PaymentPipeline.PaymentJob job) {
+        sendAcceptReceipt(job.session, job.acceptReceipt);
+        job.session.moveTo(MerchantSession.State.ESTABLISHED);
+        for (MerchantSession duplicate : job.complete()) {
+            replayAcceptReceipt(duplicate, job.acceptReceipt);
+        }
+        inFlightTransfers.remove(job.transferKey, job);
+        
+        if (callback != null) {
+            for (Token token : job.tokens) {
+                callback.onPaymentReceived(job.session.endpointId, token.getSerial(), token.getAmount());
+            }
+        }
+        EventLog.record(EventLog.Event.PAYMENT_COMPLETED, Math.round(job.totalAmount));
+    }
+    
+    private void failPayment(PaymentPipeline.PaymentJob job, String error, Exception e) {
+        Log.e(TAG, "✗ " + error + ": " + e.getMessage(), e);
+        job.session.moveTo(MerchantSession.State.ESTABLISHED);
+        if (job.transferKey != null) {
+            for (MerchantSession duplicate : job.complete()) {
+                duplicate.moveTo(MerchantSession.State.ESTABLISHED);
             }
+            inFlightTransfers.remove(job.transferKey, job);
+        }
+        if (callback != null) {
+            callback.onError(job.session.endpointId, error + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Verify the payer's signature on a transfer, throwing if it does not check out
+     */
+    private void verifyTransfer(JSONObject transfer) throws Exception {
+        // Verify transfer signature
+        String payerPublicKeyBase64 = transfer.getString("payer_public_key");
+        PublicKey payerKey = CryptoUtil.decodePublicKey(Base64Util.decode(payerPublicKeyBase64));
+        
+        String transferData = transfer.toString();
+        String signatureBase64 = transfer.getString("signature");
+        byte[] signature = Base64Util.decode(signatureBase64);
+        
+        // Remove signature for verification
+        JSONObject transferForVerify = new JSONObject(transferData);
+        transferForVerify.remove("signature");
+        
+        // Session key certificate is checked once and cached per payer. Validity is checked at
+        // the signed timestamp: an outbox resend may arrive after the certificate expired.
+        PublicKey signerKey = SigningCertificate.resolveSigningKeyAtTimestamp(
+                transfer, payerKey, ProcessedTransfers.RETENTION_MS);
+        if (signerKey == null) {
+            throw new Exception("Payer signing certificate invalid");
+        }
+        
+        boolean verified = CryptoUtil.verify(
+                signerKey,
+                transferForVerify.toString().getBytes(),
+                signature
+        );
+        
+        if (!verified) {
+            Log.e(TAG, "✗ Transfer signature verification FAILED");
+            throw new Exception("Transfer signature verification failed");
         }
     }
     
     private JSONObject createAcceptReceipt(JSONObject tokenData, JSONObject transfer) {
         try {
-            KeyPair deviceKey = deviceKeyManager.getOrCreateDeviceKey();
+            DeviceKeyManager.SessionSigningKey signingKey = deviceKeyManager.getSessionSigningKey();
             
             JSONObject accept = new JSONObject();
             accept.put("type", "ACCEPT");
@@ -356,11 +878,12 @@ public class MerchantNearbyService extends Service {
             accept.put("pos_id", posId);
             accept.put("timestamp", System.currentTimeMillis());
             accept.put("merchant_public_key", Base64Util.encode(
-                    CryptoUtil.encodePublicKey(deviceKey.getPublic())
+                    CryptoUtil.encodePublicKey(signingKey.getRootPublic())
             ));
+            accept.put("signer_cert", signingKey.getCertificate().toJson());
             
             String acceptData = accept.toString();
-            byte[] signature = CryptoUtil.sign(deviceKey.getPrivate(), acceptData.getBytes());
+            byte[] signature = signingKey.sign(acceptData.getBytes());
             accept.put("signature", Base64Util.encode(signature));
             
             return accept;
@@ -370,21 +893,98 @@ public class MerchantNearbyService extends Service {
         }
     }
     
-    private void sendAcceptReceipt(String endpointId, JSONObject acceptReceipt) {
+    private JSONObject createBatchAcceptReceipt(String batchId, JSONArray tokenSerials, double totalAmount) {
         try {
-            SecretKey sessionKey = sessionKeys.get(endpointId);
-            if (sessionKey == null) {
+            DeviceKeyManager.SessionSigningKey signingKey = deviceKeyManager.getSessionSigningKey();
+            
+            JSONObject accept = new JSONObject();
+            accept.put("type", "ACCEPT");
+            accept.put("batch_id", batchId);
+            accept.put("token_serials", tokenSerials);
+            accept.put("amount", totalAmount);
+            accept.put("pos_id", posId);
+            accept.put("timestamp", System.currentTimeMillis());
+            accept.put("merchant_public_key", Base64Util.encode(
+                    CryptoUtil.encodePublicKey(signingKey.getRootPublic())
+            ));
+            accept.put("signer_cert", signingKey.getCertificate().toJson());
+            
+            String acceptData = accept.toString();
+            byte[] signature = signingKey.sign(acceptData.getBytes());
+            accept.put("signature", Base64Util.encode(signature));
+            
+            return accept;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to create batch accept receipt", e);
+            throw new RuntimeException("Accept receipt creation failed", e);
+        }
+    }
+    
+    /**
+     * Session worker: our stream has gone out (or failed), so the receipts held behind it can follow
+     */
+    private void onStreamDrained(MerchantSession merchantSession, long payloadId) {
+        if (payloadId != merchantSession.drainingStreamId) {
+            return;
+        }
+        merchantSession.drainingStreamId = -1;
+        while (merchantSession.drainingStreamId == -1 && !merchantSession.receiptsBehindStream.isEmpty()) {
+            sendAcceptReceipt(merchantSession, merchantSession.receiptsBehindStream.poll());
+        }
+    }
+    
+    private void sendAcceptReceipt(MerchantSession merchantSession, JSONObject acceptReceipt) {
+        String endpointId = merchantSession.endpointId;
+        if (merchantSession.drainingStreamId != -1) {
+            // Must not overtake the stream's chunks, see MerchantSession.drainingStreamId
+            merchantSession.receiptsBehindStream.add(acceptReceipt);
+            return;
+        }
+        try {
+            SessionCipher session = merchantSession.cipher;
+            if (session == null) {
                 Log.e(TAG, "No session key for endpoint: " + endpointId);
                 return;
             }
             
-            byte[] plaintext = JsonUtil.toBytes(acceptReceipt);
-            byte[] encrypted = CryptoUtil.encryptAEAD(sessionKey, plaintext, null);
+            // Attach a resumption ticket once per session (outside the signed receipt)
+            JSONObject message = acceptReceipt;
+            if (ticketIssuer != null && !merchantSession.ticketIssued
+                    && Capabilities.has(merchantSession.capabilities, Capabilities.RESUMPTION)) {
+                merchantSession.ticketIssued = true;
+                long expiresAt = System.currentTimeMillis() + SessionResumption.TICKET_LIFETIME_MS;
+                byte[] ticket = ticketIssuer.issue(session.getResumptionSecret(), expiresAt);
+                message = new JSONObject(acceptReceipt.toString());
+                message.put("session_ticket", Base64Util.encode(ticket));
+                message.put("ticket_expires_at", expiresAt);
+            }
             
-            Payload payload = Payload.fromBytes(encrypted);
-            connectionsClient.sendPayload(endpointId, payload);
+            byte[] plaintext = JsonUtil.toBytes(message);
+            if (merchantSession.framed) {
+                byte flags = 0;
+                if (Capabilities.has(merchantSession.capabilities, Capabilities.COMPRESSION)) {
+                    byte[] compressed = PayloadCompression.compress(plaintext);
+                    if (compressed != null) {
+                        flags = Frame.FLAG_COMPRESSED;
+                        plaintext = compressed;
+                    }
+                }
+                if (MessageStream.needsStream(plaintext.length)) {
+                    // Too large for one bytes payload: send as a stream of encrypted chunks
+                    long firstSeq = merchantSession.reserveSendSeq(MessageStream.chunkCount(plaintext.length));
+                    merchantSession.drainingStreamId = transport.sendStream(endpointId, MessageStream.encrypt(
+                            session, Frame.ACCEPT, flags, firstSeq, plaintext, UnaryOperator.identity()));
+                } else {
+                    long seq = merchantSession.nextSendSeq();
+                    byte[] encrypted = session.encrypt(plaintext, Frame.associatedData(Frame.ACCEPT, flags, seq));
+                    transport.sendBytes(endpointId, Frame.encode(Frame.ACCEPT, flags, seq, encrypted));
+                }
+            } else {
+                byte[] encrypted = session.encrypt(plaintext, null);
+                transport.sendBytes(endpointId, encrypted);
+            }
             
-            Log.d(TAG, "Accept receipt sent to " + endpointId);
+            EventLog.record(EventLog.Event.ACCEPT_SENT, EventLog.id(endpointId));
         } catch (Exception e) {
             Log.e(TAG, "Failed to send accept receipt", e);
         }
@@ -394,6 +994,8 @@ public class MerchantNearbyService extends Service {
     public void onDestroy() {
         super.onDestroy();
         stopAdvertising();
+        sessionWorkers.shutdown();
+        pipeline.shutdown();
         Log.d(TAG, "Service destroyed");
     }
 }
@@ -0,0 +1,77 @@
+package com.example.cbdc.ble;
+
+import android.util.Log;
+
+import com.example.cbdc.util.MerchantEndpoint;
+
+import java.security.PublicKey;
+
+/**
+ * Joins the two halves of scan-to-pay, which run concurrently: QR verification
+ * yields the target merchant, discovery fills the endpoint cache. Whichever
+ * finishes last triggers the connection, exactly once per scan.
+ */
+public class MerchantRendezvous {
+    private static final String TAG = "MerchantRendezvous";
+
+    public interface ConnectAction {
+        void connect(MerchantEndpoint endpoint);
+    }
+
+    private final MerchantEndpointCache endpointCache;
+    private final ConnectAction connectAction;
+
+    private String posId;
+    private PublicKey merchantKey;
+    private boolean connected = false;
+    private long scanStartedAt;
+
+    public MerchantRendezvous(MerchantEndpointCache endpointCache, ConnectAction connectAction) {
+        this.endpointCache = endpointCache;
+        this.connectAction = connectAction;
+    }
+
+    /**
+     * Start a new scan: forget the previous target
+     */
+    public synchronized void reset() {
+        posId = null;
+        merchantKey = null;
+        connected = false;
+        scanStartedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * The QR signature checked out; connect now if its merchant was already discovered
+     */
+    public synchronized void onTargetVerified(String posId, PublicKey merchantKey) {
+        this.posId = posId;
+        this.merchantKey = merchantKey;
+        tryConnect("QR verified");
+    }
+
+    /**
+     * Discovery cached an endpoint; connect now if it is the verified target
+     */
+    public synchronized void onEndpointFound() {
+        tryConnect("endpoint found");
+    }
+
+    public synchronized boolean isTargetVerified() {
+        return posId != null;
+    }
+
+    private void tryConnect(String trigger) {
+        if (connected || posId == null) {
+            return;
+        }
+        MerchantEndpoint endpoint = endpointCache.get(posId, merchantKey);
+        if (endpoint == null) {
+            return;
+        }
+        connected = true;
+        Log.d(TAG, "→ Connecting to " + endpoint.getEndpointId() + " on " + trigger
+                + " (" + (System.currentTimeMillis() - scanStartedAt) + " ms after scan start)");
+        connectAction.connect(endpoint);
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.cbdc.ble;
+
+import android.util.Log;
+
+import com.example.cbdc.crypto.SessionCipher;
+
+import org.json.JSONObject;
+
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Merchant-side state for one connected payer.
+ * Work for a session runs serially on a shared pool, so each payer is processed in
+ * order while different payers are processed in parallel.
+ */
+class MerchantSession {
+    private static final String TAG = "MerchantSession";
+    private static final int MAX_PENDING_TASKS = 16;
+
+    enum State {
+        CONNECTING,   // connection initiated, not yet accepted by both sides
+        HANDSHAKING,  // connected, waiting for the payer's first flight
+        ESTABLISHED,  // session keys derived, ready for payments
+        PROCESSING,   // verifying and storing a payment
+        CLOSED        // disconnected or failed
+    }
+
+    final String endpointId;
+    final String payerName;
+
+    private volatile State state = State.CONNECTING;
+
+    // Only touched from this session's worker
+    SessionCipher cipher;
+    PublicKey payerEphemeralKey;
+    boolean ticketIssued = false;
+
+    // Framing is decided by the payer's first payload
+    boolean framed = false;
+    long lastReceivedSeq = -1;
+    private long sendSeq = 0;
+
+    // Nearby does not order bytes payloads against a stream, so receipts sent while our
+    // stream is still going out wait for its final transfer update (-1 = none draining)
+    long drainingStreamId = -1;
+    final ArrayDeque<JSONObject> receiptsBehindStream = new ArrayDeque<>();
+
+    // Features negotiated in the handshake; payers on the original protocol get NONE
+    int capabilities = Capabilities.NONE;
+
+    // Medium and throughput of this payer's connection
+    final LinkStats linkStats = new LinkStats();
+
+    // Serial worker over the shared pool
+    private final Executor pool;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private Runnable active;
+
+    MerchantSession(String endpointId, String payerName, Executor pool) {
+        this.endpointId = endpointId;
+        this.payerName = payerName;
+        this.pool = pool;
+    }
+
+    long nextSendSeq() {
+        return reserveSendSeq(1);
+    }
+
+    /**
+     * Reserve count consecutive sequence numbers, e.g. for the chunks of a stream
+     */
+    long reserveSendSeq(int count) {
+        long first = sendSeq;
+        sendSeq += count;
+        return first;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * Move to next unless the session is already closed
+     */
+    synchronized boolean moveTo(State next) {
+        if (state == State.CLOSED) {
+            return false;
+        }
+        Log.d(TAG, endpointId + ": " + state + " → " + next);
+        state = next;
+        return true;
+    }
+
+    /**
+     * Queue incoming work for this payer, or return false if too much is already queued
+     */
+    synchronized boolean offer(Runnable task) {
+        if (tasks.size() >= MAX_PENDING_TASKS) {
+            Log.w(TAG, endpointId + ": work queue full, dropping task");
+            return false;
+        }
+        execute(task);
+        return true;
+    }
+
+    /**
+     * Queue work for this payer; runs after all previously queued work for the same payer
+     */
+    synchronized void execute(Runnable task) {
+        tasks.offer(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        active = tasks.poll();
+        if (active != null) {
+            pool.execute(active);
+        }
+    }
+}
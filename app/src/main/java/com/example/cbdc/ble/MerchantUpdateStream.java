@@ -0,0 +1,156 @@
+package com.example.cbdc.ble;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries MerchantNearbyService callbacks, which arrive on service threads, to the UI at
+ * most once per frame. Tokens received from one payer since the last frame are merged into
+ * a single PaymentDelta (amount and count), so a 30-token payment is one UI update instead
+ * of 30 posts to the main looper. If the UI falls behind, everything that piled up is merged
+ * and delivered together on the next frame; the intermediate totals are never drawn.
+ * Connects, disconnects and errors keep their order relative to the payments around them.
+ * Create on the UI thread; the listener is called there.
+ */
+public class MerchantUpdateStream implements MerchantNearbyService.MerchantCallback {
+
+    public interface Listener {
+        void onClientConnected(String endpointId);
+        void onPaymentReceived(String endpointId, PaymentDelta delta);
+        void onClientDisconnected(String endpointId);
+        void onError(String endpointId, String error);
+    }
+
+    /**
+     * Tokens received from one payer within one frame
+     */
+    public static class PaymentDelta {
+        public final Map<String, Double> tokens = new LinkedHashMap<>(); // tokenSerial -> amount
+        public double amount;
+        public int count;
+
+        void add(String tokenSerial, double tokenAmount) {
+            tokens.put(tokenSerial, tokenAmount);
+            amount += tokenAmount;
+            count++;
+        }
+    }
+
+    private enum Kind { CONNECTED, PAYMENT, DISCONNECTED, ERROR }
+
+    private static class Update {
+        final Kind kind;
+        final String endpointId;
+        final String error;
+        final PaymentDelta delta;
+
+        Update(Kind kind, String endpointId, String error, PaymentDelta delta) {
+            this.kind = kind;
+            this.endpointId = endpointId;
+            this.error = error;
+            this.delta = delta;
+        }
+    }
+
+    private final Listener listener;
+    private final Choreographer choreographer = Choreographer.getInstance();
+    private final Choreographer.FrameCallback frameCallback = frameTimeNanos -> deliver();
+
+    // Guarded by this
+    private List<Update> pending = new ArrayList<>();
+    private final Map<String, PaymentDelta> openDeltas = new HashMap<>(); // endpointId -> delta still accepting tokens
+    private boolean frameScheduled = false;
+    private boolean closed = false;
+
+    public MerchantUpdateStream(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized void onPaymentReceived(String endpointId, String tokenSerial, double amount) {
+        PaymentDelta delta = openDeltas.get(endpointId);
+        if (delta == null) {
+            delta = new PaymentDelta();
+            openDeltas.put(endpointId, delta);
+            enqueue(new Update(Kind.PAYMENT, endpointId, null, delta));
+        }
+        delta.add(tokenSerial, amount);
+    }
+
+    @Override
+    public synchronized void onError(String endpointId, String error) {
+        enqueue(new Update(Kind.ERROR, endpointId, error, null));
+    }
+
+    @Override
+    public synchronized void onClientConnected(String endpointId) {
+        openDeltas.remove(endpointId);
+        enqueue(new Update(Kind.CONNECTED, endpointId, null, null));
+    }
+
+    @Override
+    public synchronized void onClientDisconnected(String endpointId) {
+        // Tokens after this belong to a new session and must not join the closed delta
+        openDeltas.remove(endpointId);
+        enqueue(new Update(Kind.DISCONNECTED, endpointId, null, null));
+    }
+
+    /**
+     * Stop delivering; updates not yet delivered are dropped
+     */
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+        openDeltas.clear();
+        if (frameScheduled) {
+            choreographer.removeFrameCallback(frameCallback);
+            frameScheduled = false;
+        }
+    }
+
+    private void enqueue(Update update) {
+        if (closed) {
+            return;
+        }
+        pending.add(update);
+        if (!frameScheduled) {
+            frameScheduled = true;
+            choreographer.postFrameCallback(frameCallback);
+        }
+    }
+
+    private void deliver() {
+        List<Update> updates;
+        synchronized (this) {
+            frameScheduled = false;
+            if (closed) {
+                return;
+            }
+            updates = pending;
+            pending = new ArrayList<>();
+            // Deltas handed out below are final; later tokens start the next frame's delta
+            openDeltas.clear();
+        }
+        for (Update update : updates) {
+            switch (update.kind) {
+                case CONNECTED:
+                    listener.onClientConnected(update.endpointId);
+                    break;
+                case PAYMENT:
+                    listener.onPaymentReceived(update.endpointId, update.delta);
+                    break;
+                case DISCONNECTED:
+                    listener.onClientDisconnected(update.endpointId);
+                    break;
+                case ERROR:
+                    listener.onError(update.endpointId, update.error);
+                    break;
+            }
+        }
+    }
+}
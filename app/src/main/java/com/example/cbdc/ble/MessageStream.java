@@ -0,0 +1,158 @@
+package com.example.cbdc.ble;
+
+import com.example.cbdc.crypto.SessionCipher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+/**
+ * Large encrypted messages sent as a stream payload of chunk frames.
+ * Each chunk is its own Frame with FLAG_CHUNKED and a consecutive sequence number; the
+ * last one also carries FLAG_FINAL_CHUNK. Chunks are encrypted with their header as
+ * associated data, so they cannot be reordered, dropped or cut short unnoticed.
+ * The sender encrypts every chunk when the stream is created, so the chunks take
+ * consecutive cipher counters ahead of any later message on the session; the receiver
+ * holds one chunk of ciphertext at a time.
+ */
+class MessageStream {
+
+    static final int CHUNK_LENGTH = 16 * 1024;
+
+    // Bodies above this would not fit one bytes payload once framed and encrypted
+    static final int STREAM_THRESHOLD = PaymentTransport.MAX_BYTES_LENGTH - 1024;
+
+    // Per chunk: frame header, nonce and GCM tag
+    private static final int CHUNK_OVERHEAD = Frame.HEADER_LENGTH + 12 + 16;
+
+    // Incoming frames larger than this are rejected before being buffered
+    private static final int MAX_FRAME_BODY_LENGTH = CHUNK_LENGTH + 1024;
+
+    static boolean needsStream(int bodyLength) {
+        return bodyLength > STREAM_THRESHOLD;
+    }
+
+    static int chunkCount(int bodyLength) {
+        return Math.max(1, (bodyLength + CHUNK_LENGTH - 1) / CHUNK_LENGTH);
+    }
+
+    /**
+     * Approximate stream size for progress reporting (excludes any first-flight prefix)
+     */
+    static long encodedLength(int bodyLength) {
+        return bodyLength + (long) chunkCount(bodyLength) * CHUNK_OVERHEAD;
+    }
+
+    /**
+     * Stream of chunk frames for one message, using sequence numbers firstSeq onwards.
+     * All chunks are encrypted now; the first is passed through firstChunk (e.g. to add a
+     * handshake prefix). Only the first chunk carries FLAG_FIRST_FLIGHT.
+     */
+    static InputStream encrypt(SessionCipher cipher, byte type, byte flags, long firstSeq,
+                               byte[] body, UnaryOperator<byte[]> firstChunk) {
+        int chunks = chunkCount(body.length);
+        byte streamFlags = (byte) ((flags & ~Frame.FLAG_FIRST_FLIGHT) | Frame.FLAG_CHUNKED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) encodedLength(body.length));
+        for (int index = 0; index < chunks; index++) {
+            byte chunkFlags = streamFlags;
+            if (index == 0) {
+                chunkFlags |= flags & Frame.FLAG_FIRST_FLIGHT;
+            }
+            if (index == chunks - 1) {
+                chunkFlags |= Frame.FLAG_FINAL_CHUNK;
+            }
+            int start = index * CHUNK_LENGTH;
+            int end = Math.min(body.length, start + CHUNK_LENGTH);
+            byte[] encrypted = cipher.encrypt(Arrays.copyOfRange(body, start, end),
+                    Frame.associatedData(type, chunkFlags, firstSeq + index));
+            if (index == 0) {
+                encrypted = firstChunk.apply(encrypted);
+            }
+            byte[] frame = Frame.encode(type, chunkFlags, firstSeq + index, encrypted);
+            out.write(frame, 0, frame.length);
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    static boolean isFinal(Frame frame) {
+        return frame.hasFlag(Frame.FLAG_FINAL_CHUNK);
+    }
+
+    /**
+     * Check that a chunk continues the message started by first
+     */
+    static void checkContinuation(Frame first, Frame previous, Frame chunk) {
+        if (!chunk.hasFlag(Frame.FLAG_CHUNKED) || chunk.type != first.type) {
+            throw new IllegalArgumentException("Chunk does not belong to stream");
+        }
+        if (chunk.seq != previous.seq + 1) {
+            throw new IllegalArgumentException("Chunk out of sequence");
+        }
+        if (chunk.hasFlag(Frame.FLAG_FIRST_FLIGHT)
+                || chunk.hasFlag(Frame.FLAG_COMPRESSED) != first.hasFlag(Frame.FLAG_COMPRESSED)) {
+            throw new IllegalArgumentException("Chunk flags do not match stream");
+        }
+    }
+
+    /**
+     * Reads chunk frames off an incoming stream payload, one at a time
+     */
+    static class Reader implements Closeable {
+        private final DataInputStream in;
+
+        Reader(InputStream stream) {
+            this.in = new DataInputStream(stream);
+        }
+
+        /**
+         * Block until the next frame has fully arrived
+         */
+        Frame next() throws IOException {
+            byte[] header = new byte[Frame.HEADER_LENGTH];
+            in.readFully(header);
+            int length = ((header[8] & 0xFF) << 24) | ((header[9] & 0xFF) << 16)
+                    | ((header[10] & 0xFF) << 8) | (header[11] & 0xFF);
+            if (length < 0 || length > MAX_FRAME_BODY_LENGTH) {
+                throw new IOException("Chunk too large: " + length);
+            }
+            byte[] frame = Arrays.copyOf(header, Frame.HEADER_LENGTH + length);
+            in.readFully(frame, Frame.HEADER_LENGTH, length);
+            return Frame.decode(frame);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Collects decrypted chunk bodies into the message
+     */
+    static class Assembler {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        void add(byte[] plaintext) {
+            if (body.size() + plaintext.length > PayloadCompression.MAX_INFLATED_LENGTH) {
+                throw new IllegalArgumentException("Streamed message too large");
+            }
+            body.write(plaintext, 0, plaintext.length);
+        }
+
+        byte[] toByteArray() {
+            return body.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.cbdc.ble;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import com.example.cbdc.util.BluetoothHelper;
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.connection.AdvertisingOptions;
+import com.google.android.gms.nearby.connection.BandwidthInfo;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
+import com.google.android.gms.nearby.connection.ConnectionOptions;
+import com.google.android.gms.nearby.connection.ConnectionResolution;
+import com.google.android.gms.nearby.connection.ConnectionsClient;
+import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
+import com.google.android.gms.nearby.connection.DiscoveryOptions;
+import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import com.google.android.gms.nearby.connection.Strategy;
+
+import java.io.InputStream;
+
+/**
+ * PaymentTransport backed by Google Nearby Connections (BLE / Wi-Fi)
+ */
+public class NearbyTransport implements PaymentTransport {
+    // P2P_STAR: one merchant hub, payers connect as spokes. Connections start on Bluetooth
+    // and Nearby upgrades them to Wi-Fi in the background when both sides allow it.
+    private static final Strategy STRATEGY = Strategy.P2P_STAR;
+
+    private final Context context;
+    private final ConnectionsClient connectionsClient;
+    private final TransportMetrics metrics = TransportMetrics.getInstance();
+
+    public NearbyTransport(Context context) {
+        this.context = context.getApplicationContext();
+        this.connectionsClient = Nearby.getConnectionsClient(context);
+    }
+
+    @Override
+    public boolean canUpgradeBandwidth() {
+        return BluetoothHelper.hasWifiPermission(context);
+    }
+
+    @Override
+    public void startAdvertising(byte[] endpointInfo, String serviceId,
+                                 ConnectionListener connectionListener, ResultListener resultListener) {
+        AdvertisingOptions options = new AdvertisingOptions.Builder()
+                .setStrategy(STRATEGY)
+                .build();
+        connectionsClient.startAdvertising(endpointInfo, serviceId,
+                        lifecycleCallback(connectionListener), options)
+                .addOnSuccessListener(aVoid -> resultListener.onSuccess())
+                .addOnFailureListener(resultListener::onFailure);
+    }
+
+    @Override
+    public void stopAdvertising() {
+        connectionsClient.stopAdvertising();
+    }
+
+    @Override
+    public void startDiscovery(String serviceId, DiscoveryListener discoveryListener,
+                               ResultListener resultListener) {
+        startDiscovery(serviceId, discoveryListener, resultListener, false);
+    }
+
+    @Override
+    public void startLowPowerDiscovery(String serviceId, DiscoveryListener discoveryListener,
+                                       ResultListener resultListener) {
+        startDiscovery(serviceId, discoveryListener, resultListener, true);
+    }
+
+    private void startDiscovery(String serviceId, DiscoveryListener discoveryListener,
+                                ResultListener resultListener, boolean lowPower) {
+        DiscoveryOptions options = new DiscoveryOptions.Builder()
+                .setStrategy(STRATEGY)
+                .setLowPower(lowPower)
+                .build();
+        connectionsClient.startDiscovery(serviceId, new EndpointDiscoveryCallback() {
+                    @Override
+                    public void onEndpointFound(@NonNull String endpointId, @NonNull DiscoveredEndpointInfo info) {
+                        discoveryListener.onEndpointFound(endpointId, info.getEndpointName(),
+                                info.getEndpointInfo(), info.getServiceId());
+                    }
+
+                    @Override
+                    public void onEndpointLost(@NonNull String endpointId) {
+                        discoveryListener.onEndpointLost(endpointId);
+                    }
+                }, options)
+                .addOnSuccessListener(aVoid -> resultListener.onSuccess())
+                .addOnFailureListener(resultListener::onFailure);
+    }
+
+    @Override
+    public void stopDiscovery() {
+        connectionsClient.stopDiscovery();
+    }
+
+    @Override
+    public void requestConnection(String endpointName, String endpointId,
+                                  ConnectionListener connectionListener, ResultListener resultListener) {
+        // Disruptive upgrade may briefly take Wi-Fi from the phone's access point; only worth it
+        // when Wi-Fi mediums are permitted at all, otherwise the link stays on Bluetooth
+        ConnectionOptions options = new ConnectionOptions.Builder()
+                .setDisruptiveUpgrade(canUpgradeBandwidth())
+                .build();
+        connectionsClient.requestConnection(endpointName, endpointId,
+                        lifecycleCallback(connectionListener), options)
+                .addOnSuccessListener(aVoid -> resultListener.onSuccess())
+                .addOnFailureListener(resultListener::onFailure);
+    }
+
+    @Override
+    public void acceptConnection(String endpointId, PayloadListener payloadListener) {
+        connectionsClient.acceptConnection(endpointId, new PayloadCallback() {
+            @Override
+            public void onPayloadReceived(@NonNull String endpointId, @NonNull Payload payload) {
+                metrics.onPayloadReceived(endpointId, payload.getId());
+                if (payload.getType() == Payload.Type.BYTES) {
+                    payloadListener.onBytesReceived(endpointId, payload.asBytes());
+                } else if (payload.getType() == Payload.Type.STREAM) {
+                    payloadListener.onStreamReceived(endpointId, payload.getId(),
+                            payload.asStream().asInputStream());
+                }
+            }
+
+            @Override
+            public void onPayloadTransferUpdate(@NonNull String endpointId, @NonNull PayloadTransferUpdate update) {
+                TransferStatus status = transferStatus(update.getStatus());
+                metrics.onTransferUpdate(endpointId, update.getPayloadId(), status,
+                        update.getBytesTransferred(), update.getTotalBytes());
+                payloadListener.onTransferUpdate(endpointId, update.getPayloadId(), status,
+                        update.getBytesTransferred(), update.getTotalBytes());
+            }
+        });
+    }
+
+    @Override
+    public void rejectConnection(String endpointId) {
+        connectionsClient.rejectConnection(endpointId);
+    }
+
+    @Override
+    public void sendBytes(String endpointId, byte[] data) {
+        Payload payload = Payload.fromBytes(data);
+        metrics.onPayloadQueued(endpointId, payload.getId(), data.length);
+        connectionsClient.sendPayload(endpointId, payload);
+    }
+
+    @Override
+    public long sendStream(String endpointId, InputStream data) {
+        Payload payload = Payload.fromStream(data);
+        metrics.onPayloadQueued(endpointId, payload.getId(), -1);
+        connectionsClient.sendPayload(endpointId, payload);
+        return payload.getId();
+    }
+
+    @Override
+    public void disconnectFromEndpoint(String endpointId) {
+        connectionsClient.disconnectFromEndpoint(endpointId);
+    }
+
+    @Override
+    public void stopAllEndpoints() {
+        connectionsClient.stopAllEndpoints();
+    }
+
+    private static TransferStatus transferStatus(int status) {
+        switch (status) {
+            case PayloadTransferUpdate.Status.SUCCESS:
+                return TransferStatus.SUCCESS;
+            case PayloadTransferUpdate.Status.FAILURE:
+                return TransferStatus.FAILURE;
+            case PayloadTransferUpdate.Status.CANCELED:
+                return TransferStatus.CANCELED;
+            default:
+                return TransferStatus.IN_PROGRESS;
+        }
+    }
+
+    private static PaymentTransport.Medium medium(int quality) {
+        switch (quality) {
+            case BandwidthInfo.Quality.HIGH:
+                return PaymentTransport.Medium.WIFI;
+            case BandwidthInfo.Quality.MEDIUM:
+                return PaymentTransport.Medium.BLUETOOTH;
+            case BandwidthInfo.Quality.LOW:
+                return PaymentTransport.Medium.BLE;
+            default:
+                return PaymentTransport.Medium.UNKNOWN;
+        }
+    }
+
+    private ConnectionLifecycleCallback lifecycleCallback(ConnectionListener listener) {
+        return new ConnectionLifecycleCallback() {
+            @Override
+            public void onConnectionInitiated(@NonNull String endpointId, @NonNull ConnectionInfo connectionInfo) {
+                listener.onConnectionInitiated(endpointId, connectionInfo.getEndpointName());
+            }
+
+            @Override
+            public void onConnectionResult(@NonNull String endpointId, @NonNull ConnectionResolution result) {
+                listener.onConnectionResult(endpointId, result.getStatus().isSuccess(),
+                        String.valueOf(result.getStatus()));
+            }
+
+            @Override
+            public void onDisconnected(@NonNull String endpointId) {
+                metrics.onDisconnected(endpointId);
+                listener.onDisconnected(endpointId);
+            }
+
+            @Override
+            public void onBandwidthChanged(@NonNull String endpointId, @NonNull BandwidthInfo bandwidthInfo) {
+                listener.onBandwidthChanged(endpointId, medium(bandwidthInfo.getQuality()));
+            }
+        };
+    }
+}
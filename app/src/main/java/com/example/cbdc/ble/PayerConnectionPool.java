@@ -0,0 +1,177 @@
+package com.example.cbdc.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps authenticated merchant connections alive between payments, one per posId.
+ * A repeat payment to the same POS (regular customer, kiosk) reuses the session
+ * with no discovery, connection or handshake. Idle connections are closed after
+ * the idle timeout, and a pooled connection is dropped if the QR for its POS now
+ * carries a different merchant key (device replaced or key rotated).
+ * Use from the main thread, like PayerNearbyClient.
+ */
+public class PayerConnectionPool {
+    private static final String TAG = "PayerConnectionPool";
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60_000;
+
+    private static final PayerConnectionPool instance = new PayerConnectionPool();
+
+    private final Map<String, Entry> connections = new HashMap<>(); // posId -> pooled connection
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    private static class Entry {
+        final PayerNearbyClient client;
+        final long merchantFingerprint;
+        final Runnable idleEviction;
+
+        Entry(PayerNearbyClient client, long merchantFingerprint, Runnable idleEviction) {
+            this.client = client;
+            this.merchantFingerprint = merchantFingerprint;
+            this.idleEviction = idleEviction;
+        }
+    }
+
+    public static PayerConnectionPool getInstance() {
+        return instance;
+    }
+
+    private PayerConnectionPool() {
+    }
+
+    /**
+     * How long a released connection stays open; 0 disables pooling and closes all
+     */
+    public synchronized void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+        if (idleTimeoutMs <= 0) {
+            evictAll();
+        }
+    }
+
+    /**
+     * Take the pooled connection to this merchant, now reporting to callback, or
+     * null if there is none (or it no longer matches the merchant in the QR)
+     */
+    public synchronized PayerNearbyClient acquire(String posId, PublicKey merchantKey,
+                                                  PayerNearbyClient.PayerCallback callback) {
+        Entry entry = connections.remove(posId);
+        if (entry == null) {
+            return null;
+        }
+        handler.removeCallbacks(entry.idleEviction);
+        if (merchantKey == null || entry.merchantFingerprint != EndpointInfo.fingerprint(merchantKey)) {
+            Log.d(TAG, "⚠ Merchant key for " + posId + " changed, closing pooled connection");
+            entry.client.disconnect();
+            return null;
+        }
+        if (!entry.client.isConnected()) {
+            Log.d(TAG, "Pooled connection to " + posId + " already closed");
+            return null;
+        }
+        entry.client.setCallback(callback);
+        Log.d(TAG, "✓ Reusing connection to " + posId + " (no discovery or handshake)");
+        return entry.client;
+    }
+
+    /**
+     * Hand back a connection after a completed payment. It is kept for the idle
+     * timeout if pooling is on and the session is still up, otherwise closed.
+     */
+    public synchronized void release(String posId, PublicKey merchantKey, PayerNearbyClient client) {
+        if (idleTimeoutMs <= 0 || merchantKey == null || !client.isConnected()) {
+            client.disconnect();
+            return;
+        }
+        Entry previous = connections.get(posId);
+        if (previous != null && previous.client != client) {
+            evict(posId);
+        }
+        Runnable idleEviction = () -> {
+            Log.d(TAG, "Connection to " + posId + " idle for " + idleTimeoutMs + " ms, closing");
+            evict(posId);
+        };
+        connections.put(posId, new Entry(client, EndpointInfo.fingerprint(merchantKey), idleEviction));
+        client.setCallback(idleCallback(posId, client));
+        handler.postDelayed(idleEviction, idleTimeoutMs);
+        Log.d(TAG, "→ Keeping connection to " + posId + " for " + idleTimeoutMs + " ms");
+    }
+
+    public synchronized void evictAll() {
+        for (String posId : new ArrayList<>(connections.keySet())) {
+            evict(posId);
+        }
+    }
+
+    private synchronized void evict(String posId) {
+        Entry entry = connections.remove(posId);
+        if (entry != null) {
+            handler.removeCallbacks(entry.idleEviction);
+            entry.client.disconnect();
+        }
+    }
+
+    /**
+     * Forget a pooled connection once the merchant drops it
+     */
+    private synchronized void onPooledConnectionLost(String posId, PayerNearbyClient client) {
+        Entry entry = connections.get(posId);
+        if (entry != null && entry.client == client) {
+            Log.d(TAG, "⚠ Pooled connection to " + posId + " lost");
+            evict(posId);
+        }
+    }
+
+    /**
+     * Callback while a connection sits in the pool, with no activity attached
+     */
+    private PayerNearbyClient.PayerCallback idleCallback(String posId, PayerNearbyClient client) {
+        return new PayerNearbyClient.PayerCallback() {
+            @Override
+            public void onPaymentSent() {
+            }
+
+            @Override
+            public void onTransferProgress(long bytesSent, long totalBytes) {
+            }
+
+            @Override
+            public void onPaymentAccepted(JSONObject acceptReceipt) {
+            }
+
+            // Posted: these may arrive holding the client's lock, while the pool locks pool then client
+            @Override
+            public void onError(String error) {
+                Log.w(TAG, "Pooled connection to " + posId + " failed: " + error);
+                handler.post(() -> onPooledConnectionLost(posId, client));
+            }
+
+            @Override
+            public void onConnected() {
+            }
+
+            @Override
+            public void onDisconnected() {
+                handler.post(() -> onPooledConnectionLost(posId, client));
+            }
+
+            @Override
+            public void onEndpointDiscovered(String endpointId, String endpointName, String serviceId) {
+            }
+
+            @Override
+            public void onEndpointLost(String endpointId) {
+            }
+        };
+    }
+}
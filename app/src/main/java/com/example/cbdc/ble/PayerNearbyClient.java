@@ -3,65 +3,193 @@ package com.example.cbdc.ble;
 import android.content.Context;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
 import com.example.cbdc.crypto.CryptoUtil;
 import com.example.cbdc.crypto.DeviceKeyManager;
+import com.example.cbdc.crypto.EphemeralKeyPool;
+import com.example.cbdc.crypto.SessionCipher;
+import com.example.cbdc.crypto.SigningCertificate;
 import com.example.cbdc.token.Token;
 import com.example.cbdc.token.TokenManager;
 import com.example.cbdc.util.Base64Util;
+import com.example.cbdc.util.EventLog;
 import com.example.cbdc.util.JsonUtil;
-import com.google.android.gms.nearby.Nearby;
-import com.google.android.gms.nearby.connection.ConnectionInfo;
-import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
-import com.google.android.gms.nearby.connection.ConnectionResolution;
-import com.google.android.gms.nearby.connection.ConnectionsClient;
-import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
-import com.google.android.gms.nearby.connection.DiscoveryOptions;
-import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
-import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.PayloadCallback;
-import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
-import com.google.android.gms.nearby.connection.Strategy;
+import com.example.cbdc.util.MerchantEndpoint;
+import com.example.cbdc.util.PaymentTrace;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.InputStream;
 import java.security.KeyPair;
 import java.security.PublicKey;
-
-import javax.crypto.SecretKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Payer Nearby Client - Handles sending payments via Google Nearby Connections API
- * Replaces the old PayerBleClient with a more reliable implementation
+ * Replaces the old PayerBleClient with a more reliable implementation.
+ * The radio is behind PaymentTransport, so the same protocol runs over loopback.
  */
 public class PayerNearbyClient {
     private static final String TAG = "PayerNearbyClient";
     private static final String SERVICE_ID = "com.example.cbdc.CBDC_SERVICE";
-    private static final Strategy STRATEGY = Strategy.P2P_STAR;
     
-    private final Context context;
-    private final ConnectionsClient connectionsClient;
+    private final PaymentTransport transport;
     private final DeviceKeyManager deviceKeyManager;
     private final TokenManager tokenManager;
-    private final PayerCallback callback;
+    private volatile PayerCallback callback;
     
     // Ephemeral keys for session encryption
     private KeyPair ephemeralKeyPair;
-    private SecretKey sessionKey;
+    private SessionCipher session;
     private PublicKey merchantPublicKey;
     private String connectedEndpointId;
     
-    // State tracking
+    // 0-RTT: session key pre-derived from the merchant ephemeral key in the QR
+    private PublicKey qrMerchantEphemeralKey;
+    private SessionCipher zeroRttSession;
+    
+    // Resumption: session key derived from a cached ticket for this merchant
+    private SessionCipher resumeSession;
+    private byte[] resumeTicket;
+    private byte[] resumeNonce;
+    private boolean awaitingResumeConfirmation = false;
+    private final List<OutboundMessage> unconfirmedMessages = new ArrayList<>();
+    
+    // Handshake header to prepend to the next encrypted message (0 = none)
+    private byte firstFlightType = 0;
+    
+    // Features shared with the merchant; NONE keeps the original protocol
+    private int capabilities = Capabilities.NONE;
+    private int merchantAdvertisedCapabilities = Capabilities.NONE; // as signed in the QR
+    
+    // Binary framing; sequence numbers restart with each connection
+    private long sendSeq = 0;
+    private long lastReceivedSeq = -1;
+    
+    // Outgoing stream payload whose progress is reported to the callback (-1 = none)
+    private long outgoingStreamId = -1;
+    private long outgoingStreamLength;
+    
+    // Nearby does not order bytes payloads against a stream, so while one of our streams is
+    // still being sent every other message on the session waits here (-1 = none draining)
+    private long drainingStreamId = -1;
+    private final Deque<OutboundMessage> heldBehindStream = new ArrayDeque<>();
+    
+    // Incoming streams are read here so the callback thread never blocks on I/O
+    private static final ExecutorService streamReader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "PayerStreamReader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Merchants seen by discovery, so a scanned posId can connect without discovering again
+    private MerchantEndpointCache endpointCache = new MerchantEndpointCache();
+    
+    // Payment protocol state; each active state fails the payment if it outlasts its timeout
+    private State state = State.IDLE;
+    private ScheduledFuture<?> stateTimeout;
+    private PaymentTrace.Span phaseSpan; // trace span of the current state, if it is a traced phase
+    private long stateEpoch = 0;
+    private static final ScheduledExecutorService stateTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "PayerStateTimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Radio and session flags underneath the protocol state
     private boolean isDiscovering = false;
+    private boolean isLowPowerDiscovery = false;
     private boolean isKeyExchangeComplete = false;
     
-    // Payment data to send after key exchange
-    private Token pendingToken;
-    private String pendingPosId;
+    // Payments waiting for the session (or for the previous payment's ACCEPT), oldest first
+    static final int MAX_QUEUED_PAYMENTS = 4;
+    private final Deque<PendingPayment> pendingPayments = new ArrayDeque<>();
+    private final List<OutboundMessage> pendingMessages = new ArrayList<>();
+    
+    // Transfer ids of the payment in flight still waiting for an ACCEPT (one per token without batching)
+    private final Set<String> awaitingTransferIds = new HashSet<>();
+    
+    // Sent payments not yet acknowledged, resent when a session to their POS comes up
+    private final PaymentOutbox outbox;
+    private String merchantPosId;
+    
+    // Merchant identity key from the signed QR; ACCEPT receipts must chain to it
+    private PublicKey merchantIdentityKey;
+    
+    // One reconnect per payment if the link drops before the ACCEPT
+    private String lastEndpointId;
+    private boolean reconnecting = false;
+    
+    // Large payments wait briefly for Nearby to move the link off Bluetooth before streaming
+    static final int LARGE_TRANSFER_BYTES = 64 * 1024;
+    static final long UPGRADE_WAIT_MS = 3000;
+    private final LinkStats linkStats = new LinkStats();
+    private Runnable heldSend; // payment waiting for the upgrade or the end of the wait
+    
+    /**
+     * Payment protocol states. The timeouts are sized per step instead of one overall
+     * deadline, so a lost merchant or stalled handshake fails as soon as that step overruns.
+     */
+    public enum State {
+        IDLE(0, null),
+        DISCOVERING(20_000, "Merchant not found. Please ensure merchant device is nearby and try again."),
+        CONNECTING(10_000, "Connection to merchant timed out"),
+        HANDSHAKING(5_000, "Secure session setup timed out"),
+        READY(0, null),           // session up, waiting for the payer to enter an amount
+        SENDING(15_000, "Sending payment timed out"), // re-armed by stream progress
+        AWAITING_ACCEPT(10_000, "Merchant did not confirm the payment in time"),
+        DONE(0, null),
+        FAILED(0, null);
+        
+        final long timeoutMs;
+        final String timeoutError;
+        
+        State(long timeoutMs, String timeoutError) {
+            this.timeoutMs = timeoutMs;
+            this.timeoutError = timeoutError;
+        }
+    }
+    
+    /**
+     * Signed payment waiting for the session; its messages are already in the outbox
+     */
+    private static class PendingPayment {
+        final List<PaymentOutbox.Entry> messages;
+        final int tokenCount;
+        
+        PendingPayment(List<PaymentOutbox.Entry> messages, int tokenCount) {
+            this.messages = messages;
+            this.tokenCount = tokenCount;
+        }
+    }
+    
+    /**
+     * Encrypted message kept for resending after a rejected resumption
+     */
+    private static class OutboundMessage {
+        final byte type;
+        final byte[] plaintext;
+        
+        OutboundMessage(byte type, byte[] plaintext) {
+            this.type = type;
+            this.plaintext = plaintext;
+        }
+    }
     
     public interface PayerCallback {
         void onPaymentSent();
+        void onTransferProgress(long bytesSent, long totalBytes);
         void onPaymentAccepted(JSONObject acceptReceipt);
         void onError(String error);
         void onConnected();
@@ -74,327 +202,1301 @@ public class PayerNearbyClient {
                             DeviceKeyManager deviceKeyManager,
                             TokenManager tokenManager,
                             PayerCallback callback) {
-        this.context = context;
+        this(context, deviceKeyManager, tokenManager, callback, new NearbyTransport(context));
+    }
+    
+    public PayerNearbyClient(Context context,
+                            DeviceKeyManager deviceKeyManager,
+                            TokenManager tokenManager,
+                            PayerCallback callback,
+                            PaymentTransport transport) {
+        this(deviceKeyManager, tokenManager, callback, transport, new PaymentOutbox(context));
+    }
+    
+    PayerNearbyClient(DeviceKeyManager deviceKeyManager,
+                      TokenManager tokenManager,
+                      PayerCallback callback,
+                      PaymentTransport transport,
+                      PaymentOutbox outbox) {
         this.deviceKeyManager = deviceKeyManager;
         this.tokenManager = tokenManager;
         this.callback = callback;
-        this.connectionsClient = Nearby.getConnectionsClient(context);
+        this.transport = transport;
+        this.outbox = outbox;
         
-        // Generate ephemeral key pair for session
-        ephemeralKeyPair = CryptoUtil.generateX25519KeyPair();
+        // Take a pre-generated ephemeral key pair for the session
+        ephemeralKeyPair = EphemeralKeyPool.take();
+    }
+    
+    /**
+     * Redirect callbacks, e.g. when a pooled connection is handed to a new screen
+     */
+    public void setCallback(PayerCallback callback) {
+        this.callback = callback;
+    }
+    
+    public synchronized State getState() {
+        return state;
+    }
+    
+    /**
+     * True while connected with an established session, so payments go out immediately
+     */
+    public boolean isConnected() {
+        return connectedEndpointId != null && session != null && isKeyExchangeComplete;
+    }
+    
+    /**
+     * Medium and measured throughput of the current connection
+     */
+    public LinkStats getLinkStats() {
+        return linkStats;
+    }
+    
+    /**
+     * Merchant from the verified QR. Unacknowledged payments to this POS are resent once the
+     * session is up, and only receipts signed under its identity key are accepted.
+     */
+    public synchronized void setMerchant(String posId, PublicKey identityKey) {
+        this.merchantPosId = posId;
+        this.merchantIdentityKey = identityKey;
+    }
+    
+    /**
+     * Set the capabilities the merchant advertised in its QR.
+     * Call first: resumption, 0-RTT, framing and batching are only used if the merchant supports them.
+     */
+    public void setMerchantCapabilities(int merchantCapabilities) {
+        merchantAdvertisedCapabilities = merchantCapabilities;
+        capabilities = Capabilities.negotiate(Capabilities.LOCAL, merchantCapabilities);
+        if (EventLog.VERBOSE) {
+            Log.d(TAG, "Merchant capabilities " + Capabilities.toString(merchantCapabilities)
+                    + ", using " + Capabilities.toString(capabilities));
+        }
+    }
+    
+    private boolean isFramed() {
+        return Capabilities.has(capabilities, Capabilities.FRAMING);
+    }
+    
+    /**
+     * Capability words of a first flight keyed from the QR: ours as we send them, the
+     * merchant's as signed in the QR. Unframed first flights carry none.
+     */
+    private byte[] firstFlightCapabilityWords() {
+        return isFramed()
+                ? Capabilities.transcriptWords(Capabilities.LOCAL, merchantAdvertisedCapabilities)
+                : new byte[0];
+    }
+    
+    /**
+     * Resume a previous session with this merchant if a ticket is cached.
+     * Call before enableZeroRtt so the ECDH can be skipped entirely.
+     */
+    public boolean enableResumption(String posId) {
+        if (!Capabilities.has(capabilities, Capabilities.RESUMPTION)) {
+            return false;
+        }
+        SessionResumption.CachedTicket ticket = SessionResumption.takeTicket(posId);
+        if (ticket == null) {
+            return false;
+        }
+        resumeTicket = ticket.ticket;
+        resumeNonce = SessionResumption.generateNonce();
+        resumeSession = SessionResumption.resumedSession(
+                ticket.resumptionSecret, resumeTicket, resumeNonce, firstFlightCapabilityWords(), true);
+        if (EventLog.VERBOSE) {
+            Log.d(TAG, "✓ Resumption ticket available for POS: " + posId);
+        }
+        return true;
+    }
+    
+    /**
+     * Enable 0-RTT using the merchant's signed ephemeral key from the QR.
+     * The session key is derived now, so no key exchange round trip is needed after connecting.
+     * When resuming, derivation is deferred until the merchant rejects the ticket.
+     */
+    public void enableZeroRtt(PublicKey qrMerchantEphemeralKey) {
+        if (!Capabilities.has(capabilities, Capabilities.ZERO_RTT)) {
+            Log.d(TAG, "Merchant does not support 0-RTT, using full key exchange");
+            return;
+        }
+        this.qrMerchantEphemeralKey = qrMerchantEphemeralKey;
+        if (resumeSession == null) {
+            deriveZeroRttSession();
+        }
+    }
+    
+    private void deriveZeroRttSession() {
+        try {
+            byte[] sharedSecret = CryptoUtil.performECDH(
+                    ephemeralKeyPair.getPrivate(),
+                    qrMerchantEphemeralKey
+            );
+            byte[] transcript = HandshakeMessages.transcript(
+                    firstFlightCapabilityWords(),
+                    CryptoUtil.encodePublicKey(ephemeralKeyPair.getPublic()),
+                    CryptoUtil.encodePublicKey(qrMerchantEphemeralKey));
+            zeroRttSession = CryptoUtil.deriveSessionCipher(
+                    sharedSecret, transcript, HandshakeMessages.ZERO_RTT_INFO, true);
+            merchantPublicKey = qrMerchantEphemeralKey;
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "✓ 0-RTT session keys pre-derived from QR");
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "0-RTT unavailable, falling back to key exchange", e);
+            zeroRttSession = null;
+        }
     }
     
     public void startDiscovery() {
+        if (isDiscovering && isLowPowerDiscovery) {
+            // A payment is waiting on discovery now; scan at full duty cycle
+            Log.d(TAG, "→ Switching background discovery to full power");
+            stopDiscovery();
+        }
         if (isDiscovering) {
             Log.d(TAG, "Discovery already in progress");
             return;
         }
         
-        // Log diagnostic info
-        Log.d(TAG, "========== Starting BLE Discovery ==========");
-        Log.d(TAG, "Service ID: " + SERVICE_ID);
-        Log.d(TAG, "Strategy: " + STRATEGY);
-        Log.d(TAG, "Context: " + context.getClass().getSimpleName());
-        
-        DiscoveryOptions options = new DiscoveryOptions.Builder()
-                .setStrategy(STRATEGY)
-                .build();
-        
-        Log.d(TAG, "Calling Nearby.startDiscovery()...");
-        
-        connectionsClient.startDiscovery(
-                SERVICE_ID,
-                endpointDiscoveryCallback,
-                options
-        )
-        .addOnSuccessListener(aVoid -> {
-            Log.d(TAG, "✓✓ Discovery started successfully!");
-            Log.d(TAG, "Now scanning for devices advertising: " + SERVICE_ID);
-            isDiscovering = true;
-        })
-        .addOnFailureListener(e -> {
-            Log.e(TAG, "✗✗ Discovery FAILED!");
-            Log.e(TAG, "Error: " + e.getMessage(), e);
-            Log.e(TAG, "Error class: " + e.getClass().getName());
+        if (EventLog.VERBOSE) {
+            Log.d(TAG, "Starting discovery on " + SERVICE_ID + " via " + transport.getClass().getSimpleName());
+        }
+        
+        transport.startDiscovery(SERVICE_ID, discoveryListener, new PaymentTransport.ResultListener() {
+            @Override
+            public void onSuccess() {
+                EventLog.record(EventLog.Event.DISCOVERY_STARTED, 0);
+                isDiscovering = true;
+                isLowPowerDiscovery = false;
+            }
             
-            String errorMsg = "Failed to start discovery: ";
-            if (e.getMessage() != null) {
-                if (e.getMessage().contains("BLUETOOTH")) {
-                    errorMsg += "Bluetooth permission denied or not enabled";
-                } else if (e.getMessage().contains("LOCATION")) {
-                    errorMsg += "Location permission required";
-                } else if (e.getMessage().contains("8029")) {
-                    errorMsg += "NEARBY_WIFI_DEVICES permission missing (Android 13+). Grant permission or use BLE-only mode.";
-                } else {
-                    errorMsg += e.getMessage();
-                }
-            } else {
-                errorMsg += "Unknown error";
+            @Override
+            public void onFailure(Exception e) {
+                onDiscoveryFailed(e);
+            }
+        });
+    }
+    
+    /**
+     * The scanned merchant is not cached yet: keep discovering, and fail if it is not
+     * found within the DISCOVERING timeout
+     */
+    public synchronized void awaitMerchant() {
+        if (state != State.IDLE && state != State.DONE && state != State.FAILED) {
+            return;
+        }
+        transition(State.DISCOVERING);
+        startDiscovery();
+    }
+    
+    /**
+     * Low duty cycle discovery that only fills the endpoint cache, started before a QR is scanned
+     */
+    public void startBackgroundDiscovery() {
+        if (isDiscovering) {
+            return;
+        }
+        transport.startLowPowerDiscovery(SERVICE_ID, discoveryListener, new PaymentTransport.ResultListener() {
+            @Override
+            public void onSuccess() {
+                EventLog.record(EventLog.Event.DISCOVERY_STARTED, 1);
+                isDiscovering = true;
+                isLowPowerDiscovery = true;
             }
             
-            if (callback != null) {
-                callback.onError(errorMsg);
+            @Override
+            public void onFailure(Exception e) {
+                // Not fatal: startDiscovery() still runs once the QR is scanned
+                Log.w(TAG, "⚠ Background discovery failed: " + e.getMessage());
             }
         });
     }
     
+    /**
+     * Share a cache with earlier clients, e.g. one that ran background discovery before the QR scan
+     */
+    public void setEndpointCache(MerchantEndpointCache endpointCache) {
+        this.endpointCache = endpointCache;
+    }
+    
+    /**
+     * Endpoint recently discovered for the merchant in the QR, or null if it has to be discovered
+     */
+    public MerchantEndpoint getCachedEndpoint(String posId, PublicKey merchantKey) {
+        return endpointCache.get(posId, merchantKey);
+    }
+    
+    private void onDiscoveryFailed(Exception e) {
+        Log.e(TAG, "✗✗ Discovery FAILED!");
+        Log.e(TAG, "Error: " + e.getMessage(), e);
+        Log.e(TAG, "Error class: " + e.getClass().getName());
+        
+        String errorMsg = "Failed to start discovery: ";
+        if (e.getMessage() != null) {
+            if (e.getMessage().contains("BLUETOOTH")) {
+                errorMsg += "Bluetooth permission denied or not enabled";
+            } else if (e.getMessage().contains("LOCATION")) {
+                errorMsg += "Location permission required";
+            } else if (e.getMessage().contains("8029")) {
+                errorMsg += "NEARBY_WIFI_DEVICES permission missing (Android 13+). Grant permission or use BLE-only mode.";
+            } else {
+                errorMsg += e.getMessage();
+            }
+        } else {
+            errorMsg += "Unknown error";
+        }
+        
+        if (state == State.DISCOVERING) {
+            fail(errorMsg);
+        } else if (callback != null) {
+            callback.onError(errorMsg);
+        }
+    }
+    
     public void stopDiscovery() {
         if (isDiscovering) {
-            connectionsClient.stopDiscovery();
+            transport.stopDiscovery();
             isDiscovering = false;
+            isLowPowerDiscovery = false;
             Log.d(TAG, "Discovery stopped");
         }
     }
     
-    public void disconnect() {
+    public synchronized void disconnect() {
+        enterState(State.IDLE);
+        // Queued payments stay in the outbox and go out on the next session to their POS
+        pendingPayments.clear();
+        awaitingTransferIds.clear();
+        reconnecting = false;
+        heldSend = null;
+        drainingStreamId = -1;
+        heldBehindStream.clear();
         stopDiscovery();
         if (connectedEndpointId != null) {
-            connectionsClient.disconnectFromEndpoint(connectedEndpointId);
+            transport.disconnectFromEndpoint(connectedEndpointId);
             connectedEndpointId = null;
         }
-        sessionKey = null;
+        session = null;
         merchantPublicKey = null;
         isKeyExchangeComplete = false;
+        firstFlightType = 0;
+        awaitingResumeConfirmation = false;
+        unconfirmedMessages.clear();
     }
     
     /**
      * Connect directly to a known endpoint (from cache)
      * Used for instant connection when merchant already discovered
      */
-    public void connectToEndpoint(String endpointId, String endpointName) {
-        Log.d(TAG, "========== CONNECTING TO CACHED ENDPOINT ==========");
-        Log.d(TAG, "Endpoint ID: " + endpointId);
-        Log.d(TAG, "Endpoint Name: " + endpointName);
+    public synchronized void connectToEndpoint(String endpointId, String endpointName) {
+        EventLog.record(EventLog.Event.CONNECTING, EventLog.id(endpointId));
+        if (EventLog.VERBOSE) {
+            Log.d(TAG, "Connecting to cached endpoint " + endpointName + " (" + endpointId + ")");
+        }
         
         // Stop discovery since we're connecting directly
         stopDiscovery();
+        transition(State.CONNECTING);
         
         // Request connection
-        connectionsClient.requestConnection(
-                "CBDC-Payer",
-                endpointId,
-                connectionLifecycleCallback
-        )
-        .addOnSuccessListener(aVoid -> {
-            Log.d(TAG, "✓ Connection request sent to cached merchant");
-        })
-        .addOnFailureListener(e -> {
-            Log.e(TAG, "✗ Failed to connect to cached endpoint: " + e.getMessage(), e);
-            if (callback != null) {
-                callback.onError("Failed to connect to merchant: " + e.getMessage());
+        transport.requestConnection("CBDC-Payer", endpointId, connectionListener,
+                new PaymentTransport.ResultListener() {
+            @Override
+            public void onSuccess() {
+                if (EventLog.VERBOSE) {
+                    Log.d(TAG, "✓ Connection request sent to cached merchant");
+                }
+            }
+            
+            @Override
+            public void onFailure(Exception e) {
+                Log.e(TAG, "✗ Failed to connect to cached endpoint: " + e.getMessage(), e);
+                fail("Failed to connect to merchant: " + e.getMessage());
             }
         });
     }
     
-    public void sendTokenTransfer(Token token, String posId) {
-        // Store payment data if key exchange not complete yet
-        if (!isKeyExchangeComplete || sessionKey == null || connectedEndpointId == null) {
-            Log.d(TAG, "Key exchange not complete yet, storing payment data for later");
-            pendingToken = token;
-            pendingPosId = posId;
-            return;
+    /**
+     * Send all tokens of one payment as a single TOKEN_BATCH message.
+     * The payment is signed and written to the outbox now, so once this returns true the
+     * tokens can leave the wallet: a dropped connection or queue only delays delivery.
+     * Queued until the session is up and earlier payments are accepted; returns false
+     * (and reports an error) if the queue is full or the payment could not be prepared.
+     */
+    public synchronized boolean sendTokenBatch(List<Token> tokens, String posId) {
+        if (pendingPayments.size() >= MAX_QUEUED_PAYMENTS) {
+            Log.w(TAG, "✗ Outbound queue full, rejecting payment");
+            if (callback != null) {
+                callback.onError("Too many payments waiting, please retry");
+            }
+            return false;
+        }
+        if (merchantPosId == null) {
+            merchantPosId = posId;
+        }
+        try {
+            pendingPayments.add(preparePayment(tokens, posId));
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to prepare payment", e);
+            if (callback != null) {
+                callback.onError("Failed to prepare payment: " + e.getMessage());
+            }
+            return false;
+        }
+        sendNextPayment();
+        return true;
+    }
+    
+    /**
+     * Sign the transfers of one payment and record them in the outbox: one TOKEN_BATCH
+     * message, or one TOKEN_TRANSFER per token if the merchant does not batch
+     */
+    private PendingPayment preparePayment(List<Token> tokens, String posId) throws Exception {
+        DeviceKeyManager.SessionSigningKey signingKey = deviceKeyManager.getSessionSigningKey();
+        List<PaymentOutbox.Entry> messages = new ArrayList<>();
+        if (!Capabilities.has(capabilities, Capabilities.BATCH)) {
+            for (Token token : tokens) {
+                JSONObject message = new JSONObject();
+                message.put("type", "TOKEN_TRANSFER");
+                message.put("token", token.getTokenData());
+                try (PaymentTrace.Span ignored = PaymentTrace.section(PaymentTrace.Phase.SIGNING)) {
+                    message.put("transfer", createTransfer(signingKey, token, posId, null));
+                }
+                // The token serial is the transfer id of a single-token message
+                messages.add(new PaymentOutbox.Entry(token.getSerial(), posId, Frame.TOKEN_TRANSFER,
+                        JsonUtil.toBytes(message)));
+            }
+        } else {
+            String batchId = UUID.randomUUID().toString();
+            
+            // One signed transfer per token, all carried in one message
+            JSONArray items = new JSONArray();
+            try (PaymentTrace.Span ignored = PaymentTrace.section(PaymentTrace.Phase.SIGNING)) {
+                for (Token token : tokens) {
+                    JSONObject item = new JSONObject();
+                    item.put("token", token.getTokenData());
+                    item.put("transfer", createTransfer(signingKey, token, posId, batchId));
+                    items.put(item);
+                }
+            }
+            
+            JSONObject message = new JSONObject();
+            message.put("type", "TOKEN_BATCH");
+            message.put("batch_id", batchId);
+            message.put("items", items);
+            messages.add(new PaymentOutbox.Entry(batchId, posId, Frame.TOKEN_BATCH, JsonUtil.toBytes(message)));
         }
         
-        // Send payment immediately if ready
-        sendPaymentInternal(token, posId);
+        // Kept until the ACCEPT arrives; the transfer id makes a resend idempotent
+        outbox.addAll(messages);
+        return new PendingPayment(messages, tokens.size());
     }
     
-    private void sendPaymentInternal(Token token, String posId) {
-        if (sessionKey == null || connectedEndpointId == null) {
-            Log.e(TAG, "Cannot send payment - no session");
-            if (callback != null) {
-                callback.onError("Not connected or session not established");
+    /**
+     * Start the oldest queued payment if the session is idle
+     */
+    private void sendNextPayment() {
+        if (pendingPayments.isEmpty() || !isConnected()
+                || (state != State.READY && state != State.DONE)) {
+            if (!pendingPayments.isEmpty() && EventLog.VERBOSE) {
+                Log.d(TAG, "Payment queued (" + pendingPayments.size() + ") while " + state);
             }
             return;
         }
+        sendPaymentInternal(pendingPayments.poll());
+    }
+    
+    private void sendPaymentInternal(PendingPayment payment) {
+        if (session == null || connectedEndpointId == null) {
+            Log.e(TAG, "Cannot send payment - no session");
+            fail("Not connected or session not established");
+            return;
+        }
         
+        transition(State.SENDING);
         try {
-            KeyPair deviceKey = deviceKeyManager.getOrCreateDeviceKey();
-            
-            // Create transfer message
-            JSONObject transfer = new JSONObject();
-            transfer.put("type", "TOKEN_TRANSFER");
-            transfer.put("token_serial", token.getSerial());
-            transfer.put("pos_id", posId);
-            transfer.put("timestamp", System.currentTimeMillis());
-            transfer.put("payer_public_key", Base64Util.encode(
-                    CryptoUtil.encodePublicKey(deviceKey.getPublic())
-            ));
-            
-            // Sign transfer
-            String transferData = transfer.toString();
-            byte[] signature = CryptoUtil.sign(deviceKey.getPrivate(), transferData.getBytes());
-            transfer.put("signature", Base64Util.encode(signature));
-            
-            // Create complete message
-            JSONObject message = new JSONObject();
-            message.put("type", "TOKEN_TRANSFER");
-            message.put("token", token.getTokenData());
-            message.put("transfer", transfer);
-            
-            // Encrypt and send
-            byte[] plaintext = JsonUtil.toBytes(message);
-            byte[] encrypted = CryptoUtil.encryptAEAD(sessionKey, plaintext, null);
-            
-            Payload payload = Payload.fromBytes(encrypted);
-            connectionsClient.sendPayload(connectedEndpointId, payload);
-            
-            Log.d(TAG, "Token transfer sent");
-            if (callback != null) {
-                callback.onPaymentSent();
+            for (PaymentOutbox.Entry message : payment.messages) {
+                awaitingTransferIds.add(message.transferId);
+            }
+            if (payment.messages.size() != 1 || payment.messages.get(0).type != Frame.TOKEN_BATCH) {
+                // Original protocol: one TOKEN_TRANSFER message per token
+                for (PaymentOutbox.Entry message : payment.messages) {
+                    sendEncrypted(message.type, message.plaintext);
+                }
+                EventLog.record(EventLog.Event.PAYMENT_SENT, payment.tokenCount, 0);
+                onPaymentSent();
+                return;
             }
             
+            // Encrypt and send; a streamed batch reports onPaymentSent when the transfer completes
+            byte[] plaintext = payment.messages.get(0).plaintext;
+            sendWhenLinkReady(plaintext.length, () -> {
+                boolean streamed = sendEncrypted(Frame.TOKEN_BATCH, plaintext);
+                
+                EventLog.record(EventLog.Event.PAYMENT_SENT, payment.tokenCount, plaintext.length);
+                if (!streamed) {
+                    onPaymentSent();
+                }
+            });
+            
         } catch (Exception e) {
             Log.e(TAG, "Failed to send token transfer", e);
-            if (callback != null) {
-                callback.onError("Failed to send payment: " + e.getMessage());
+            fail("Failed to send payment: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Send now, unless the payment is large, the link is still on Bluetooth and Nearby may
+     * upgrade it; then hold it until the upgrade or UPGRADE_WAIT_MS, whichever comes first.
+     * Without Wi-Fi permission nothing is held and the payment goes over Bluetooth.
+     */
+    private void sendWhenLinkReady(int length, Runnable send) {
+        PaymentTransport.Medium medium = linkStats.getMedium();
+        if (length < LARGE_TRANSFER_BYTES || medium == PaymentTransport.Medium.WIFI
+                || !transport.canUpgradeBandwidth()) {
+            send.run();
+            return;
+        }
+        if (EventLog.VERBOSE) {
+            Log.d(TAG, "→ Holding " + length + " byte payment up to " + UPGRADE_WAIT_MS
+                    + " ms for a Wi-Fi upgrade (link on " + medium + ")");
+        }
+        heldSend = send;
+        stateTimer.schedule(() -> releaseHeldSend(send, "no upgrade"), UPGRADE_WAIT_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    private synchronized void releaseHeldSend(Runnable send, String reason) {
+        if (send == null || heldSend != send) {
+            return;
+        }
+        heldSend = null;
+        if (EventLog.VERBOSE) {
+            Log.d(TAG, "→ Sending held payment: " + reason + " (" + linkStats.getMetricsSummary() + ")");
+        }
+        try {
+            send.run();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to send held payment", e);
+            fail("Failed to send payment: " + e.getMessage());
+        }
+    }
+    
+    private synchronized void onMediumChanged(PaymentTransport.Medium medium) {
+        linkStats.onBandwidthChanged(medium);
+        if (medium == PaymentTransport.Medium.WIFI) {
+            releaseHeldSend(heldSend, "link upgraded");
+        }
+    }
+    
+    /**
+     * The payment has left this device; the merchant's ACCEPT is next
+     */
+    private void onPaymentSent() {
+        if (state != State.SENDING) {
+            // Already accepted (or given up on) while the send was completing
+            return;
+        }
+        transition(State.AWAITING_ACCEPT);
+        if (callback != null) {
+            callback.onPaymentSent();
+        }
+    }
+    
+    /**
+     * Enter a state and arm its timeout, replacing the previous state's
+     */
+    private synchronized void transition(State next) {
+        if (state != next && EventLog.VERBOSE) {
+            Log.d(TAG, "State " + state + " → " + next);
+        }
+        enterState(next);
+    }
+    
+    private void enterState(State next) {
+        if (next != state) {
+            tracePhase(next);
+        }
+        state = next;
+        stateEpoch++;
+        if (stateTimeout != null) {
+            stateTimeout.cancel(false);
+            stateTimeout = null;
+        }
+        if (next.timeoutMs > 0) {
+            long epoch = stateEpoch;
+            stateTimeout = stateTimer.schedule(() -> onStateTimeout(epoch),
+                    next.timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * End the span of the state being left (dropped if the payment failed or was torn down)
+     * and start one for the next state if it is a payment phase
+     */
+    private void tracePhase(State next) {
+        if (phaseSpan != null) {
+            if (next == State.FAILED || next == State.IDLE) {
+                phaseSpan.abandon();
+            } else {
+                phaseSpan.end();
             }
+            phaseSpan = null;
+        }
+        PaymentTrace.Phase phase = phaseOf(next);
+        if (phase != null) {
+            phaseSpan = PaymentTrace.begin(phase);
         }
     }
     
-    private final EndpointDiscoveryCallback endpointDiscoveryCallback = new EndpointDiscoveryCallback() {
+    private static PaymentTrace.Phase phaseOf(State state) {
+        switch (state) {
+            case DISCOVERING:
+                return PaymentTrace.Phase.DISCOVERY;
+            case CONNECTING:
+                return PaymentTrace.Phase.CONNECT;
+            case HANDSHAKING:
+                return PaymentTrace.Phase.HANDSHAKE;
+            case SENDING:
+                return PaymentTrace.Phase.SEND;
+            case AWAITING_ACCEPT:
+                return PaymentTrace.Phase.ACCEPT;
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Restart the current state's timeout, e.g. when a slow stream makes progress
+     */
+    private void touchState() {
+        enterState(state);
+    }
+    
+    private synchronized void onStateTimeout(long epoch) {
+        if (epoch != stateEpoch) {
+            return;
+        }
+        Log.w(TAG, "✗ " + state + " timed out after " + state.timeoutMs + " ms");
+        fail(state.timeoutError);
+    }
+    
+    /**
+     * Abandon the payment in the state where the failure happened and drop the connection
+     */
+    private synchronized void fail(String error) {
+        Log.e(TAG, "✗ Payment failed while " + state + ": " + error);
+        disconnect();
+        enterState(State.FAILED);
+        if (callback != null) {
+            callback.onError(error);
+        }
+    }
+    
+    private JSONObject createTransfer(DeviceKeyManager.SessionSigningKey signingKey,
+                                      Token token, String posId, String batchId) throws Exception {
+        JSONObject transfer = new JSONObject();
+        transfer.put("type", "TOKEN_TRANSFER");
+        transfer.put("token_serial", token.getSerial());
+        if (batchId != null) {
+            transfer.put("batch_id", batchId);
+        }
+        transfer.put("pos_id", posId);
+        transfer.put("timestamp", System.currentTimeMillis());
+        transfer.put("payer_public_key", Base64Util.encode(
+                CryptoUtil.encodePublicKey(signingKey.getRootPublic())
+        ));
+        transfer.put("signer_cert", signingKey.getCertificate().toJson());
+        
+        // Sign transfer with the certified session key
+        String transferData = transfer.toString();
+        byte[] signature = signingKey.sign(transferData.getBytes());
+        transfer.put("signature", Base64Util.encode(signature));
+        return transfer;
+    }
+    
+    /**
+     * Encrypt under the session key, prefixing the pending 0-RTT or resumption header if any.
+     * Framed bodies too large for one bytes payload are streamed; returns true if so, in which
+     * case completion is reported through the transfer updates. While an earlier stream is
+     * still being sent the message is held and sent after it; it then counts as sent.
+     */
+    private boolean sendEncrypted(byte type, byte[] plaintext) {
+        try (PaymentTrace.Span ignored = PaymentTrace.section(PaymentTrace.Phase.ENCRYPTION)) {
+            return encryptAndSend(type, plaintext);
+        }
+    }
+    
+    private boolean encryptAndSend(byte type, byte[] plaintext) {
+        if (drainingStreamId != -1) {
+            // Sent once the stream completes, so it cannot overtake the stream's chunks
+            heldBehindStream.add(new OutboundMessage(type, plaintext));
+            return false;
+        }
+        
+        byte flags = firstFlightType != 0 ? Frame.FLAG_FIRST_FLIGHT : 0;
+        byte[] body = plaintext;
+        if (Capabilities.has(capabilities, Capabilities.COMPRESSION)) {
+            byte[] compressed = PayloadCompression.compress(plaintext);
+            if (compressed != null) {
+                flags |= Frame.FLAG_COMPRESSED;
+                body = compressed;
+            }
+        }
+        
+        // Keep messages sent under a resumed key until the merchant confirms it
+        if (awaitingResumeConfirmation) {
+            unconfirmedMessages.add(new OutboundMessage(type, plaintext));
+        }
+        
+        if (isFramed() && MessageStream.needsStream(body.length)) {
+            int chunks = MessageStream.chunkCount(body.length);
+            long firstSeq = sendSeq;
+            sendSeq += chunks;
+            InputStream stream = MessageStream.encrypt(session, type, flags, firstSeq, body, this::wrapFirstFlight);
+            outgoingStreamLength = MessageStream.encodedLength(body.length);
+            outgoingStreamId = transport.sendStream(connectedEndpointId, stream);
+            drainingStreamId = outgoingStreamId;
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "→ Streaming " + body.length + " byte message in " + chunks + " chunks");
+            }
+            return true;
+        }
+        
+        long seq = sendSeq++;
+        byte[] encrypted = wrapFirstFlight(session.encrypt(body,
+                isFramed() ? Frame.associatedData(type, flags, seq) : null));
+        transport.sendBytes(connectedEndpointId,
+                isFramed() ? Frame.encode(type, flags, seq, encrypted) : encrypted);
+        return false;
+    }
+    
+    /**
+     * Prefix the pending 0-RTT or resumption header, if any, to the first encrypted message
+     */
+    private byte[] wrapFirstFlight(byte[] encrypted) {
+        if (firstFlightType == HandshakeMessages.ZERO_RTT) {
+            // Merchant completes ECDH on receipt of this first message
+            encrypted = HandshakeMessages.encodeZeroRtt(
+                    CryptoUtil.encodePublicKey(ephemeralKeyPair.getPublic()), encrypted);
+        } else if (firstFlightType == HandshakeMessages.RESUME) {
+            encrypted = HandshakeMessages.encodeResume(resumeTicket, resumeNonce, encrypted);
+        }
+        if (firstFlightType != 0 && isFramed()) {
+            // Framed first flight doubles as the key exchange, so it carries our capabilities
+            encrypted = Capabilities.prepend(Capabilities.LOCAL, encrypted);
+        }
+        firstFlightType = 0;
+        return encrypted;
+    }
+    
+    /**
+     * Start a full key exchange by sending our ephemeral public key
+     */
+    private void sendKeyExchange() {
+        byte[] ourPublicKey = CryptoUtil.encodePublicKey(ephemeralKeyPair.getPublic());
+        transport.sendBytes(connectedEndpointId, isFramed()
+                ? Frame.encode(Frame.KEY_EXCHANGE, (byte) 0, sendSeq++,
+                        Capabilities.prepend(Capabilities.LOCAL, ourPublicKey))
+                : ourPublicKey);
+    }
+    
+    /**
+     * Merchant could not redeem our ticket: redo the handshake and resend what it dropped
+     */
+    private void fallBackFromResumption() {
+        Log.w(TAG, "⚠ Resumption rejected, falling back to full handshake");
+        List<OutboundMessage> resend = new ArrayList<>(unconfirmedMessages);
+        unconfirmedMessages.clear();
+        awaitingResumeConfirmation = false;
+        resumeSession = null;
+        resumeTicket = null;
+        
+        if (qrMerchantEphemeralKey != null && zeroRttSession == null) {
+            deriveZeroRttSession();
+        }
+        
+        if (zeroRttSession != null) {
+            session = zeroRttSession;
+            zeroRttSession = null;
+            firstFlightType = HandshakeMessages.ZERO_RTT;
+            for (OutboundMessage message : resend) {
+                sendEncrypted(message.type, message.plaintext);
+            }
+            if (!resend.isEmpty()) {
+                transition(State.AWAITING_ACCEPT);
+            }
+        } else {
+            session = null;
+            isKeyExchangeComplete = false;
+            pendingMessages.addAll(resend);
+            transition(State.HANDSHAKING);
+            sendKeyExchange();
+        }
+    }
+    
+    private final PaymentTransport.DiscoveryListener discoveryListener = new PaymentTransport.DiscoveryListener() {
         @Override
-        public void onEndpointFound(@NonNull String endpointId, @NonNull DiscoveredEndpointInfo info) {
-            Log.i(TAG, "========== ENDPOINT FOUND! ==========");
-            Log.i(TAG, "✓ Merchant discovered!");
-            Log.i(TAG, "Endpoint Name: " + info.getEndpointName());
-            Log.i(TAG, "Endpoint ID: " + endpointId);
-            Log.i(TAG, "Service ID: " + info.getServiceId());
+        public void onEndpointFound(String endpointId, String endpointName, byte[] endpointInfo, String serviceId) {
+            EventLog.record(EventLog.Event.ENDPOINT_FOUND, EventLog.id(endpointId),
+                    EndpointInfo.decode(endpointInfo) != null ? 1 : 0);
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "✓ Merchant " + endpointName + " found (" + endpointId + ")");
+            }
+            
+            endpointCache.put(endpointId, endpointName, endpointInfo);
             
             // Notify callback for caching (don't stop discovery for background mode)
             if (callback != null) {
-                callback.onEndpointDiscovered(endpointId, info.getEndpointName(), info.getServiceId());
+                callback.onEndpointDiscovered(endpointId, endpointName, serviceId);
             }
         }
         
         @Override
-        public void onEndpointLost(@NonNull String endpointId) {
-            Log.i(TAG, "⚠ Endpoint lost: " + endpointId);
+        public void onEndpointLost(String endpointId) {
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "⚠ Endpoint lost: " + endpointId);
+            }
+            endpointCache.remove(endpointId);
             if (callback != null) {
                 callback.onEndpointLost(endpointId);
             }
         }
     };
     
-    private final ConnectionLifecycleCallback connectionLifecycleCallback = new ConnectionLifecycleCallback() {
+    private final PaymentTransport.ConnectionListener connectionListener = new PaymentTransport.ConnectionListener() {
         @Override
-        public void onConnectionInitiated(@NonNull String endpointId, @NonNull ConnectionInfo connectionInfo) {
-            Log.i(TAG, "✓ Connection initiated with: " + connectionInfo.getEndpointName());
+        public void onConnectionInitiated(String endpointId, String endpointName) {
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "✓ Connection initiated with: " + endpointName);
+            }
             // Automatically accept connection
-            connectionsClient.acceptConnection(endpointId, payloadCallback);
+            transport.acceptConnection(endpointId, payloadListener);
         }
         
         @Override
-        public void onConnectionResult(@NonNull String endpointId, @NonNull ConnectionResolution result) {
-            if (result.getStatus().isSuccess()) {
-                Log.i(TAG, "✓✓ Connection SUCCESSFUL with: " + endpointId);
-                connectedEndpointId = endpointId;
-                stopDiscovery(); // Stop discovery once connected
-                
-                if (callback != null) {
-                    callback.onConnected();
-                }
-                
-                // Start key exchange by sending our ephemeral public key
-                try {
-                    byte[] ourPublicKey = CryptoUtil.encodePublicKey(ephemeralKeyPair.getPublic());
-                    Payload payload = Payload.fromBytes(ourPublicKey);
-                    connectionsClient.sendPayload(endpointId, payload);
-                    Log.d(TAG, "→ Sent our ephemeral public key for key exchange");
-                } catch (Exception e) {
-                    Log.e(TAG, "✗ Failed to send public key: " + e.getMessage(), e);
-                    if (callback != null) {
-                        callback.onError("Failed to initiate key exchange: " + e.getMessage());
-                    }
-                }
-            } else {
-                Log.w(TAG, "✗ Connection FAILED with: " + endpointId + " - Status: " + result.getStatus());
-                if (callback != null) {
-                    callback.onError("Connection failed - please try again");
+        public void onConnectionResult(String endpointId, boolean success, String status) {
+            if (handleConnectionResult(endpointId, success, status)) {
+                PayerCallback current = callback;
+                if (current != null) {
+                    current.onConnected();
                 }
             }
         }
         
         @Override
-        public void onDisconnected(@NonNull String endpointId) {
-            Log.i(TAG, "⚠ Disconnected from: " + endpointId);
-            connectedEndpointId = null;
-            sessionKey = null;
-            merchantPublicKey = null;
-            isKeyExchangeComplete = false;
-            if (callback != null) {
-                callback.onDisconnected();
+        public void onDisconnected(String endpointId) {
+            handleDisconnected(endpointId);
+            PayerCallback current = callback;
+            if (current != null) {
+                current.onDisconnected();
             }
+            onConnectionLost();
+        }
+        
+        @Override
+        public void onBandwidthChanged(String endpointId, PaymentTransport.Medium medium) {
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "↑ Link to " + endpointId + " now on " + medium);
+            }
+            onMediumChanged(medium);
         }
     };
     
-    private final PayloadCallback payloadCallback = new PayloadCallback() {
+    /**
+     * Set up the session for a new connection. Returns true if the payer should be told it
+     * is connected now, i.e. a fresh key exchange is running and this is not a reconnect.
+     */
+    private synchronized boolean handleConnectionResult(String endpointId, boolean success, String status) {
+        if (!success) {
+            Log.w(TAG, "✗ Connection FAILED with: " + endpointId + " - Status: " + status);
+            fail("Connection failed - please try again");
+            return false;
+        }
+        
+        EventLog.record(EventLog.Event.CONNECTED, EventLog.id(endpointId));
+        connectedEndpointId = endpointId;
+        lastEndpointId = endpointId;
+        linkStats.reset();
+        sendSeq = 0;
+        lastReceivedSeq = -1;
+        stopDiscovery(); // Stop discovery once connected
+        
+        if (resumeSession != null) {
+            // Resumption: no public-key operations, the ticket rides on the first transfer
+            session = resumeSession;
+            resumeSession = null;
+            isKeyExchangeComplete = true;
+            firstFlightType = HandshakeMessages.RESUME;
+            awaitingResumeConfirmation = true;
+            EventLog.record(EventLog.Event.SESSION_READY, EventLog.id(endpointId), 2);
+            onSessionReady();
+            return false;
+        }
+        
+        if (zeroRttSession == null && qrMerchantEphemeralKey != null) {
+            // Reconnect: keys are never reused across connections
+            deriveZeroRttSession();
+        }
+        
+        if (zeroRttSession != null) {
+            // 0-RTT: session is usable immediately, our key rides on the first transfer
+            session = zeroRttSession;
+            zeroRttSession = null;
+            isKeyExchangeComplete = true;
+            firstFlightType = HandshakeMessages.ZERO_RTT;
+            EventLog.record(EventLog.Event.SESSION_READY, EventLog.id(endpointId), 1);
+            onSessionReady();
+            return false;
+        }
+        
+        // Let the payer enter the amount while the key exchange runs
+        transition(State.HANDSHAKING);
+        
+        // Start key exchange by sending our ephemeral public key
+        try {
+            sendKeyExchange();
+        } catch (Exception e) {
+            Log.e(TAG, "✗ Failed to send public key: " + e.getMessage(), e);
+            fail("Failed to initiate key exchange: " + e.getMessage());
+            return false;
+        }
+        return !reconnecting;
+    }
+    
+    /**
+     * Drop the session state of a closed connection
+     */
+    private synchronized void handleDisconnected(String endpointId) {
+        EventLog.record(EventLog.Event.DISCONNECTED, EventLog.id(endpointId));
+        connectedEndpointId = null;
+        session = null;
+        if (qrMerchantEphemeralKey != null) {
+            // Fresh ephemeral key so a 0-RTT reconnect derives fresh session keys
+            ephemeralKeyPair = EphemeralKeyPool.take();
+        }
+        isKeyExchangeComplete = false;
+        firstFlightType = 0;
+        awaitingResumeConfirmation = false;
+        unconfirmedMessages.clear();
+        heldSend = null;
+        drainingStreamId = -1;
+        heldBehindStream.clear();
+    }
+    
+    /**
+     * A drop in the middle of a payment fails it now; an idle session just ends
+     */
+    private synchronized void onConnectionLost() {
+        switch (state) {
+            case SENDING:
+            case AWAITING_ACCEPT:
+                if (!reconnecting && lastEndpointId != null && !awaitingTransferIds.isEmpty()) {
+                    // The payment is in the outbox: one reconnect and resend instead of failing
+                    reconnecting = true;
+                    Log.w(TAG, "⚠ Link dropped before ACCEPT, reconnecting to resend");
+                    connectToEndpoint(lastEndpointId, "merchant");
+                    break;
+                }
+                fail("Merchant disconnected");
+                break;
+            case CONNECTING:
+            case HANDSHAKING:
+                fail("Merchant disconnected");
+                break;
+            case FAILED:
+                break;
+            default:
+                transition(State.IDLE);
+        }
+    }
+    
+    private final PaymentTransport.PayloadListener payloadListener = new PaymentTransport.PayloadListener() {
         @Override
-        public void onPayloadReceived(@NonNull String endpointId, @NonNull Payload payload) {
-            if (payload.getType() == Payload.Type.BYTES) {
-                handleIncomingMessage(endpointId, payload.asBytes());
-            }
+        public void onBytesReceived(String endpointId, byte[] data) {
+            handleIncomingMessage(endpointId, data);
+        }
+        
+        @Override
+        public void onStreamReceived(String endpointId, long payloadId, InputStream stream) {
+            streamReader.execute(() -> handleStream(stream));
         }
         
         @Override
-        public void onPayloadTransferUpdate(@NonNull String endpointId, @NonNull PayloadTransferUpdate update) {
-            // Not used for byte payloads
+        public void onTransferUpdate(String endpointId, long payloadId, PaymentTransport.TransferStatus status,
+                                     long bytesTransferred, long totalBytes) {
+            handleTransferUpdate(payloadId, status, bytesTransferred);
         }
     };
     
-    private void handleIncomingMessage(String endpointId, byte[] data) {
+    private synchronized void handleIncomingMessage(String endpointId, byte[] data) {
         try {
-            if (!isKeyExchangeComplete) {
+            if (Frame.isFramed(data)) {
+                handleFrame(Frame.decode(data));
+            } else if (!isKeyExchangeComplete) {
                 // This should be merchant's ephemeral public key
-                Log.d(TAG, "← Received merchant's ephemeral public key");
-                merchantPublicKey = CryptoUtil.decodePublicKey(data);
-                
-                // Perform ECDH key exchange
-                byte[] sharedSecret = CryptoUtil.performECDH(
-                        ephemeralKeyPair.getPrivate(),
-                        merchantPublicKey
-                );
-                
-                // Derive session key
-                byte[] salt = new byte[32];
-                byte[] info = "CBDC_SESSION".getBytes();
-                sessionKey = CryptoUtil.deriveSessionKey(sharedSecret, salt, info);
-                
-                isKeyExchangeComplete = true;
-                Log.d(TAG, "✓ Session key established via ECDH");
-                
-                // Send pending payment if any
-                if (pendingToken != null && pendingPosId != null) {
-                    Log.d(TAG, "→ Sending pending payment after key exchange");
-                    sendPaymentInternal(pendingToken, pendingPosId);
-                    pendingToken = null;
-                    pendingPosId = null;
-                }
-                
+                completeKeyExchange(data, false);
+            } else if (HandshakeMessages.isResumeReject(data)) {
+                fallBackFromResumption();
             } else {
                 // This is an encrypted message (ACCEPT receipt)
-                if (sessionKey == null) {
+                if (session == null) {
                     Log.e(TAG, "✗ Received encrypted message but no session key");
                     return;
                 }
                 
-                Log.d(TAG, "← Received encrypted message (ACCEPT receipt)");
-                byte[] plaintext = CryptoUtil.decryptAEAD(sessionKey, data, null);
-                JSONObject message = JsonUtil.fromBytes(plaintext);
-                
-                String messageType = message.getString("type");
-                if ("ACCEPT".equals(messageType)) {
-                    Log.d(TAG, "✓ Payment ACCEPTED by merchant");
-                    if (callback != null) {
-                        callback.onPaymentAccepted(message);
-                    }
-                }
+                handleAccept(JsonUtil.fromBytes(session.decrypt(data, null)));
             }
         } catch (Exception e) {
             Log.e(TAG, "✗ Failed to handle incoming message: " + e.getMessage(), e);
+            fail("Failed to process message: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Framed protocol: unknown types and replays are dropped from the header alone
+     */
+    private void handleFrame(Frame frame) throws Exception {
+        if (!Frame.isKnownType(frame.type, false)) {
+            Log.w(TAG, "Dropping frame type " + frame.type);
+            return;
+        }
+        if (frame.seq <= lastReceivedSeq) {
+            Log.w(TAG, "Dropping replayed frame " + frame.seq);
+            return;
+        }
+        switch (frame.type) {
+            case Frame.KEY_EXCHANGE:
+                if (isKeyExchangeComplete) {
+                    Log.w(TAG, "Ignoring repeated key exchange");
+                    return;
+                }
+                lastReceivedSeq = frame.seq;
+                completeKeyExchange(frame.body, true);
+                break;
+            case Frame.RESUME_REJECT:
+                lastReceivedSeq = frame.seq;
+                fallBackFromResumption();
+                break;
+            case Frame.ACCEPT:
+                if (frame.hasFlag(Frame.FLAG_CHUNKED)) {
+                    Log.w(TAG, "Dropping chunk outside a stream");
+                    return;
+                }
+                byte[] plaintext = openAccept(frame);
+                if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+                    plaintext = PayloadCompression.decompress(plaintext);
+                }
+                handleAccept(JsonUtil.fromBytes(plaintext));
+                break;
+        }
+    }
+    
+    private byte[] openAccept(Frame frame) {
+        if (frame.seq <= lastReceivedSeq) {
+            throw new IllegalStateException("Replayed frame " + frame.seq);
+        }
+        if (session == null) {
+            throw new IllegalStateException("Received encrypted message but no session key");
+        }
+        byte[] plaintext = session.decrypt(frame.body, frame.associatedData());
+        lastReceivedSeq = frame.seq;
+        return plaintext;
+    }
+    
+    /**
+     * Streamed ACCEPT: frames are read off the stream on the reader thread and
+     * decrypted under the client lock, one chunk at a time
+     */
+    private void handleStream(InputStream stream) {
+        try (MessageStream.Reader reader = new MessageStream.Reader(stream)) {
+            Frame first = reader.next();
+            if (first.type != Frame.ACCEPT || !first.hasFlag(Frame.FLAG_CHUNKED)) {
+                throw new IllegalArgumentException("Stream does not start a chunked ACCEPT");
+            }
+            MessageStream.Assembler assembler = new MessageStream.Assembler();
+            Frame chunk = first;
+            while (true) {
+                synchronized (this) {
+                    assembler.add(openAccept(chunk));
+                }
+                if (MessageStream.isFinal(chunk)) {
+                    break;
+                }
+                Frame next = reader.next();
+                MessageStream.checkContinuation(first, chunk, next);
+                chunk = next;
+            }
+            
+            byte[] plaintext = assembler.toByteArray();
+            if (first.hasFlag(Frame.FLAG_COMPRESSED)) {
+                plaintext = PayloadCompression.decompress(plaintext);
+            }
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "← Received streamed ACCEPT: " + (chunk.seq - first.seq + 1) + " chunks");
+            }
+            synchronized (this) {
+                handleAccept(JsonUtil.fromBytes(plaintext));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "✗ Failed to handle incoming stream: " + e.getMessage(), e);
+            fail("Failed to process message: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Progress and completion of our streamed payment; the end of any outgoing stream
+     * releases the messages held behind it
+     */
+    private synchronized void handleTransferUpdate(long payloadId, PaymentTransport.TransferStatus status,
+                                      long bytesTransferred) {
+        linkStats.onTransferUpdate(payloadId, status, bytesTransferred);
+        boolean drained = payloadId == drainingStreamId
+                && status != PaymentTransport.TransferStatus.IN_PROGRESS;
+        if (drained) {
+            drainingStreamId = -1;
+        }
+        if (payloadId == outgoingStreamId) {
+            reportOutgoingStream(status, bytesTransferred);
+        }
+        if (drained) {
+            sendHeldBehindStream();
+        }
+    }
+    
+    private void reportOutgoingStream(PaymentTransport.TransferStatus status, long bytesTransferred) {
+        switch (status) {
+            case IN_PROGRESS:
+                touchState();
+                if (callback != null) {
+                    callback.onTransferProgress(Math.min(bytesTransferred, outgoingStreamLength),
+                            outgoingStreamLength);
+                }
+                break;
+            case SUCCESS:
+                outgoingStreamId = -1;
+                if (EventLog.VERBOSE) {
+                    Log.d(TAG, "✓ Streamed payment delivered (" + bytesTransferred + " bytes)");
+                }
+                onPaymentSent();
+                break;
+            default:
+                outgoingStreamId = -1;
+                Log.w(TAG, "✗ Streamed payment " + status);
+                fail(status == PaymentTransport.TransferStatus.CANCELED
+                        ? "Payment transfer canceled" : "Payment transfer failed");
+        }
+    }
+    
+    /**
+     * Send what waited for the last stream, until one of them starts a stream itself
+     */
+    private void sendHeldBehindStream() {
+        while (drainingStreamId == -1 && !heldBehindStream.isEmpty()
+                && session != null && connectedEndpointId != null) {
+            OutboundMessage message = heldBehindStream.poll();
+            sendEncrypted(message.type, message.plaintext);
+        }
+    }
+    
+    /**
+     * Session usable without a handshake round trip: report the connection and send anything queued
+     */
+    private synchronized void onSessionReady() {
+        transition(State.READY);
+        if (resendOutbox()) {
+            // Reconnected mid-payment: its ACCEPT is still due
+            return;
+        }
+        if (callback != null) {
+            callback.onConnected();
+        }
+        sendNextPayment();
+    }
+    
+    /**
+     * Derive the session from the merchant's ephemeral key and flush everything waiting on it.
+     * Framed exchanges bind both public keys into the KDF; unframed ones keep the legacy key.
+     */
+    private void completeKeyExchange(byte[] keyExchange, boolean framed) {
+        byte[] merchantKeyBytes = keyExchange;
+        int merchantCapabilities = Capabilities.NONE;
+        if (framed) {
+            merchantCapabilities = Capabilities.read(keyExchange);
+            capabilities = Capabilities.negotiate(Capabilities.LOCAL, merchantCapabilities);
+            merchantKeyBytes = Capabilities.strip(keyExchange);
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "Negotiated " + Capabilities.toString(capabilities) + " with merchant");
+            }
+        }
+        merchantPublicKey = CryptoUtil.decodePublicKey(merchantKeyBytes);
+        
+        // Perform ECDH key exchange
+        byte[] sharedSecret = CryptoUtil.performECDH(
+                ephemeralKeyPair.getPrivate(),
+                merchantPublicKey
+        );
+        
+        // Derive session key
+        if (framed) {
+            byte[] transcript = HandshakeMessages.transcript(
+                    Capabilities.transcriptWords(Capabilities.LOCAL, merchantCapabilities),
+                    CryptoUtil.encodePublicKey(ephemeralKeyPair.getPublic()), merchantKeyBytes);
+            session = CryptoUtil.deriveSessionCipher(
+                    sharedSecret, transcript, HandshakeMessages.SESSION_INFO, true);
+        } else {
+            byte[] salt = new byte[32];
+            byte[] info = HandshakeMessages.SESSION_INFO.getBytes();
+            session = SessionCipher.legacy(CryptoUtil.deriveSessionKey(sharedSecret, salt, info));
+        }
+        
+        isKeyExchangeComplete = true;
+        EventLog.record(EventLog.Event.SESSION_READY, EventLog.id(connectedEndpointId), 0);
+        
+        // Resend messages dropped by a rejected resumption; their ACCEPT is still due
+        if (!pendingMessages.isEmpty()) {
+            for (OutboundMessage message : pendingMessages) {
+                sendEncrypted(message.type, message.plaintext);
+            }
+            pendingMessages.clear();
+            transition(State.AWAITING_ACCEPT);
+            return;
+        }
+        
+        transition(State.READY);
+        if (!resendOutbox()) {
+            sendNextPayment();
+        }
+    }
+    
+    /**
+     * Resend every unacknowledged payment to this POS; true if one of them is the
+     * payment in flight, which then goes back to waiting for its ACCEPT
+     */
+    private boolean resendOutbox() {
+        if (merchantPosId == null) {
+            return false;
+        }
+        boolean inFlight = false;
+        for (PaymentOutbox.Entry entry : outbox.pending(merchantPosId)) {
+            if (isQueued(entry.transferId)) {
+                // Still waiting its turn; sendNextPayment sends it
+                continue;
+            }
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "↺ Resending unacknowledged transfer " + entry.transferId);
+            }
+            sendEncrypted(entry.type, entry.plaintext);
+            inFlight |= awaitingTransferIds.contains(entry.transferId);
+        }
+        if (inFlight) {
+            transition(State.AWAITING_ACCEPT);
+        }
+        return inFlight;
+    }
+    
+    private boolean isQueued(String transferId) {
+        for (PendingPayment payment : pendingPayments) {
+            for (PaymentOutbox.Entry message : payment.messages) {
+                if (message.transferId.equals(transferId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private void handleAccept(JSONObject message) throws Exception {
+        // Merchant decrypted our resumed first flight, nothing to resend
+        awaitingResumeConfirmation = false;
+        unconfirmedMessages.clear();
+        
+        String messageType = message.getString("type");
+        if ("ACCEPT".equals(messageType)) {
+            cacheSessionTicket(message);
+            if (!verifyAcceptReceipt(message)) {
+                Log.e(TAG, "✗ ACCEPT receipt signature invalid");
+                fail("Merchant receipt signature invalid");
+                return;
+            }
+            String transferId = message.has("batch_id")
+                    ? message.getString("batch_id") : message.optString("token_serial");
+            outbox.remove(transferId);
+            if (!awaitingTransferIds.remove(transferId)) {
+                // Resent from an earlier session: settled now, nothing to report
+                if (EventLog.VERBOSE) {
+                    Log.d(TAG, "✓ Earlier transfer " + transferId + " confirmed by merchant");
+                }
+                return;
+            }
+            EventLog.record(EventLog.Event.ACCEPT_RECEIVED, awaitingTransferIds.size());
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "Link: " + linkStats.getMetricsSummary());
+            }
             if (callback != null) {
-                callback.onError("Failed to process message: " + e.getMessage());
+                callback.onPaymentAccepted(message);
+            }
+            if (awaitingTransferIds.isEmpty()
+                    && (state == State.AWAITING_ACCEPT || state == State.SENDING)) {
+                // A streamed or held send can be acknowledged before its own completion
+                // callback; that callback no longer applies to this payment
+                outgoingStreamId = -1;
+                heldSend = null;
+                reconnecting = false;
+                transition(State.DONE);
+                sendNextPayment();
+            }
+        }
+    }
+    
+    /**
+     * Cache the resumption ticket attached to an ACCEPT and strip it from the receipt
+     */
+    private void cacheSessionTicket(JSONObject accept) {
+        if (!accept.has("session_ticket")) {
+            return;
+        }
+        try {
+            byte[] ticket = Base64Util.decode(accept.getString("session_ticket"));
+            long expiresAt = accept.getLong("ticket_expires_at");
+            SessionResumption.storeTicket(accept.getString("pos_id"), ticket,
+                    session.getResumptionSecret(), expiresAt);
+        } catch (Exception e) {
+            Log.w(TAG, "Ignoring malformed session ticket", e);
+        }
+        accept.remove("session_ticket");
+        accept.remove("ticket_expires_at");
+    }
+    
+    /**
+     * Verify ACCEPT receipt signature (merchant session certificate is cached after first check)
+     */
+    private boolean verifyAcceptReceipt(JSONObject accept) {
+        try {
+            // Never trust the key the receipt carries: anyone can certify their own session key
+            if (merchantIdentityKey == null) {
+                Log.e(TAG, "✗ No merchant identity key to verify the receipt against");
+                return false;
+            }
+            if (!accept.optString("pos_id").equals(merchantPosId)) {
+                Log.e(TAG, "✗ Receipt is for a different POS");
+                return false;
             }
+            // A replayed original ACCEPT may outlive the merchant's certificate
+            PublicKey signerKey = SigningCertificate.resolveSigningKeyAtTimestamp(
+                    accept, merchantIdentityKey, PaymentOutbox.RETENTION_MS);
+            if (signerKey == null) {
+                return false;
+            }
+            
+            JSONObject acceptForVerify = new JSONObject(accept.toString());
+            acceptForVerify.remove("signature");
+            byte[] signature = Base64Util.decode(accept.getString("signature"));
+            return CryptoUtil.verify(signerKey, acceptForVerify.toString().getBytes(), signature);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to verify accept receipt", e);
+            return false;
         }
     }
 }
@@ -0,0 +1,158 @@
+package com.example.cbdc.ble;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw Deflate with a fixed preset dictionary for encrypted message bodies.
+ * Runs between JSON encoding and AEAD encryption; the Frame.FLAG_COMPRESSED header
+ * flag tells the receiver to inflate after decrypting. Both sides must hold the same
+ * dictionary, so changing it requires a new capability bit.
+ */
+public class PayloadCompression {
+
+    // Below this a JSON message gains too little to be worth the CPU
+    public static final int MIN_COMPRESS_LENGTH = 256;
+
+    // Inflated bodies larger than this are rejected (decompression bomb guard)
+    public static final int MAX_INFLATED_LENGTH = 1024 * 1024;
+
+    /**
+     * Field names and values that recur in every transfer and receipt.
+     * Deflate finds matches closer to the end more cheaply, so the most common strings come last.
+     */
+    private static final byte[] DICTIONARY = (
+            "{\"session_ticket\":\"\",\"ticket_expires_at\":"
+            + "\"transfer_chain\":[{\"accept_receipt\":{\"chain_proof\":{"
+            + "\"device_public_key\":\"\"issuer_id\":\"\"counter\":"
+            + "\"type\":\"ACCEPT\",\"token_serials\":[\"token_serial\":\""
+            + "\"type\":\"TOKEN_BATCH\",\"batch_id\":\"\"items\":[{\"token\":{\"serial\":\""
+            + "\"transfer\":{\"type\":\"TOKEN_TRANSFER\",\"token_serial\":\"\"pos_id\":\"POS-"
+            + "\"amount\":\"timestamp\":17"
+            + "\"signer_cert\":{\"not_after\":17\"not_before\":17"
+            + "\"signing_key\":\"MFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAE"
+            + "\"root_key\":\"MFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAE"
+            + "\"merchant_public_key\":\"MFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAE"
+            + "\"payer_public_key\":\"MFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAE"
+            + "\"signature\":\"MEQCIF\"signature\":\"MEUCIQ\"signature\":\"MEYCIQ"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Compress a message body, or return null if it is too small or does not shrink
+     */
+    public static byte[] compress(byte[] data) {
+        if (data.length < MIN_COMPRESS_LENGTH) {
+            return null;
+        }
+        byte[] compressed = deflate(data, true);
+        return compressed.length < data.length ? compressed : null;
+    }
+
+    public static byte[] decompress(byte[] data) {
+        Inflater inflater = new Inflater(true);
+        try {
+            // Raw streams take the dictionary up front instead of on needsDictionary()
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed payload");
+                }
+                if (out.size() + count > MAX_INFLATED_LENGTH) {
+                    throw new IllegalArgumentException("Compressed payload too large");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] deflate(byte[] data, boolean useDictionary) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            if (useDictionary) {
+                deflater.setDictionary(DICTIONARY);
+            }
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Measure size and time with and without the dictionary over sample message bodies,
+     * e.g. JsonUtil.toBytes of real TOKEN_BATCH and ACCEPT messages
+     */
+    public static BenchmarkResult benchmark(List<byte[]> samples, int iterations) {
+        BenchmarkResult result = new BenchmarkResult();
+        for (byte[] sample : samples) {
+            result.originalBytes += sample.length;
+            result.plainDeflateBytes += deflate(sample, false).length;
+            result.dictionaryBytes += deflate(sample, true).length;
+            if (compress(sample) == null) {
+                result.skipped++;
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] sample : samples) {
+                deflate(sample, true);
+            }
+        }
+        long compressNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] sample : samples) {
+                decompress(deflate(sample, true));
+            }
+        }
+        long roundTripNanos = System.nanoTime() - start;
+
+        long operations = (long) iterations * samples.size();
+        result.samples = samples.size();
+        result.compressMicros = operations > 0 ? compressNanos / 1000d / operations : 0;
+        result.decompressMicros = operations > 0 ? (roundTripNanos - compressNanos) / 1000d / operations : 0;
+        return result;
+    }
+
+    public static class BenchmarkResult {
+        public int samples;
+        public int skipped;            // below threshold or not smaller
+        public long originalBytes;
+        public long plainDeflateBytes; // Deflate without the dictionary
+        public long dictionaryBytes;   // Deflate with the dictionary
+        public double compressMicros;  // per message
+        public double decompressMicros;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d samples (%d skipped): %d B -> %d B deflate, %d B dictionary; "
+                            + "compress %.1f us, decompress %.1f us per message",
+                    samples, skipped, originalBytes, plainDeflateBytes, dictionaryBytes,
+                    compressMicros, decompressMicros);
+        }
+    }
+}
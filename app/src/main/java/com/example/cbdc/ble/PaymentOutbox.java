@@ -0,0 +1,148 @@
+package com.example.cbdc.ble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.example.cbdc.util.Base64Util;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Payer-side durable store of sent payments the merchant has not acknowledged yet.
+ * The tokens have already left the wallet, so the signed message is kept until its
+ * ACCEPT arrives and resent, unchanged, whenever a session to that POS comes up.
+ * The merchant dedupes by transfer id, so a resend never pays twice, but only for
+ * ProcessedTransfers.RETENTION_MS; older entries are dropped rather than resent.
+ */
+class PaymentOutbox {
+    private static final String TAG = "PaymentOutbox";
+    private static final String PREFS_NAME = "cbdc_outbox";
+    private static final String KEY_ENTRIES = "entries";
+
+    // A resend after this could be credited twice by the merchant
+    static final long RETENTION_MS = ProcessedTransfers.RETENTION_MS;
+
+    static class Entry {
+        final String transferId;
+        final String posId;
+        final byte type;
+        final byte[] plaintext;
+
+        Entry(String transferId, String posId, byte type, byte[] plaintext) {
+            this.transferId = transferId;
+            this.posId = posId;
+            this.type = type;
+            this.plaintext = plaintext;
+        }
+    }
+
+    private final SharedPreferences prefs;
+
+    PaymentOutbox(Context context) {
+        this(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    PaymentOutbox(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    /**
+     * Record the messages of one payment, in a single write, before any of them is sent
+     */
+    synchronized void addAll(List<Entry> messages) {
+        try {
+            JSONObject entries = load();
+            prune(entries);
+            long now = System.currentTimeMillis();
+            for (Entry message : messages) {
+                JSONObject entry = new JSONObject();
+                entry.put("pos_id", message.posId);
+                entry.put("type", message.type);
+                entry.put("message", Base64Util.encode(message.plaintext));
+                entry.put("created_at", now);
+                entries.put(message.transferId, entry);
+            }
+            save(entries);
+        } catch (Exception e) {
+            throw new RuntimeException("Outbox write failed", e);
+        }
+    }
+
+    /**
+     * The merchant acknowledged this transfer; returns false if it was not pending
+     */
+    synchronized boolean remove(String transferId) {
+        JSONObject entries = load();
+        if (entries.remove(transferId) == null) {
+            return false;
+        }
+        save(entries);
+        return true;
+    }
+
+    /**
+     * Unacknowledged payments to this POS, oldest first
+     */
+    synchronized List<Entry> pending(String posId) {
+        List<Entry> pending = new ArrayList<>();
+        JSONObject entries = load();
+        if (prune(entries)) {
+            save(entries);
+        }
+        Iterator<String> ids = entries.keys();
+        while (ids.hasNext()) {
+            String transferId = ids.next();
+            try {
+                JSONObject entry = entries.getJSONObject(transferId);
+                if (posId.equals(entry.getString("pos_id"))) {
+                    pending.add(new Entry(transferId, posId, (byte) entry.getInt("type"),
+                            Base64Util.decode(entry.getString("message"))));
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Skipping unreadable outbox entry " + transferId, e);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Drop entries past retention; true if any were dropped
+     */
+    private boolean prune(JSONObject entries) {
+        long cutoff = System.currentTimeMillis() - RETENTION_MS;
+        List<String> expired = new ArrayList<>();
+        Iterator<String> ids = entries.keys();
+        while (ids.hasNext()) {
+            String transferId = ids.next();
+            JSONObject entry = entries.optJSONObject(transferId);
+            if (entry == null || entry.optLong("created_at") < cutoff) {
+                expired.add(transferId);
+            }
+        }
+        for (String transferId : expired) {
+            Log.w(TAG, "⚠ Dropping transfer " + transferId + " unacknowledged past retention");
+            entries.remove(transferId);
+        }
+        return !expired.isEmpty();
+    }
+
+    private JSONObject load() {
+        try {
+            return new JSONObject(prefs.getString(KEY_ENTRIES, "{}"));
+        } catch (Exception e) {
+            Log.e(TAG, "Outbox unreadable, starting empty", e);
+            return new JSONObject();
+        }
+    }
+
+    private void save(JSONObject entries) {
+        if (!prefs.edit().putString(KEY_ENTRIES, entries.toString()).commit()) {
+            throw new RuntimeException("Outbox storage failed");
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.cbdc.ble;
+
+import android.util.Log;
+
+import com.example.cbdc.token.Token;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executors for the merchant receive pipeline:
+ * decrypt/parse (per-session worker) → verify (CPU pool) → persist (single writer)
+ * → encrypt/send (per-session worker).
+ * Stage queues are bounded; a full queue blocks the upstream stage instead of
+ * buffering without limit, so a burst of payers cannot exhaust memory.
+ */
+class PaymentPipeline {
+    private static final String TAG = "PaymentPipeline";
+    private static final int STAGE_QUEUE_CAPACITY = 32;
+
+    /**
+     * One payment moving through the stages
+     */
+    static class PaymentJob {
+        final MerchantSession session;
+        final boolean batch;
+        final String batchId; // null for single-token messages
+        final List<JSONObject> tokenData = new ArrayList<>();
+        final List<JSONObject> transfers = new ArrayList<>();
+        double totalAmount = 0;
+
+        // Filled in by the verify stage
+        JSONObject acceptReceipt;
+        List<Token> tokens;
+        String transferKey; // ProcessedTransfers key
+
+        // Sessions that resent this transfer while it was still in the pipeline
+        private final List<MerchantSession> duplicates = new ArrayList<>();
+        private boolean completed = false;
+
+        PaymentJob(MerchantSession session, boolean batch, String batchId) {
+            this.session = session;
+            this.batch = batch;
+            this.batchId = batchId;
+        }
+
+        /**
+         * Also answer this session when the job completes; false if it already has
+         */
+        synchronized boolean addDuplicate(MerchantSession duplicate) {
+            if (completed) {
+                return false;
+            }
+            duplicates.add(duplicate);
+            return true;
+        }
+
+        /**
+         * Mark the job finished and take the sessions still waiting on it
+         */
+        synchronized List<MerchantSession> complete() {
+            completed = true;
+            List<MerchantSession> waiting = new ArrayList<>(duplicates);
+            duplicates.clear();
+            return waiting;
+        }
+    }
+
+    private final ThreadPoolExecutor verifyStage;
+    private final ThreadPoolExecutor persistStage;
+
+    PaymentPipeline(int verifyThreads) {
+        verifyStage = boundedStage("PaymentVerify", verifyThreads);
+        persistStage = boundedStage("PaymentPersist", 1);
+    }
+
+    /**
+     * CPU-bound work: signature checks and receipt signing
+     */
+    void verify(Runnable task) {
+        verifyStage.execute(task);
+    }
+
+    /**
+     * Wallet writes, one at a time in submission order
+     */
+    void persist(Runnable task) {
+        persistStage.execute(task);
+    }
+
+    int getVerifyQueueDepth() {
+        return verifyStage.getQueue().size();
+    }
+
+    int getPersistQueueDepth() {
+        return persistStage.getQueue().size();
+    }
+
+    void shutdown() {
+        verifyStage.shutdown();
+        persistStage.shutdown();
+    }
+
+    private static ThreadPoolExecutor boundedStage(String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(STAGE_QUEUE_CAPACITY),
+                r -> {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (task, pool) -> {
+                    // Backpressure: wait for room rather than drop or run on the caller
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException(name + " stage shut down");
+                    }
+                    try {
+                        Log.w(TAG, name + " queue full, blocking upstream stage");
+                        pool.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(name + " stage interrupted", e);
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
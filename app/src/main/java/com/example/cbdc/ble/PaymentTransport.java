@@ -0,0 +1,123 @@
+package com.example.cbdc.ble;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Byte transport used by the payer and merchant payment protocol.
+ * NearbyTransport runs it over Google Nearby Connections; LoopbackTransport runs
+ * it in-process so the full handshake, transfer and ACCEPT can be exercised
+ * and measured without two phones.
+ */
+public interface PaymentTransport {
+
+    interface ResultListener {
+        void onSuccess();
+        void onFailure(Exception e);
+    }
+
+    interface ConnectionListener {
+        void onConnectionInitiated(String endpointId, String endpointName);
+        void onConnectionResult(String endpointId, boolean success, String status);
+        void onDisconnected(String endpointId);
+
+        /**
+         * The connection moved to another medium, e.g. upgraded from BLE to Wi-Fi
+         */
+        default void onBandwidthChanged(String endpointId, Medium medium) {
+        }
+    }
+
+    interface DiscoveryListener {
+        /**
+         * endpointInfo is the advertised bytes; endpointName is the same bytes read as UTF-8
+         */
+        void onEndpointFound(String endpointId, String endpointName, byte[] endpointInfo, String serviceId);
+        void onEndpointLost(String endpointId);
+    }
+
+    /**
+     * Radio a connection runs over, slowest first
+     */
+    enum Medium {
+        UNKNOWN,
+        BLE,
+        BLUETOOTH,
+        WIFI
+    }
+
+    enum TransferStatus {
+        IN_PROGRESS,
+        SUCCESS,
+        FAILURE,
+        CANCELED
+    }
+
+    interface PayloadListener {
+        void onBytesReceived(String endpointId, byte[] data);
+
+        /**
+         * Stream payload: data arrives while the transfer runs, so read it off the callback thread
+         */
+        default void onStreamReceived(String endpointId, long payloadId, InputStream stream) {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Progress of incoming and outgoing payloads; totalBytes is -1 for streams
+         */
+        default void onTransferUpdate(String endpointId, long payloadId, TransferStatus status,
+                                      long bytesTransferred, long totalBytes) {
+        }
+    }
+
+    // Largest payload sendBytes accepts (Nearby's MAX_BYTES_DATA_SIZE); larger messages go through sendStream
+    int MAX_BYTES_LENGTH = 32 * 1024;
+
+    void startAdvertising(byte[] endpointInfo, String serviceId,
+                          ConnectionListener connectionListener, ResultListener resultListener);
+
+    void stopAdvertising();
+
+    void startDiscovery(String serviceId, DiscoveryListener discoveryListener,
+                        ResultListener resultListener);
+
+    /**
+     * Discovery at a low scan duty cycle, for keeping an endpoint cache warm in the background
+     */
+    default void startLowPowerDiscovery(String serviceId, DiscoveryListener discoveryListener,
+                                        ResultListener resultListener) {
+        startDiscovery(serviceId, discoveryListener, resultListener);
+    }
+
+    void stopDiscovery();
+
+    /**
+     * True if connections requested now may upgrade from Bluetooth to Wi-Fi
+     */
+    default boolean canUpgradeBandwidth() {
+        return false;
+    }
+
+    void requestConnection(String endpointName, String endpointId,
+                           ConnectionListener connectionListener, ResultListener resultListener);
+
+    void acceptConnection(String endpointId, PayloadListener payloadListener);
+
+    void rejectConnection(String endpointId);
+
+    void sendBytes(String endpointId, byte[] data);
+
+    /**
+     * Send a payload that is read from the stream as the transfer proceeds.
+     * Returns the payload id reported to onTransferUpdate.
+     */
+    long sendStream(String endpointId, InputStream data);
+
+    void disconnectFromEndpoint(String endpointId);
+
+    void stopAllEndpoints();
+}
@@ -0,0 +1,138 @@
+package com.example.cbdc.ble;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.example.cbdc.util.Base64Util;
+
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Merchant-side record of completed transfers, keyed by (payer key, transfer id),
+ * with the ACCEPT receipt that was sent for each. A payer that lost the ACCEPT to a
+ * dropped link resends the same transfer; it gets the original receipt back instead
+ * of the tokens being processed twice. Stored in the wallet's preferences and written
+ * in the same commit as the received tokens, before the ACCEPT leaves.
+ */
+class ProcessedTransfers {
+    private static final String TAG = "ProcessedTransfers";
+    private static final String KEY_TRANSFERS = "processed_transfers";
+
+    // Payers resend within seconds to minutes; keep a day's worth, bounded
+    static final long RETENTION_MS = 24 * 60 * 60 * 1000L;
+    static final int MAX_ENTRIES = 1000;
+
+    private final SharedPreferences prefs;
+    private final LinkedHashMap<String, JSONObject> entries = new LinkedHashMap<>(); // oldest first
+
+    ProcessedTransfers(SharedPreferences walletPrefs) {
+        this.prefs = walletPrefs;
+        load();
+    }
+
+    /**
+     * Dedupe key: payers choose transfer ids, so ids are only unique per payer key
+     */
+    static String key(String payerPublicKey, String transferId) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(payerPublicKey.getBytes(StandardCharsets.UTF_8));
+            return Base64Util.encode(Arrays.copyOf(digest, 12)) + ":" + transferId;
+        } catch (Exception e) {
+            throw new RuntimeException("Transfer key derivation failed", e);
+        }
+    }
+
+    /**
+     * ACCEPT receipt already sent for this transfer, or null if it is new
+     */
+    synchronized JSONObject receiptFor(String key) {
+        JSONObject entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(entry.getString("receipt"));
+        } catch (Exception e) {
+            Log.w(TAG, "Dropping unreadable entry " + key, e);
+            entries.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Add the records plus this transfer to a wallet edit; call recorded() once it commits
+     */
+    synchronized void writeRecord(SharedPreferences.Editor editor, String key, JSONObject acceptReceipt) {
+        LinkedHashMap<String, JSONObject> updated = new LinkedHashMap<>(entries);
+        updated.remove(key);
+        updated.put(key, entry(acceptReceipt));
+        prune(updated);
+        editor.putString(KEY_TRANSFERS, serialize(updated));
+    }
+
+    /**
+     * The wallet edit from writeRecord() committed: duplicates of this transfer are replayed from now on
+     */
+    synchronized void recorded(String key, JSONObject acceptReceipt) {
+        entries.remove(key);
+        entries.put(key, entry(acceptReceipt));
+        prune(entries);
+    }
+
+    private static JSONObject entry(JSONObject acceptReceipt) {
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put("receipt", acceptReceipt.toString());
+            entry.put("at", System.currentTimeMillis());
+            return entry;
+        } catch (Exception e) {
+            throw new RuntimeException("Transfer record failed", e);
+        }
+    }
+
+    private static void prune(LinkedHashMap<String, JSONObject> entries) {
+        long cutoff = System.currentTimeMillis() - RETENTION_MS;
+        Iterator<Map.Entry<String, JSONObject>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, JSONObject> entry = iterator.next();
+            if (entries.size() <= MAX_ENTRIES && entry.getValue().optLong("at") >= cutoff) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    private void load() {
+        try {
+            JSONObject stored = new JSONObject(prefs.getString(KEY_TRANSFERS, "{}"));
+            Iterator<String> keys = stored.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                entries.put(key, stored.getJSONObject(key));
+            }
+            Log.d(TAG, "Loaded " + entries.size() + " processed transfers");
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to load processed transfers", e);
+        }
+    }
+
+    private static String serialize(Map<String, JSONObject> entries) {
+        JSONObject stored = new JSONObject();
+        try {
+            for (Map.Entry<String, JSONObject> entry : entries.entrySet()) {
+                stored.put(entry.getKey(), entry.getValue());
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Transfer record failed", e);
+        }
+        return stored.toString();
+    }
+}
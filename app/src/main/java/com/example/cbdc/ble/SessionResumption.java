@@ -0,0 +1,159 @@
+package com.example.cbdc.ble;
+
+import android.util.Log;
+
+import com.example.cbdc.crypto.CryptoUtil;
+import com.example.cbdc.crypto.SessionCipher;
+import com.example.cbdc.util.HexUtil;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * PSK-style session resumption for repeat payer-merchant pairs.
+ * The merchant seals a resumption secret into an opaque ticket sent with the ACCEPT;
+ * the payer caches it by posId and redeems it once on the next connection,
+ * skipping ECDH entirely.
+ */
+public class SessionResumption {
+    private static final String TAG = "SessionResumption";
+
+    public static final long TICKET_LIFETIME_MS = 8 * 60 * 60 * 1000L; // 8 hours
+    public static final int NONCE_LENGTH = 16;
+
+    private static final String RESUMED_SESSION_INFO = "CBDC_SESSION_RESUME";
+    private static final int TICKET_ID_LENGTH = 16;
+    private static final int SECRET_LENGTH = 32;
+
+    // Payer side: posId -> cached ticket
+    private static final Map<String, CachedTicket> ticketCache = new ConcurrentHashMap<>();
+
+    /**
+     * Derive fresh session keys from a resumption secret, bound to the ticket, the payer's
+     * nonce and the capability words (empty when unframed, see Capabilities.transcriptWords)
+     */
+    public static SessionCipher resumedSession(byte[] resumptionSecret, byte[] ticket, byte[] nonce,
+                                               byte[] capabilityWords, boolean isPayer) {
+        return CryptoUtil.deriveSessionCipher(resumptionSecret,
+                HandshakeMessages.transcript(capabilityWords, ticket, nonce), RESUMED_SESSION_INFO, isPayer);
+    }
+
+    public static byte[] generateNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        new SecureRandom().nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Cache a ticket received from a merchant (payer side)
+     */
+    public static void storeTicket(String posId, byte[] ticket, byte[] resumptionSecret, long expiresAt) {
+        ticketCache.put(posId, new CachedTicket(ticket, resumptionSecret, expiresAt));
+        Log.d(TAG, "Cached resumption ticket for POS: " + posId);
+    }
+
+    /**
+     * Remove and return the cached ticket for posId, or null if none is valid.
+     * Tickets are single-use, so a taken ticket is never offered again.
+     */
+    public static CachedTicket takeTicket(String posId) {
+        CachedTicket ticket = ticketCache.remove(posId);
+        if (ticket == null || System.currentTimeMillis() >= ticket.expiresAt) {
+            return null;
+        }
+        return ticket;
+    }
+
+    public static class CachedTicket {
+        public final byte[] ticket;
+        public final byte[] resumptionSecret;
+        public final long expiresAt;
+
+        CachedTicket(byte[] ticket, byte[] resumptionSecret, long expiresAt) {
+            this.ticket = ticket;
+            this.resumptionSecret = resumptionSecret;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Merchant-side ticket sealing and single-use redemption.
+     * The ticket key lives only as long as the merchant session.
+     */
+    public static class TicketIssuer {
+        private final SecretKey ticketKey;
+        private final Map<String, Long> redeemedTickets = new ConcurrentHashMap<>(); // ticketId -> expiresAt
+
+        public TicketIssuer() {
+            byte[] keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+            this.ticketKey = new SecretKeySpec(keyBytes, "AES");
+        }
+
+        /**
+         * Seal a resumption secret into an opaque ticket
+         */
+        public byte[] issue(byte[] resumptionSecret, long expiresAt) {
+            byte[] ticketId = new byte[TICKET_ID_LENGTH];
+            new SecureRandom().nextBytes(ticketId);
+
+            ByteBuffer plaintext = ByteBuffer.allocate(TICKET_ID_LENGTH + 8 + SECRET_LENGTH);
+            plaintext.put(ticketId);
+            plaintext.putLong(expiresAt);
+            plaintext.put(resumptionSecret, 0, SECRET_LENGTH);
+            return CryptoUtil.encryptAEAD(ticketKey, plaintext.array(), null);
+        }
+
+        /**
+         * Open a ticket and return its resumption secret, or null if it is
+         * forged, expired or already redeemed
+         */
+        public byte[] redeem(byte[] ticket) {
+            byte[] plaintext;
+            try {
+                plaintext = CryptoUtil.decryptAEAD(ticketKey, ticket, null);
+            } catch (Exception e) {
+                Log.w(TAG, "Resumption ticket not issued by this merchant session");
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+            byte[] ticketId = new byte[TICKET_ID_LENGTH];
+            buffer.get(ticketId);
+            long expiresAt = buffer.getLong();
+            byte[] secret = new byte[SECRET_LENGTH];
+            buffer.get(secret);
+
+            long now = System.currentTimeMillis();
+            if (now >= expiresAt) {
+                Log.w(TAG, "Resumption ticket expired");
+                return null;
+            }
+
+            purgeExpired(now);
+            if (redeemedTickets.putIfAbsent(HexUtil.bytesToHex(ticketId), expiresAt) != null) {
+                Log.w(TAG, "Resumption ticket already redeemed");
+                return null;
+            }
+
+            Arrays.fill(plaintext, (byte) 0);
+            return secret;
+        }
+
+        private void purgeExpired(long now) {
+            Iterator<Map.Entry<String, Long>> it = redeemedTickets.entrySet().iterator();
+            while (it.hasNext()) {
+                if (now >= it.next().getValue()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.cbdc.ble;
+
+import android.util.Log;
+
+import com.example.cbdc.util.EventLog;
+import com.example.cbdc.util.Log2Histogram;
+import com.example.cbdc.util.PaymentTrace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Payload-level metrics for the Nearby transport, fed from send calls and transfer updates.
+ * Records size, queue-to-complete latency and final status of every payload, plus
+ * per-endpoint byte counts and throughput, so "payments are slow" can be split into radio
+ * time versus the crypto and storage time logged elsewhere. Recording is lock-free (atomic
+ * counters and log2 histograms) because it runs on Nearby's callback thread.
+ */
+public class TransportMetrics {
+    private static final String TAG = "TransportMetrics";
+
+    private static final TransportMetrics instance = new TransportMetrics();
+
+    /**
+     * Payload still moving: when it was queued or first seen, and its size if known
+     */
+    private static class InFlight {
+        final String endpointId;
+        final boolean outgoing;
+        final long startNanos;
+        final long size;
+
+        InFlight(String endpointId, boolean outgoing, long startNanos, long size) {
+            this.endpointId = endpointId;
+            this.outgoing = outgoing;
+            this.startNanos = startNanos;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Counters and throughput for one remote endpoint
+     */
+    private static class EndpointStats {
+        final AtomicLong bytesSent = new AtomicLong();
+        final AtomicLong bytesReceived = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong canceled = new AtomicLong();
+        final AtomicLong transferNanos = new AtomicLong();
+        final Log2Histogram throughputKBps = new Log2Histogram();
+    }
+
+    private final Map<Long, InFlight> inFlight = new ConcurrentHashMap<>(); // payloadId -> payload
+    private final Map<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+
+    private final Log2Histogram sentSizeBytes = new Log2Histogram();
+    private final Log2Histogram receivedSizeBytes = new Log2Histogram();
+    private final Log2Histogram sendLatencyMs = new Log2Histogram();    // queued -> SUCCESS
+    private final Log2Histogram receiveLatencyMs = new Log2Histogram(); // first seen -> SUCCESS
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong canceled = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong(); // still in flight when the endpoint dropped
+
+    public static TransportMetrics getInstance() {
+        return instance;
+    }
+
+    TransportMetrics() {
+    }
+
+    /**
+     * Outgoing payload handed to the transport; size is -1 for streams
+     */
+    public void onPayloadQueued(String endpointId, long payloadId, long size) {
+        inFlight.put(payloadId, new InFlight(endpointId, true, System.nanoTime(), size));
+    }
+
+    /**
+     * Incoming payload announced by the transport
+     */
+    public void onPayloadReceived(String endpointId, long payloadId) {
+        inFlight.putIfAbsent(payloadId, new InFlight(endpointId, false, System.nanoTime(), -1));
+    }
+
+    public void onTransferUpdate(String endpointId, long payloadId, PaymentTransport.TransferStatus status,
+                                 long bytesTransferred, long totalBytes) {
+        if (status == PaymentTransport.TransferStatus.IN_PROGRESS) {
+            return;
+        }
+        InFlight payload = inFlight.remove(payloadId);
+        if (payload == null) {
+            // Terminal update for a payload we never saw start (e.g. before a reset)
+            return;
+        }
+        EndpointStats stats = statsFor(endpointId);
+        switch (status) {
+            case SUCCESS:
+                long size = totalBytes > 0 ? totalBytes : Math.max(bytesTransferred, payload.size);
+                long elapsedNanos = System.nanoTime() - payload.startNanos;
+                succeeded.incrementAndGet();
+                stats.completed.incrementAndGet();
+                stats.transferNanos.addAndGet(elapsedNanos);
+                if (payload.outgoing) {
+                    sentSizeBytes.record(size);
+                    sendLatencyMs.record(elapsedNanos / 1_000_000);
+                    stats.bytesSent.addAndGet(size);
+                } else {
+                    receivedSizeBytes.record(size);
+                    receiveLatencyMs.record(elapsedNanos / 1_000_000);
+                    stats.bytesReceived.addAndGet(size);
+                }
+                if (elapsedNanos > 0) {
+                    stats.throughputKBps.record(size * 1_000_000_000L / elapsedNanos / 1024);
+                }
+                break;
+            case CANCELED:
+                canceled.incrementAndGet();
+                stats.canceled.incrementAndGet();
+                break;
+            default:
+                failed.incrementAndGet();
+                stats.failed.incrementAndGet();
+                Log.w(TAG, "✗ Payload " + payloadId + " to/from " + endpointId + " failed after "
+                        + bytesTransferred + " bytes");
+        }
+    }
+
+    /**
+     * Endpoint gone: anything still in flight to or from it will never complete
+     */
+    public void onDisconnected(String endpointId) {
+        for (Map.Entry<Long, InFlight> entry : inFlight.entrySet()) {
+            if (entry.getValue().endpointId.equals(endpointId) && inFlight.remove(entry.getKey()) != null) {
+                abandoned.incrementAndGet();
+            }
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private EndpointStats statsFor(String endpointId) {
+        EndpointStats stats = endpoints.get(endpointId);
+        if (stats == null) {
+            EndpointStats created = new EndpointStats();
+            stats = endpoints.putIfAbsent(endpointId, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    public void reset() {
+        inFlight.clear();
+        endpoints.clear();
+        sentSizeBytes.clear();
+        receivedSizeBytes.clear();
+        sendLatencyMs.clear();
+        receiveLatencyMs.clear();
+        succeeded.set(0);
+        failed.set(0);
+        canceled.set(0);
+        abandoned.set(0);
+    }
+
+    public String getMetricsSummary() {
+        return "succeeded=" + succeeded.get()
+                + " failed=" + failed.get()
+                + " canceled=" + canceled.get()
+                + " abandoned=" + abandoned.get()
+                + " inFlight=" + inFlight.size()
+                + " sendP50=" + sendLatencyMs.percentile(0.5) + "ms"
+                + " sendP99=" + sendLatencyMs.percentile(0.99) + "ms";
+    }
+
+    /**
+     * Full report for the debug screen and dump files
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("Payloads: ").append(getMetricsSummary()).append('\n');
+        report.append('\n');
+        report.append("Sent size (bytes)      ").append(sentSizeBytes).append('\n');
+        report.append("Received size (bytes)  ").append(receivedSizeBytes).append('\n');
+        report.append("Send latency (ms)      ").append(sendLatencyMs).append('\n');
+        report.append("Receive latency (ms)   ").append(receiveLatencyMs).append('\n');
+        for (Map.Entry<String, EndpointStats> entry : endpoints.entrySet()) {
+            EndpointStats stats = entry.getValue();
+            long nanos = stats.transferNanos.get();
+            long bytes = stats.bytesSent.get() + stats.bytesReceived.get();
+            report.append('\n');
+            report.append("Endpoint ").append(entry.getKey())
+                    .append(": sent=").append(stats.bytesSent.get())
+                    .append(" received=").append(stats.bytesReceived.get())
+                    .append(" completed=").append(stats.completed.get())
+                    .append(" failed=").append(stats.failed.get())
+                    .append(" canceled=").append(stats.canceled.get())
+                    .append(" avg=").append(nanos > 0 ? bytes * 1_000_000_000L / nanos / 1024 : 0)
+                    .append("KB/s\n");
+            report.append("  throughput (KB/s)    ").append(stats.throughputKBps).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * Write the report to a timestamped file in dir and return it
+     */
+    public File dump(File dir) throws IOException {
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(dir, "transport-metrics-" + stamp + ".txt");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(getReport());
+            writer.write("\nPayment phases:\n" + PaymentTrace.getReport());
+            writer.write("\nHistogram buckets are powers of two: [2^(i-1), 2^i)\n");
+            writer.write("\nsent_size_bytes " + sentSizeBytes.buckets() + "\n");
+            writer.write("received_size_bytes " + receivedSizeBytes.buckets() + "\n");
+            writer.write("send_latency_ms " + sendLatencyMs.buckets() + "\n");
+            writer.write("receive_latency_ms " + receiveLatencyMs.buckets() + "\n");
+            writer.write("\nRecent events:\n" + EventLog.render());
+        }
+        Log.d(TAG, "Metrics dumped to " + file);
+        return file;
+    }
+}
@@ -24,6 +24,25 @@ public class CryptoUtil {
     private static final int GCM_TAG_LENGTH = 16;
     private static final String AES_GCM_ALGORITHM = "AES/GCM/NoPadding";
     
+    private static final int HASH_LENGTH = 32;
+    
+    // Session key schedule: [payer->merchant key][merchant->payer key]
+    //                       [payer->merchant nonce base][merchant->payer nonce base][resumption secret]
+    private static final int SESSION_KEY_LENGTH = 32;
+    private static final int SESSION_OKM_LENGTH = 2 * SESSION_KEY_LENGTH + 2 * GCM_IV_LENGTH + HASH_LENGTH;
+    
+    // One HMAC instance per thread, re-keyed for every HKDF step
+    private static final ThreadLocal<Mac> pooledMac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(HKDF_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("HMAC unavailable", e);
+            }
+        }
+    };
+    
     // For X25519, we use EC with curve25519 if available, otherwise fallback to EC P-256
     private static final String EC_ALGORITHM = "EC";
     private static final String EC_CURVE = "secp256r1"; // Fallback curve
@@ -59,37 +78,119 @@ public class CryptoUtil {
     }
     
     /**
-     * Derive session key using HKDF
+     * Derive session key using the legacy single-block KDF.
+     * Its expand input is info || 0x01 followed by 32 zero bytes; that quirk is kept
+     * so the legacy key exchange stays interoperable with deployed peers.
+     * New handshakes use deriveSessionCipher.
      */
     public static SecretKey deriveSessionKey(byte[] sharedSecret, byte[] salt, byte[] info) {
         try {
-            // HKDF-Extract
-            Mac hmac = Mac.getInstance(HKDF_ALGORITHM);
-            SecretKeySpec prkKey = new SecretKeySpec(salt != null ? salt : new byte[32], HKDF_ALGORITHM);
-            hmac.init(prkKey);
-            byte[] prk = hmac.doFinal(sharedSecret);
+            byte[] prk = hkdfExtract(salt, sharedSecret);
             
-            // HKDF-Expand
+            Mac hmac = pooledMac.get();
             hmac.init(new SecretKeySpec(prk, HKDF_ALGORITHM));
-            ByteBuffer buffer = ByteBuffer.allocate(32 + info.length + 1);
-            buffer.put(info);
-            buffer.put((byte) 0x01);
-            byte[] okm = hmac.doFinal(buffer.array());
+            hmac.update(info);
+            hmac.update((byte) 0x01);
+            hmac.update(new byte[HASH_LENGTH]);
+            byte[] okm = hmac.doFinal();
             
-            return new SecretKeySpec(Arrays.copyOf(okm, 32), "AES");
+            return new SecretKeySpec(okm, 0, SESSION_KEY_LENGTH, "AES");
         } catch (Exception e) {
             Log.e(TAG, "HKDF derivation failed", e);
             throw new RuntimeException("HKDF failed", e);
         }
     }
     
+    /**
+     * HKDF-Extract (RFC 5869); a null salt means HashLen zero bytes
+     */
+    public static byte[] hkdfExtract(byte[] salt, byte[] ikm) {
+        try {
+            Mac hmac = pooledMac.get();
+            hmac.init(new SecretKeySpec(salt != null ? salt : new byte[HASH_LENGTH], HKDF_ALGORITHM));
+            return hmac.doFinal(ikm);
+        } catch (Exception e) {
+            Log.e(TAG, "HKDF extract failed", e);
+            throw new RuntimeException("HKDF failed", e);
+        }
+    }
+    
+    /**
+     * HKDF-Expand (RFC 5869) writing length bytes of output keying material into out
+     */
+    public static void hkdfExpand(byte[] prk, byte[] info, byte[] out, int offset, int length) {
+        try {
+            Mac hmac = pooledMac.get();
+            hmac.init(new SecretKeySpec(prk, HKDF_ALGORITHM));
+            
+            byte[] block = new byte[HASH_LENGTH];
+            int written = 0;
+            for (int counter = 1; written < length; counter++) {
+                if (counter > 1) {
+                    hmac.update(block);
+                }
+                hmac.update(info);
+                hmac.update((byte) counter);
+                hmac.doFinal(block, 0);
+                
+                int n = Math.min(HASH_LENGTH, length - written);
+                System.arraycopy(block, 0, out, offset + written, n);
+                written += n;
+            }
+            Arrays.fill(block, (byte) 0);
+        } catch (Exception e) {
+            Log.e(TAG, "HKDF expand failed", e);
+            throw new RuntimeException("HKDF failed", e);
+        }
+    }
+    
+    /**
+     * Derive directional session keys, nonce bases and a resumption secret in one HKDF pass.
+     * The salt is the hash of the handshake transcript, so the keys are bound to
+     * exactly the public keys / ticket that were exchanged.
+     */
+    public static SessionCipher deriveSessionCipher(byte[] ikm, byte[] transcript, String label, boolean isPayer) {
+        try {
+            byte[] salt = MessageDigest.getInstance("SHA-256").digest(transcript);
+            byte[] prk = hkdfExtract(salt, ikm);
+            
+            byte[] okm = new byte[SESSION_OKM_LENGTH];
+            hkdfExpand(prk, label.getBytes(), okm, 0, SESSION_OKM_LENGTH);
+            Arrays.fill(prk, (byte) 0);
+            
+            int offset = 0;
+            SecretKey payerToMerchant = new SecretKeySpec(okm, offset, SESSION_KEY_LENGTH, "AES");
+            offset += SESSION_KEY_LENGTH;
+            SecretKey merchantToPayer = new SecretKeySpec(okm, offset, SESSION_KEY_LENGTH, "AES");
+            offset += SESSION_KEY_LENGTH;
+            byte[] payerNonceBase = Arrays.copyOfRange(okm, offset, offset + GCM_IV_LENGTH);
+            offset += GCM_IV_LENGTH;
+            byte[] merchantNonceBase = Arrays.copyOfRange(okm, offset, offset + GCM_IV_LENGTH);
+            offset += GCM_IV_LENGTH;
+            byte[] resumptionSecret = Arrays.copyOfRange(okm, offset, offset + HASH_LENGTH);
+            Arrays.fill(okm, (byte) 0);
+            
+            return isPayer
+                    ? new SessionCipher(payerToMerchant, payerNonceBase, merchantToPayer, merchantNonceBase, resumptionSecret)
+                    : new SessionCipher(merchantToPayer, merchantNonceBase, payerToMerchant, payerNonceBase, resumptionSecret);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 unavailable", e);
+        }
+    }
+    
     /**
      * Encrypt using AES-GCM (ChaCha20-Poly1305 equivalent)
      */
     public static byte[] encryptAEAD(SecretKey key, byte[] plaintext, byte[] associatedData) {
+        return encryptAEAD(key, generateNonce(), plaintext, associatedData);
+    }
+    
+    /**
+     * Encrypt using AES-GCM with a caller-supplied nonce (must never repeat for a key)
+     */
+    public static byte[] encryptAEAD(SecretKey key, byte[] iv, byte[] plaintext, byte[] associatedData) {
         try {
             Cipher cipher = Cipher.getInstance(AES_GCM_ALGORITHM);
-            byte[] iv = generateNonce();
             GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
             cipher.init(Cipher.ENCRYPT_MODE, key, gcmSpec);
             if (associatedData != null) {
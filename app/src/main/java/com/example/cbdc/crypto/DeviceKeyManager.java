@@ -9,6 +9,7 @@ import android.security.keystore.StrongBoxUnavailableException;
 import android.util.Log;
 
 import com.example.cbdc.util.Base64Util;
+import org.json.JSONObject;
 
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
@@ -20,7 +21,9 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.ECGenParameterSpec;
 import java.security.ProviderException;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
 import javax.security.auth.x500.X500Principal;
 
 public class DeviceKeyManager {
@@ -31,8 +34,48 @@ public class DeviceKeyManager {
     private static final String KEY_PUBLIC_KEY = "device_public_key";
     private static final String ANDROID_KEYSTORE = "AndroidKeyStore";
 
+    // Fast per-transaction signing key, certified by the StrongBox device key
+    private static final String SESSION_KEY_ALIAS = "cbdc_session_signing_key";
+    private static final String KEY_SESSION_CERT = "session_signing_cert";
+    private static final long SESSION_KEY_VALIDITY_MS = 24 * 60 * 60 * 1000L; // 24 hours
+    private static final long SESSION_KEY_RENEW_MARGIN_MS = 60 * 60 * 1000L; // 1 hour
+
     private final Context context;
     private final KeyStore keyStore;
+    private SessionSigningKey sessionSigningKey;
+
+    /**
+     * Short-lived signing key plus the certificate chaining it to the device key
+     */
+    public static class SessionSigningKey {
+        private final PrivateKey privateKey;
+        private final SigningCertificate certificate;
+
+        SessionSigningKey(PrivateKey privateKey, SigningCertificate certificate) {
+            this.privateKey = privateKey;
+            this.certificate = certificate;
+        }
+
+        public PrivateKey getPrivate() {
+            return privateKey;
+        }
+
+        public PublicKey getPublic() {
+            return certificate.getSigningKey();
+        }
+
+        public PublicKey getRootPublic() {
+            return certificate.getRootKey();
+        }
+
+        public SigningCertificate getCertificate() {
+            return certificate;
+        }
+
+        public byte[] sign(byte[] data) {
+            return CryptoUtil.sign(privateKey, data);
+        }
+    }
 
     public DeviceKeyManager(Context context) {
         this.context = context;
@@ -45,6 +88,15 @@ public class DeviceKeyManager {
         }
     }
 
+    /**
+     * For subclasses that keep their keys outside AndroidKeyStore, e.g. software keys in
+     * JVM tests; they override the key accessors
+     */
+    protected DeviceKeyManager() {
+        this.context = null;
+        this.keyStore = null;
+    }
+
     /**
      * Get or create hardware-backed EC keypair
      */
@@ -64,6 +116,97 @@ public class DeviceKeyManager {
         }
     }
 
+    /**
+     * Get the TEE session signing key, certifying a new one with the device key
+     * when none exists or the current one is close to expiry
+     */
+    public synchronized SessionSigningKey getSessionSigningKey() {
+        long now = System.currentTimeMillis();
+        if (sessionSigningKey != null
+                && sessionSigningKey.getCertificate().isValidAt(now + SESSION_KEY_RENEW_MARGIN_MS)) {
+            return sessionSigningKey;
+        }
+
+        try {
+            SessionSigningKey stored = loadSessionSigningKey();
+            if (stored != null && stored.getCertificate().isValidAt(now + SESSION_KEY_RENEW_MARGIN_MS)) {
+                sessionSigningKey = stored;
+                return sessionSigningKey;
+            }
+
+            sessionSigningKey = generateSessionSigningKey(now);
+            return sessionSigningKey;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to get session signing key", e);
+            throw new RuntimeException("Session signing key unavailable", e);
+        }
+    }
+
+    private SessionSigningKey loadSessionSigningKey() {
+        try {
+            String certJson = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                    .getString(KEY_SESSION_CERT, null);
+            if (certJson == null || !keyStore.containsAlias(SESSION_KEY_ALIAS)) {
+                return null;
+            }
+
+            KeyStore.PrivateKeyEntry entry =
+                    (KeyStore.PrivateKeyEntry) keyStore.getEntry(SESSION_KEY_ALIAS, null);
+            SigningCertificate certificate = SigningCertificate.fromJson(new JSONObject(certJson));
+
+            PublicKey keystorePublic = entry.getCertificate().getPublicKey();
+            PublicKey devicePublic = getPublicKey();
+            if (devicePublic == null
+                    || !Arrays.equals(keystorePublic.getEncoded(), certificate.getSigningKey().getEncoded())
+                    || !Arrays.equals(devicePublic.getEncoded(), certificate.getRootKey().getEncoded())) {
+                Log.w(TAG, "Stored session certificate does not match keystore, regenerating");
+                return null;
+            }
+
+            return new SessionSigningKey(entry.getPrivateKey(), certificate);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to load session signing key", e);
+            return null;
+        }
+    }
+
+    /**
+     * Generate a TEE key and certify it with the device key (one StrongBox signature)
+     */
+    private SessionSigningKey generateSessionSigningKey(long now) throws Exception {
+        KeyPair deviceKey = getOrCreateDeviceKey();
+
+        Date notBefore = new Date(now);
+        Date notAfter = new Date(now + SESSION_KEY_VALIDITY_MS);
+
+        KeyPairGenerator keyPairGenerator =
+                KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, ANDROID_KEYSTORE);
+        keyPairGenerator.initialize(new KeyGenParameterSpec.Builder(
+                SESSION_KEY_ALIAS,
+                KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY
+        )
+                .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+                .setDigests(KeyProperties.DIGEST_SHA256)
+                .setCertificateSubject(new X500Principal("CN=CBDC Session"))
+                .setCertificateSerialNumber(java.math.BigInteger.valueOf(now))
+                .setCertificateNotBefore(notBefore)
+                .setCertificateNotAfter(notAfter)
+                .setKeyValidityEnd(notAfter)
+                .build());
+        KeyPair sessionKey = keyPairGenerator.generateKeyPair();
+
+        SigningCertificate certificate = SigningCertificate.issue(
+                deviceKey, sessionKey.getPublic(), now, notAfter.getTime());
+
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putString(KEY_SESSION_CERT, certificate.toJson().toString())
+                .apply();
+
+        Log.d(TAG, "Session signing key certified until " + notAfter);
+        return new SessionSigningKey(sessionKey.getPrivate(), certificate);
+    }
+
     /**
      * Generate StrongBox or TEE EC KeyPair (secp256r1)
      */
@@ -164,9 +307,16 @@ public class DeviceKeyManager {
         try {
             if (keyStore.containsAlias(KEYSTORE_ALIAS)) {
                 keyStore.deleteEntry(KEYSTORE_ALIAS);
+                if (keyStore.containsAlias(SESSION_KEY_ALIAS)) {
+                    keyStore.deleteEntry(SESSION_KEY_ALIAS);
+                }
+                synchronized (this) {
+                    sessionSigningKey = null;
+                }
                 context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
                         .edit()
                         .remove(KEY_PUBLIC_KEY)
+                        .remove(KEY_SESSION_CERT)
                         .apply();
                 return true;
             }
@@ -0,0 +1,102 @@
+package com.example.cbdc.crypto;
+
+import android.util.Log;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small bounded pool of pre-generated ephemeral key pairs.
+ * Refilled on a background thread so session setup never waits on EC key generation.
+ * Each key pair is removed from the pool when taken, so it is never handed out twice.
+ */
+public class EphemeralKeyPool {
+    private static final String TAG = "EphemeralKeyPool";
+    private static final int POOL_SIZE = 4;
+
+    private static final ArrayBlockingQueue<KeyPair> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final AtomicBoolean refillRunning = new AtomicBoolean(false);
+    private static final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "EphemeralKeyPool");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    // Metrics
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong generated = new AtomicLong();
+
+    /**
+     * Start filling the pool in the background (call early, e.g. in onCreate)
+     */
+    public static void warmUp() {
+        scheduleRefill();
+    }
+
+    /**
+     * Take a fresh ephemeral key pair, generating inline only on a pool miss
+     */
+    public static KeyPair take() {
+        KeyPair keyPair = pool.poll();
+        if (keyPair != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            Log.w(TAG, "Ephemeral key pool empty, generating inline");
+            keyPair = CryptoUtil.generateX25519KeyPair();
+            generated.incrementAndGet();
+        }
+        scheduleRefill();
+        return keyPair;
+    }
+
+    private static void scheduleRefill() {
+        if (pool.remainingCapacity() == 0 || !refillRunning.compareAndSet(false, true)) {
+            return;
+        }
+        refillExecutor.execute(() -> {
+            try {
+                while (pool.remainingCapacity() > 0) {
+                    KeyPair keyPair = CryptoUtil.generateX25519KeyPair();
+                    generated.incrementAndGet();
+                    if (!pool.offer(keyPair)) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Ephemeral key refill failed", e);
+            } finally {
+                refillRunning.set(false);
+            }
+        });
+    }
+
+    public static int getAvailableCount() {
+        return pool.size();
+    }
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    public static long getGeneratedCount() {
+        return generated.get();
+    }
+
+    public static String getMetricsSummary() {
+        return "available=" + pool.size()
+                + " hits=" + hits.get()
+                + " misses=" + misses.get()
+                + " generated=" + generated.get();
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.cbdc.crypto;
+
+import java.nio.ByteBuffer;
+
+import javax.crypto.SecretKey;
+
+/**
+ * AEAD state for one payer-merchant session.
+ * Each direction has its own key and nonce base, so both sides can use a plain
+ * message counter as nonce without coordinating. Received counters must strictly
+ * increase, which also rejects replayed payloads.
+ */
+public class SessionCipher {
+    private static final int NONCE_LENGTH = 12;
+
+    private final SecretKey sendKey;
+    private final byte[] sendNonceBase;
+    private final SecretKey receiveKey;
+    private final byte[] receiveNonceBase;
+    private final byte[] resumptionSecret;
+
+    private long sendCounter = 0;
+    private long lastReceivedCounter = -1;
+
+    SessionCipher(SecretKey sendKey, byte[] sendNonceBase,
+                  SecretKey receiveKey, byte[] receiveNonceBase,
+                  byte[] resumptionSecret) {
+        this.sendKey = sendKey;
+        this.sendNonceBase = sendNonceBase;
+        this.receiveKey = receiveKey;
+        this.receiveNonceBase = receiveNonceBase;
+        this.resumptionSecret = resumptionSecret;
+    }
+
+    /**
+     * Single shared key with random nonces, as used by the legacy key exchange
+     */
+    public static SessionCipher legacy(SecretKey sessionKey) {
+        return new SessionCipher(sessionKey, null, sessionKey, null, null);
+    }
+
+    public boolean isLegacy() {
+        return sendNonceBase == null;
+    }
+
+    public synchronized byte[] encrypt(byte[] plaintext, byte[] associatedData) {
+        if (isLegacy()) {
+            return CryptoUtil.encryptAEAD(sendKey, plaintext, associatedData);
+        }
+        byte[] nonce = counterNonce(sendNonceBase, sendCounter++);
+        return CryptoUtil.encryptAEAD(sendKey, nonce, plaintext, associatedData);
+    }
+
+    public synchronized byte[] decrypt(byte[] ciphertextWithNonce, byte[] associatedData) {
+        if (isLegacy()) {
+            return CryptoUtil.decryptAEAD(receiveKey, ciphertextWithNonce, associatedData);
+        }
+        if (ciphertextWithNonce.length < NONCE_LENGTH) {
+            throw new IllegalArgumentException("Ciphertext too short");
+        }
+
+        // Recover the counter from the nonce and require it to move forward
+        long counter = 0;
+        for (int i = NONCE_LENGTH - 8; i < NONCE_LENGTH; i++) {
+            counter = (counter << 8) | ((ciphertextWithNonce[i] ^ receiveNonceBase[i]) & 0xFF);
+        }
+        for (int i = 0; i < NONCE_LENGTH - 8; i++) {
+            if (ciphertextWithNonce[i] != receiveNonceBase[i]) {
+                throw new IllegalArgumentException("Nonce does not match session");
+            }
+        }
+        if (counter <= lastReceivedCounter) {
+            throw new IllegalStateException("Replayed or reordered message");
+        }
+
+        byte[] plaintext = CryptoUtil.decryptAEAD(receiveKey, ciphertextWithNonce, associatedData);
+        lastReceivedCounter = counter;
+        return plaintext;
+    }
+
+    /**
+     * Secret for sealing into a resumption ticket. Legacy sessions derive it from the shared key.
+     */
+    public byte[] getResumptionSecret() {
+        if (resumptionSecret != null) {
+            return resumptionSecret.clone();
+        }
+        return CryptoUtil.deriveSessionKey(sendKey.getEncoded(), null, "CBDC_RESUMPTION".getBytes())
+                .getEncoded();
+    }
+
+    private static byte[] counterNonce(byte[] base, long counter) {
+        byte[] nonce = base.clone();
+        ByteBuffer counterBytes = ByteBuffer.allocate(8).putLong(counter);
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE_LENGTH - 8 + i] ^= counterBytes.get(i);
+        }
+        return nonce;
+    }
+}
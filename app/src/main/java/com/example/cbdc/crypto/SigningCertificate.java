@@ -0,0 +1,189 @@
+package com.example.cbdc.crypto;
+
+import android.util.Log;
+import com.example.cbdc.util.Base64Util;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short-lived certificate binding a fast (TEE/software) signing key to the
+ * long-lived StrongBox device key. The device key signs this certificate once,
+ * and the certified key signs per-transaction data.
+ */
+public class SigningCertificate {
+    private static final String TAG = "SigningCertificate";
+    private static final int MAX_CACHED_CERTIFICATES = 64;
+
+    // How far a signed timestamp may run ahead of our clock
+    public static final long MAX_CLOCK_SKEW_MS = 5 * 60 * 1000L; // 5 minutes
+
+    // signature (base64) -> verified certificate, so each peer certificate is checked once
+    private static final Map<String, SigningCertificate> verifiedCache = new ConcurrentHashMap<>();
+
+    private final PublicKey signingKey;
+    private final PublicKey rootKey;
+    private final long notBefore;
+    private final long notAfter;
+    private final byte[] signature;
+
+    private SigningCertificate(PublicKey signingKey, PublicKey rootKey,
+                               long notBefore, long notAfter, byte[] signature) {
+        this.signingKey = signingKey;
+        this.rootKey = rootKey;
+        this.notBefore = notBefore;
+        this.notAfter = notAfter;
+        this.signature = signature;
+    }
+
+    /**
+     * Issue a certificate for signingKey, signed by the device root key
+     */
+    public static SigningCertificate issue(KeyPair rootKey, PublicKey signingKey,
+                                           long notBefore, long notAfter) {
+        try {
+            byte[] tbs = tbsBytes(signingKey, rootKey.getPublic(), notBefore, notAfter);
+            byte[] signature = CryptoUtil.sign(rootKey.getPrivate(), tbs);
+            return new SigningCertificate(signingKey, rootKey.getPublic(), notBefore, notAfter, signature);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to issue signing certificate", e);
+            throw new RuntimeException("Certificate issuance failed", e);
+        }
+    }
+
+    public PublicKey getSigningKey() {
+        return signingKey;
+    }
+
+    public PublicKey getRootKey() {
+        return rootKey;
+    }
+
+    public long getNotBefore() {
+        return notBefore;
+    }
+
+    public long getNotAfter() {
+        return notAfter;
+    }
+
+    /**
+     * Check if certificate covers the given time
+     */
+    public boolean isValidAt(long timeMs) {
+        return timeMs >= notBefore && timeMs < notAfter;
+    }
+
+    /**
+     * Verify the root signature over this certificate
+     */
+    public boolean verifySignature() {
+        try {
+            byte[] tbs = tbsBytes(signingKey, rootKey, notBefore, notAfter);
+            return CryptoUtil.verify(rootKey, tbs, signature);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to verify signing certificate", e);
+            return false;
+        }
+    }
+
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("signing_key", Base64Util.encode(CryptoUtil.encodePublicKey(signingKey)));
+            json.put("root_key", Base64Util.encode(CryptoUtil.encodePublicKey(rootKey)));
+            json.put("not_before", notBefore);
+            json.put("not_after", notAfter);
+            json.put("signature", Base64Util.encode(signature));
+        } catch (JSONException e) {
+            // Ignore
+        }
+        return json;
+    }
+
+    public static SigningCertificate fromJson(JSONObject json) throws JSONException {
+        return new SigningCertificate(
+                CryptoUtil.decodePublicKey(Base64Util.decode(json.getString("signing_key"))),
+                CryptoUtil.decodePublicKey(Base64Util.decode(json.getString("root_key"))),
+                json.getLong("not_before"),
+                json.getLong("not_after"),
+                Base64Util.decode(json.getString("signature"))
+        );
+    }
+
+    /**
+     * Resolve the key that signed a message carrying an optional "signer_cert".
+     * Returns rootKey for legacy messages signed directly by the device key,
+     * the certified key when the certificate checks out, or null otherwise.
+     */
+    public static PublicKey resolveSigningKey(JSONObject signedMessage, PublicKey rootKey) {
+        return resolveSigningKey(signedMessage, rootKey, System.currentTimeMillis());
+    }
+
+    /**
+     * Like resolveSigningKey, but checks the certificate at the message's signed "timestamp",
+     * so a stored message can still be verified on resend after its certificate expired.
+     * The timestamp must be at most maxAgeMs old and at most MAX_CLOCK_SKEW_MS ahead of now.
+     */
+    public static PublicKey resolveSigningKeyAtTimestamp(JSONObject signedMessage, PublicKey rootKey,
+                                                         long maxAgeMs) {
+        long signedAt = signedMessage.optLong("timestamp", -1);
+        long now = System.currentTimeMillis();
+        if (signedAt < now - maxAgeMs || signedAt > now + MAX_CLOCK_SKEW_MS) {
+            Log.e(TAG, "Signed timestamp missing or out of range");
+            return null;
+        }
+        return resolveSigningKey(signedMessage, rootKey, signedAt);
+    }
+
+    private static PublicKey resolveSigningKey(JSONObject signedMessage, PublicKey rootKey, long signedAt) {
+        if (!signedMessage.has("signer_cert")) {
+            return rootKey;
+        }
+        try {
+            JSONObject certJson = signedMessage.getJSONObject("signer_cert");
+            String cacheKey = certJson.getString("signature");
+
+            SigningCertificate cert = verifiedCache.get(cacheKey);
+            if (cert == null) {
+                cert = fromJson(certJson);
+                if (!cert.verifySignature()) {
+                    Log.e(TAG, "Signing certificate signature invalid");
+                    return null;
+                }
+                if (verifiedCache.size() >= MAX_CACHED_CERTIFICATES) {
+                    verifiedCache.clear();
+                }
+                verifiedCache.put(cacheKey, cert);
+            }
+
+            if (!Arrays.equals(cert.rootKey.getEncoded(), rootKey.getEncoded())) {
+                Log.e(TAG, "Signing certificate issued by a different device key");
+                return null;
+            }
+            if (!cert.isValidAt(signedAt)) {
+                Log.e(TAG, "Signing certificate expired or not yet valid");
+                return null;
+            }
+            return cert.signingKey;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to resolve signing key", e);
+            return null;
+        }
+    }
+
+    private static byte[] tbsBytes(PublicKey signingKey, PublicKey rootKey,
+                                   long notBefore, long notAfter) throws JSONException {
+        JSONObject tbs = new JSONObject();
+        tbs.put("signing_key", Base64Util.encode(CryptoUtil.encodePublicKey(signingKey)));
+        tbs.put("root_key", Base64Util.encode(CryptoUtil.encodePublicKey(rootKey)));
+        tbs.put("not_before", notBefore);
+        tbs.put("not_after", notAfter);
+        return tbs.toString().getBytes();
+    }
+}
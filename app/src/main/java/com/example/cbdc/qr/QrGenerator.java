@@ -2,7 +2,9 @@ package com.example.cbdc.qr;
 
 import android.graphics.Bitmap;
 import android.graphics.Color;
+import com.example.cbdc.ble.Capabilities;
 import com.example.cbdc.crypto.CryptoUtil;
+import com.example.cbdc.crypto.DeviceKeyManager;
 import com.example.cbdc.util.Base64Util;
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
@@ -56,6 +58,35 @@ public class QrGenerator {
         }
     }
     
+    /**
+     * Generate QR code data signed by the certified session key instead of the device key
+     */
+    public static JSONObject generateMerchantQRWithSigningKey(String posId,
+                                                              DeviceKeyManager.SessionSigningKey signingKey,
+                                                              PublicKey ephemeralPublicKey) {
+        try {
+            JSONObject qrData = new JSONObject();
+            qrData.put("pos_id", posId);
+            qrData.put("service_id", SERVICE_ID);
+            qrData.put("ephemeral_public_key", Base64Util.encode(
+                CryptoUtil.encodePublicKey(ephemeralPublicKey)));
+            qrData.put("nonce", Base64Util.encode(CryptoUtil.generateNonce()));
+            qrData.put("timestamp", System.currentTimeMillis());
+            qrData.put("signer_cert", signingKey.getCertificate().toJson());
+            qrData.put("caps", Capabilities.LOCAL);
+            
+            String qrDataString = qrData.toString();
+            byte[] signature = signingKey.sign(qrDataString.getBytes());
+            qrData.put("signature", Base64Util.encode(signature));
+            qrData.put("merchant_public_key", Base64Util.encode(
+                CryptoUtil.encodePublicKey(signingKey.getRootPublic())));
+            
+            return qrData;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to generate merchant QR", e);
+        }
+    }
+    
     /**
      * Generate QR code bitmap from JSON data
      */
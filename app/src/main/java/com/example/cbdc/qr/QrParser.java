@@ -1,7 +1,10 @@
 package com.example.cbdc.qr;
 
 import android.util.Log;
+import com.example.cbdc.ble.Capabilities;
 import com.example.cbdc.crypto.CryptoUtil;
+import com.example.cbdc.crypto.SigningCertificate;
+import com.example.cbdc.util.EventLog;
 import com.example.cbdc.util.Base64Util;
 import com.example.cbdc.util.JsonUtil;
 import org.json.JSONException;
@@ -25,9 +28,6 @@ public class QrParser {
             // Trim whitespace
             qrString = qrString.trim();
             
-            // Log first 100 characters for debugging
-            Log.d(TAG, "Parsing QR string (first 100 chars): " + qrString.substring(0, Math.min(100, qrString.length())));
-            
             // Check if it starts with '{' (JSON)
             if (!qrString.startsWith("{")) {
                 Log.e(TAG, "QR string does not start with '{'. First char: " + qrString.charAt(0));
@@ -71,12 +71,24 @@ public class QrParser {
             qrDataForVerify.put("ephemeral_public_key", qrData.getString("ephemeral_public_key"));
             qrDataForVerify.put("nonce", qrData.getString("nonce"));
             qrDataForVerify.put("timestamp", qrData.getLong("timestamp"));
+            if (qrData.has("signer_cert")) {
+                qrDataForVerify.put("signer_cert", qrData.getJSONObject("signer_cert"));
+            }
+            if (qrData.has("caps")) {
+                qrDataForVerify.put("caps", qrData.getInt("caps"));
+            }
             
-            String data = qrDataForVerify.toString();
-            Log.d(TAG, "Verifying signature for data: " + data.substring(0, Math.min(100, data.length())));
+            PublicKey signerKey = SigningCertificate.resolveSigningKey(qrData, merchantKey);
+            if (signerKey == null) {
+                Log.e(TAG, "Merchant signing certificate invalid");
+                return false;
+            }
             
-            boolean isValid = CryptoUtil.verify(merchantKey, data.getBytes(), signature);
-            Log.d(TAG, "Signature verification result: " + isValid);
+            String data = qrDataForVerify.toString();
+            boolean isValid = CryptoUtil.verify(signerKey, data.getBytes(), signature);
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "Signature verification result: " + isValid);
+            }
             return isValid;
         } catch (Exception e) {
             Log.e(TAG, "Failed to verify QR signature", e);
@@ -117,6 +129,26 @@ public class QrParser {
         }
     }
     
+    /**
+     * Extract the merchant's protocol capabilities; QR codes from older merchants have none
+     */
+    public static int extractCapabilities(JSONObject qrData) {
+        return qrData.optInt("caps", Capabilities.NONE);
+    }
+    
+    /**
+     * Extract the merchant's identity key, whose fingerprint it advertises in its endpoint info
+     */
+    public static PublicKey extractMerchantPublicKey(JSONObject qrData) {
+        try {
+            String keyBase64 = qrData.getString("merchant_public_key");
+            return CryptoUtil.decodePublicKey(Base64Util.decode(keyBase64));
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to extract merchant public key", e);
+            return null;
+        }
+    }
+    
     /**
      * Extract ephemeral public key from QR data
      */
@@ -6,16 +6,21 @@ import android.util.Log;
 import com.example.cbdc.crypto.CryptoUtil;
 import com.example.cbdc.crypto.DeviceKeyManager;
 import com.example.cbdc.util.Base64Util;
+import com.example.cbdc.util.EventLog;
+import com.example.cbdc.util.PaymentTrace;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
+/**
+ * Token wallet persisted in SharedPreferences. Writes are read-modify-write on one
+ * JSON array, so they are synchronized for merchants serving several payers at once.
+ */
 public class TokenManager {
     private static final String TAG = "TokenManager";
     private static final String PREFS_NAME = "cbdc_tokens";
@@ -25,19 +30,31 @@ public class TokenManager {
     private static final double INITIAL_BALANCE_TARGET = 2500.0;
     private static final double BALANCE_TOLERANCE = 0.01;
 
-    private final Context context;
     private final DeviceKeyManager deviceKeyManager;
     private SharedPreferences prefs;
 
+    /**
+     * State written in the same commit as a wallet change, so neither lands without the other
+     */
+    public interface SameCommit {
+        void writeTo(SharedPreferences.Editor editor);
+    }
+
     public TokenManager(Context context, DeviceKeyManager deviceKeyManager) {
-        this.context = context;
+        this(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE), deviceKeyManager);
+    }
+
+    /**
+     * Wallet in the given preferences, e.g. in-memory ones in tests
+     */
+    public TokenManager(SharedPreferences prefs, DeviceKeyManager deviceKeyManager) {
         this.deviceKeyManager = deviceKeyManager;
-        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.prefs = prefs;
     }
 
     public Token issueToken(double amount, String issuerId) {
         try {
-            KeyPair deviceKey = deviceKeyManager.getOrCreateDeviceKey();
+            DeviceKeyManager.SessionSigningKey signingKey = deviceKeyManager.getSessionSigningKey();
 
             String tokenSerial = UUID.randomUUID().toString();
             long timestamp = System.currentTimeMillis();
@@ -48,10 +65,11 @@ public class TokenManager {
             tokenData.put("issuer_id", issuerId);
             tokenData.put("timestamp", timestamp);
             tokenData.put("device_public_key", Base64Util.encode(
-                CryptoUtil.encodePublicKey(deviceKey.getPublic())));
+                CryptoUtil.encodePublicKey(signingKey.getRootPublic())));
+            tokenData.put("signer_cert", signingKey.getCertificate().toJson());
 
             String tokenJson = tokenData.toString();
-            byte[] signature = CryptoUtil.sign(deviceKey.getPrivate(), tokenJson.getBytes());
+            byte[] signature = signingKey.sign(tokenJson.getBytes());
             tokenData.put("signature", Base64Util.encode(signature));
 
             Token token = new Token(tokenData);
@@ -72,8 +90,7 @@ public class TokenManager {
             JSONArray tokenArray = new JSONArray(tokensJson);
 
             for (int i = 0; i < tokenArray.length(); i++) {
-                JSONObject tokenObj = tokenArray.getJSONObject(i);
-                tokens.add(new Token(tokenObj));
+                tokens.add(fromStored(tokenArray.getJSONObject(i)));
             }
         } catch (Exception e) {
             Log.e(TAG, "Failed to load tokens", e);
@@ -82,9 +99,16 @@ public class TokenManager {
     }
 
     public List<Token> getTokensForAmount(double amount) {
-        Log.d(TAG, "Attempting to find tokens for amount: " + amount);
+        try (PaymentTrace.Span ignored = PaymentTrace.section(PaymentTrace.Phase.TOKEN_SELECTION)) {
+            return selectTokens(amount);
+        }
+    }
+
+    private List<Token> selectTokens(double amount) {
         List<Token> allTokens = getAllTokens();
-        Log.d(TAG, "Available tokens: " + allTokens.stream().map(Token::getAmount).collect(Collectors.toList()));
+        if (EventLog.VERBOSE) {
+            Log.d(TAG, "Selecting Rs " + amount + " from " + allTokens.size() + " tokens");
+        }
 
         Collections.sort(allTokens, (t1, t2) -> Double.compare(t2.getAmount(), t1.getAmount()));
 
@@ -99,13 +123,12 @@ public class TokenManager {
         }
 
         if (Math.abs(currentTotal - amount) > 0.001) {
+            EventLog.record(EventLog.Event.TOKENS_UNAVAILABLE, Math.round(amount), Math.round(currentTotal));
             Log.e(TAG, "Could not make exact amount. Wanted: " + amount + ", but could only make: " + currentTotal);
-            Log.d(TAG, "Selected tokens for failed attempt: " + selectedTokens.stream().map(Token::getAmount).collect(Collectors.toList()));
             return null; // Cannot make exact amount
         }
 
-        Log.d(TAG, "Successfully found tokens for amount: " + amount);
-        Log.d(TAG, "Selected tokens: " + selectedTokens.stream().map(Token::getAmount).collect(Collectors.toList()));
+        EventLog.record(EventLog.Event.TOKENS_SELECTED, selectedTokens.size(), Math.round(amount));
         return selectedTokens;
     }
 
@@ -161,6 +184,20 @@ public class TokenManager {
         mintTestTokens(true);
     }
 
+    /**
+     * Inverse of Token.toJson(): token data under "token", optional "chain_proof"
+     */
+    private static Token fromStored(JSONObject stored) throws JSONException {
+        if (!stored.has("token")) {
+            return new Token(stored);
+        }
+        Token token = new Token(stored.getJSONObject("token"));
+        if (stored.has("chain_proof")) {
+            token.setChainProof(ChainProof.fromJson(stored.getJSONObject("chain_proof")));
+        }
+        return token;
+    }
+
     public Token getTokenBySerial(String serial) {
         List<Token> tokens = getAllTokens();
         for (Token token : tokens) {
@@ -171,7 +208,7 @@ public class TokenManager {
         return null;
     }
 
-    public void saveToken(Token token) {
+    public synchronized void saveToken(Token token) {
         try {
             List<Token> tokens = getAllTokens();
             tokens.removeIf(t -> t.getSerial().equals(token.getSerial()));
@@ -188,7 +225,7 @@ public class TokenManager {
         }
     }
 
-    public boolean deleteToken(String serial) {
+    public synchronized boolean deleteToken(String serial) {
         try {
             List<Token> tokens = getAllTokens();
             boolean removed = tokens.removeIf(t -> t.getSerial().equals(serial));
@@ -208,7 +245,7 @@ public class TokenManager {
         }
     }
 
-    public long getNextCounter() {
+    public synchronized long getNextCounter() {
         long counter = prefs.getLong(KEY_COUNTER, 0);
         prefs.edit().putLong(KEY_COUNTER, counter + 1).apply();
         return counter + 1;
@@ -223,14 +260,58 @@ public class TokenManager {
         return balance;
     }
 
-    public void addReceivedToken(JSONObject tokenData, ChainProof chainProof) {
+    public synchronized void addReceivedToken(JSONObject tokenData, ChainProof chainProof) {
         try {
             Token token = new Token(tokenData);
             token.setChainProof(chainProof);
             saveToken(token);
-            Log.d(TAG, "Added received token: " + token.getSerial());
+            if (EventLog.VERBOSE) {
+                Log.d(TAG, "Added received token: " + token.getSerial());
+            }
         } catch (Exception e) {
             Log.e(TAG, "Failed to add received token", e);
         }
     }
+
+    /**
+     * Wallet storage, for state that must commit together with the tokens (see SameCommit)
+     */
+    public SharedPreferences getPreferences() {
+        return prefs;
+    }
+
+    /**
+     * Store a batch of received tokens in a single write, so either all or none are saved
+     */
+    public void addReceivedTokens(List<Token> received) {
+        addReceivedTokens(received, null);
+    }
+
+    /**
+     * Store a batch of received tokens and sameCommit's state in one write. Tokens are
+     * keyed by serial, so storing the same batch again does not add anything.
+     */
+    public synchronized void addReceivedTokens(List<Token> received, SameCommit sameCommit) {
+        List<Token> tokens = getAllTokens();
+        for (Token token : received) {
+            tokens.removeIf(t -> t.getSerial().equals(token.getSerial()));
+            tokens.add(token);
+        }
+
+        JSONArray tokenArray = new JSONArray();
+        for (Token t : tokens) {
+            tokenArray.put(t.toJson());
+        }
+
+        SharedPreferences.Editor editor = prefs.edit().putString(KEY_TOKENS, tokenArray.toString());
+        if (sameCommit != null) {
+            sameCommit.writeTo(editor);
+        }
+        if (!editor.commit()) {
+            throw new RuntimeException("Token batch storage failed");
+        }
+        if (EventLog.VERBOSE) {
+            Log.d(TAG, "Added " + received.size() + " received tokens");
+        }
+    }
 }
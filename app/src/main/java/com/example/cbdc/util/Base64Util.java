@@ -1,23 +1,27 @@
 package com.example.cbdc.util;
 
-import android.util.Base64;
+import java.util.Base64;
 
+/**
+ * java.util.Base64 (API 26+) rather than android.util.Base64, so code using it also runs
+ * in JVM unit tests
+ */
 public class Base64Util {
     
     public static String encode(byte[] data) {
-        return Base64.encodeToString(data, Base64.NO_WRAP | Base64.URL_SAFE);
+        return Base64.getUrlEncoder().encodeToString(data);
     }
     
     public static byte[] decode(String encoded) {
-        return Base64.decode(encoded, Base64.NO_WRAP | Base64.URL_SAFE);
+        return Base64.getUrlDecoder().decode(encoded);
     }
     
     public static String encodeStandard(byte[] data) {
-        return Base64.encodeToString(data, Base64.NO_WRAP);
+        return Base64.getEncoder().encodeToString(data);
     }
     
     public static byte[] decodeStandard(String encoded) {
-        return Base64.decode(encoded, Base64.NO_WRAP);
+        return Base64.getDecoder().decode(encoded);
     }
 }
 
@@ -78,6 +78,18 @@ public class BluetoothHelper {
         return missingCount == 0;
     }
 
+    /**
+     * Check if Nearby may upgrade connections to Wi-Fi: NEARBY_WIFI_DEVICES on Android 13+,
+     * location before that. Without it connections stay on Bluetooth.
+     */
+    public static boolean hasWifiPermission(Context context) {
+        String permission = Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                ? Manifest.permission.NEARBY_WIFI_DEVICES
+                : Manifest.permission.ACCESS_FINE_LOCATION;
+        return ContextCompat.checkSelfPermission(context, permission)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
     /**
      * Request all permissions
      */
@@ -0,0 +1,120 @@
+package com.example.cbdc.util;
+
+import com.example.cbdc.BuildConfig;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Structured event log for the payment hot paths, replacing eagerly concatenated Log lines.
+ * Each event is an event code plus up to two numeric arguments, written into a preallocated
+ * ring buffer with a few atomic stores: no strings, no allocation, no locks. Events are
+ * rendered to text only when someone asks (debug screen, metrics dump). Identifiers such
+ * as endpoint ids go in as id() hashes.
+ * Free-form text logging stays available behind VERBOSE, which is false in release builds,
+ * so `if (EventLog.VERBOSE) Log.d(...)` compiles out of them entirely.
+ */
+public final class EventLog {
+    public static final boolean VERBOSE = BuildConfig.DEBUG;
+
+    public enum Event {
+        // Payer
+        QR_DETECTED("QR code detected, %d chars"),
+        QR_VERIFIED("QR verified, %d chars"),
+        DISCOVERY_STARTED("Discovery started (low power %d)"),
+        ENDPOINT_FOUND("Endpoint %08x found (merchant record %d)"),
+        CONNECTING("Connecting to endpoint %08x"),
+        CONNECTED("Connected to endpoint %08x"),
+        DISCONNECTED("Disconnected from endpoint %08x"),
+        SESSION_READY("Session ready with %08x (0=ECDH 1=0-RTT 2=resumed: %d)"),
+        TOKENS_SELECTED("Selected %d tokens for Rs %d"),
+        TOKENS_UNAVAILABLE("Cannot make Rs %d, closest Rs %d"),
+        PAYMENT_SENT("Payment sent: %d tokens, %d bytes"),
+        TOKENS_DELETED("Deleted %d sent tokens from wallet"),
+        ACCEPT_RECEIVED("ACCEPT received, %d transfers still awaited"),
+        // Merchant
+        ADVERTISING_STARTED("Advertising, %d byte endpoint info"),
+        PAYER_CONNECTED("Payer %08x connected, %d sessions active"),
+        PAYER_DISCONNECTED("Payer %08x disconnected"),
+        PAYER_SESSION_READY("Session ready with payer %08x (0=ECDH 1=0-RTT 2=resumed: %d)"),
+        FRAME_RECEIVED("Frame %d from payer %08x"),
+        PAYMENT_PARSED("Payment with %d tokens from payer %08x"),
+        TRANSFERS_VERIFIED("%d transfers verified for payer %08x"),
+        TRANSFER_REPLAYED("Duplicate transfer from payer %08x answered with stored ACCEPT"),
+        TOKENS_STORED("%d tokens stored"),
+        ACCEPT_SENT("ACCEPT sent to payer %08x"),
+        PAYMENT_COMPLETED("Payment completed: Rs %d");
+
+        final String format;
+
+        Event(String format) {
+            this.format = format;
+        }
+    }
+
+    // Ring of CAPACITY slots, SLOT_LONGS longs each: [stamp][time][event][arg0][arg1].
+    // stamp is 0 while a slot is written and sequence + 1 once it is complete.
+    private static final int CAPACITY = 1024; // power of two
+    private static final int SLOT_LONGS = 5;
+    private static final AtomicLongArray slots = new AtomicLongArray(CAPACITY * SLOT_LONGS);
+    private static final AtomicLong nextSequence = new AtomicLong();
+
+    private EventLog() {
+    }
+
+    public static void record(Event event) {
+        record(event, 0, 0);
+    }
+
+    public static void record(Event event, long arg0) {
+        record(event, arg0, 0);
+    }
+
+    public static void record(Event event, long arg0, long arg1) {
+        long sequence = nextSequence.getAndIncrement();
+        int base = (int) (sequence & (CAPACITY - 1)) * SLOT_LONGS;
+        slots.set(base, 0);
+        slots.set(base + 1, System.currentTimeMillis());
+        slots.set(base + 2, event.ordinal());
+        slots.set(base + 3, arg0);
+        slots.set(base + 4, arg1);
+        slots.set(base, sequence + 1);
+    }
+
+    /**
+     * Short stable id for a string identifier, rendered as 8 hex digits
+     */
+    public static long id(String value) {
+        return value != null ? value.hashCode() & 0xffffffffL : 0;
+    }
+
+    /**
+     * Render the retained events, oldest first; slots being overwritten are skipped
+     */
+    public static String render() {
+        Event[] events = Event.values();
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        StringBuilder out = new StringBuilder();
+        long end = nextSequence.get();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            int base = (int) (sequence & (CAPACITY - 1)) * SLOT_LONGS;
+            if (slots.get(base) != sequence + 1) {
+                continue;
+            }
+            long millis = slots.get(base + 1);
+            int ordinal = (int) slots.get(base + 2);
+            long arg0 = slots.get(base + 3);
+            long arg1 = slots.get(base + 4);
+            if (slots.get(base) != sequence + 1 || ordinal < 0 || ordinal >= events.length) {
+                continue;
+            }
+            Event event = events[ordinal];
+            out.append(time.format(new Date(millis))).append(' ')
+                    .append(String.format(Locale.US, event.format, arg0, arg1)).append('\n');
+        }
+        return out.length() > 0 ? out.toString() : "No events recorded\n";
+    }
+}
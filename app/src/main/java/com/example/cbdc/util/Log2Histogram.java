@@ -0,0 +1,101 @@
+package com.example.cbdc.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with power-of-two buckets: bucket i counts values in
+ * [2^(i-1), 2^i), bucket 0 counts zero. Percentiles report the bucket's upper bound,
+ * capped at the largest value seen, so they are within 2x of the true value.
+ */
+public class Log2Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until max is at least value
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMean() {
+        long total = count.get();
+        return total == 0 ? 0 : sum.get() / total;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long percentile(double fraction) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Non-empty buckets as "upperBound:count" pairs
+     */
+    public String buckets() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = counts.get(i);
+            if (bucketCount > 0) {
+                out.append(upperBound(i)).append(':').append(bucketCount).append(' ');
+            }
+        }
+        return out.toString().trim();
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == 0 ? 0 : (1L << bucket) - 1;
+    }
+
+    @Override
+    public String toString() {
+        long total = count.get();
+        if (total == 0) {
+            return "n=0";
+        }
+        return "n=" + total
+                + " avg=" + getMean()
+                + " p50=" + percentile(0.5)
+                + " p90=" + percentile(0.9)
+                + " p99=" + percentile(0.99)
+                + " max=" + max.get();
+    }
+}
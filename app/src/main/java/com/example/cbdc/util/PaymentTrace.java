@@ -0,0 +1,145 @@
+package com.example.cbdc.util;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Named spans around each phase of a payment, on both the payer and the merchant.
+ * Every span is an android.os.Trace section, so phases line up with radio and CPU
+ * activity in a Perfetto or systrace capture, and its duration goes into a per-phase
+ * histogram so p50/p99 per phase can be read after many real payments.
+ * section() is for work that starts and ends on one thread (use try-with-resources);
+ * begin() is for phases that end in a later callback, possibly on another thread.
+ */
+public final class PaymentTrace {
+    private static final String TRACE_PREFIX = "CBDC ";
+
+    public enum Phase {
+        SCAN,             // camera opened -> QR decoded
+        QR_VERIFY,        // QR signature and certificate checks
+        DISCOVERY,        // waiting for the merchant endpoint
+        CONNECT,          // connection request -> connected
+        HANDSHAKE,        // key exchange round trip
+        TOKEN_SELECTION,  // picking tokens for the amount
+        SIGNING,          // signing the transfers of one payment
+        ENCRYPTION,       // compressing and encrypting one message (streams encrypt as they send)
+        SEND,             // payment handed to the transport -> delivered
+        ACCEPT,           // delivered -> merchant ACCEPT received
+        MERCHANT_VERIFY,  // merchant checks signatures, chains and amounts
+        PERSIST,          // merchant stores the tokens and the receipt
+        PAYMENT           // payer sends the payment -> ACCEPT received
+    }
+
+    // Durations in microseconds; every phase has one, so the map is never modified
+    private static final Map<Phase, Log2Histogram> histograms = new EnumMap<>(Phase.class);
+    private static final AtomicInteger nextCookie = new AtomicInteger();
+
+    static {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new Log2Histogram());
+        }
+    }
+
+    private PaymentTrace() {
+    }
+
+    /**
+     * One timed phase. end() records it, abandon() drops it (e.g. the payment failed);
+     * either closes the trace section, and only the first call counts.
+     */
+    public static class Span implements AutoCloseable {
+        private final Phase phase;
+        private final int cookie; // -1 for a synchronous section
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        private Span(Phase phase, int cookie) {
+            this.phase = phase;
+            this.cookie = cookie;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public void end() {
+            if (finish()) {
+                histograms.get(phase).record((System.nanoTime() - startNanos) / 1000);
+            }
+        }
+
+        public void abandon() {
+            finish();
+        }
+
+        @Override
+        public void close() {
+            end();
+        }
+
+        private boolean finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            if (cookie < 0) {
+                Trace.endSection();
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                Trace.endAsyncSection(TRACE_PREFIX + phase, cookie);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Synchronous section: must be closed on the thread that opened it, innermost first
+     */
+    public static Span section(Phase phase) {
+        Trace.beginSection(TRACE_PREFIX + phase);
+        return new Span(phase, -1);
+    }
+
+    /**
+     * Asynchronous span that may end on any thread. Async trace sections need API 29;
+     * on older devices only the histogram is kept.
+     */
+    public static Span begin(Phase phase) {
+        int cookie = nextCookie.incrementAndGet() & Integer.MAX_VALUE;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(TRACE_PREFIX + phase, cookie);
+        }
+        return new Span(phase, cookie);
+    }
+
+    public static Log2Histogram getHistogram(Phase phase) {
+        return histograms.get(phase);
+    }
+
+    public static void reset() {
+        for (Log2Histogram histogram : histograms.values()) {
+            histogram.clear();
+        }
+    }
+
+    /**
+     * One line per phase that has samples, in milliseconds
+     */
+    public static String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            Log2Histogram histogram = histograms.get(phase);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            report.append(String.format(Locale.US, "%-16s n=%d p50=%.1fms p99=%.1fms max=%.1fms%n",
+                    phase, histogram.getCount(), histogram.percentile(0.5) / 1000.0,
+                    histogram.percentile(0.99) / 1000.0, histogram.getMax() / 1000.0));
+        }
+        return report.length() > 0 ? report.toString() : "No payments traced yet\n";
+    }
+}
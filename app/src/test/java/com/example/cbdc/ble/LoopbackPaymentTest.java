@@ -0,0 +1,219 @@
+package com.example.cbdc.ble;
+
+import com.example.cbdc.crypto.SoftwareKeyManager;
+import com.example.cbdc.qr.QrGenerator;
+import com.example.cbdc.qr.QrParser;
+import com.example.cbdc.token.Token;
+import com.example.cbdc.token.TokenManager;
+import com.example.cbdc.util.InMemoryPreferences;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Payer and merchant running the full payment protocol over LoopbackTransport,
+ * with software keys and in-memory wallets
+ */
+public class LoopbackPaymentTest {
+    private static final String POS_ID = "POS-LOOPBACK";
+    private static final long TIMEOUT_S = 20;
+
+    private LoopbackTransport.Network network;
+    private MerchantNearbyService merchant;
+    private TokenManager merchantWallet;
+    private SoftwareKeyManager merchantKeys;
+    private JSONObject qrData;
+
+    private final List<String> receivedSerials = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicReference<String> merchantError = new AtomicReference<>();
+
+    @Before
+    public void setUp() {
+        network = new LoopbackTransport.Network(5, 0);
+
+        merchantKeys = new SoftwareKeyManager();
+        merchantWallet = new TokenManager(new InMemoryPreferences(), merchantKeys);
+        merchant = new MerchantNearbyService();
+        merchant.setTransport(network.createTransport());
+        merchant.initialize(POS_ID, merchantKeys, merchantWallet);
+        merchant.setCallback(new MerchantNearbyService.MerchantCallback() {
+            @Override
+            public void onPaymentReceived(String endpointId, String tokenSerial, double amount) {
+                receivedSerials.add(tokenSerial);
+            }
+
+            @Override
+            public void onError(String endpointId, String error) {
+                merchantError.compareAndSet(null, error);
+            }
+
+            @Override
+            public void onClientConnected(String endpointId) {
+            }
+
+            @Override
+            public void onClientDisconnected(String endpointId) {
+            }
+        });
+        merchant.startAdvertising();
+
+        qrData = QrGenerator.generateMerchantQRWithSigningKey(POS_ID,
+                merchantKeys.getSessionSigningKey(), merchant.getEphemeralKeyPair().getPublic());
+        assertTrue(QrParser.verifyQRSignature(qrData));
+    }
+
+    @After
+    public void tearDown() {
+        merchant.onDestroy();
+        network.shutdown();
+    }
+
+    @Test
+    public void paymentIsAcceptedAndStoredByMerchant() throws Exception {
+        Payer payer = new Payer(new InMemoryPreferences());
+        List<Token> tokens = new ArrayList<>();
+        tokens.add(payer.wallet.issueToken(100, "TEST_ISSUER"));
+        tokens.add(payer.wallet.issueToken(50, "TEST_ISSUER"));
+        tokens.add(payer.wallet.issueToken(20, "TEST_ISSUER"));
+
+        payer.connect();
+        assertTrue("payer did not connect", payer.connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertNull(payer.error.get());
+
+        assertTrue(payer.client.sendTokenBatch(tokens, POS_ID));
+        for (Token token : tokens) {
+            payer.wallet.deleteToken(token.getSerial());
+        }
+
+        assertTrue("payment not accepted", payer.accepted.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertNull(payer.error.get());
+        assertNull(merchantError.get());
+
+        assertEquals(3, receivedSerials.size());
+        for (Token token : tokens) {
+            assertNotNull(merchantWallet.getTokenBySerial(token.getSerial()));
+        }
+        assertEquals(170.0, merchantWallet.getBalance(), 0.001);
+        assertEquals(0.0, payer.wallet.getBalance(), 0.001);
+
+        payer.client.disconnect();
+    }
+
+    @Test
+    public void bytesMessageSentBehindStreamIsNotDropped() throws Exception {
+        // An unacknowledged payment in the outbox, too large for one bytes payload
+        InMemoryPreferences outboxPrefs = new InMemoryPreferences();
+        Payer earlier = new Payer(outboxPrefs);
+        List<Token> large = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            large.add(earlier.wallet.issueToken(1, "TEST_ISSUER"));
+        }
+        earlier.client.setMerchantCapabilities(QrParser.extractCapabilities(qrData));
+        assertTrue(earlier.client.sendTokenBatch(large, POS_ID));
+        earlier.client.disconnect();
+
+        List<PaymentOutbox.Entry> pending = new PaymentOutbox(outboxPrefs).pending(POS_ID);
+        assertEquals(1, pending.size());
+        assertTrue(MessageStream.needsStream(PayloadCompression.compress(pending.get(0).plaintext).length));
+
+        // The next session resends it as a stream, then sends the queued payment as bytes
+        Payer payer = new Payer(outboxPrefs);
+        List<Token> small = Collections.singletonList(payer.wallet.issueToken(5, "TEST_ISSUER"));
+        payer.client.setMerchantCapabilities(QrParser.extractCapabilities(qrData));
+        assertTrue(payer.client.sendTokenBatch(small, POS_ID));
+        payer.connect();
+        assertTrue("payer did not connect", payer.connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue("queued payment not accepted", payer.accepted.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_S);
+        while (!payer.outbox.pending(POS_ID).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue("resent payment not accepted", payer.outbox.pending(POS_ID).isEmpty());
+        assertNull(payer.error.get());
+        assertNull(merchantError.get());
+        assertEquals(large.size() + small.size(), receivedSerials.size());
+        assertEquals(305.0, merchantWallet.getBalance(), 0.001);
+
+        payer.client.disconnect();
+    }
+
+    /**
+     * Payer device: its own keys and wallet, an outbox in the given storage, and a client
+     * that connects to the merchant as soon as discovery finds it
+     */
+    private class Payer implements PayerNearbyClient.PayerCallback {
+        final TokenManager wallet;
+        final PaymentOutbox outbox;
+        final PayerNearbyClient client;
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch accepted = new CountDownLatch(1);
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        Payer(InMemoryPreferences outboxPrefs) {
+            SoftwareKeyManager keys = new SoftwareKeyManager();
+            wallet = new TokenManager(new InMemoryPreferences(), keys);
+            outbox = new PaymentOutbox(outboxPrefs);
+            client = new PayerNearbyClient(keys, wallet, this, network.createTransport(), outbox);
+        }
+
+        void connect() {
+            client.setMerchantCapabilities(QrParser.extractCapabilities(qrData));
+            client.setMerchant(QrParser.extractPosId(qrData), QrParser.extractMerchantPublicKey(qrData));
+            client.enableZeroRtt(QrParser.extractEphemeralPublicKey(qrData));
+            client.awaitMerchant();
+        }
+
+        @Override
+        public void onPaymentSent() {
+        }
+
+        @Override
+        public void onTransferProgress(long bytesSent, long totalBytes) {
+        }
+
+        @Override
+        public void onPaymentAccepted(JSONObject acceptReceipt) {
+            accepted.countDown();
+        }
+
+        @Override
+        public void onError(String error) {
+            this.error.compareAndSet(null, error);
+            connected.countDown();
+            accepted.countDown();
+        }
+
+        @Override
+        public void onConnected() {
+            connected.countDown();
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onEndpointDiscovered(String endpointId, String endpointName, String serviceId) {
+            client.connectToEndpoint(endpointId, endpointName);
+        }
+
+        @Override
+        public void onEndpointLost(String endpointId) {
+        }
+    }
+}
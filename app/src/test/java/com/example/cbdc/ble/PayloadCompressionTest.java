@@ -0,0 +1,90 @@
+package com.example.cbdc.ble;
+
+import com.example.cbdc.crypto.SoftwareKeyManager;
+import com.example.cbdc.token.Token;
+import com.example.cbdc.token.TokenManager;
+import com.example.cbdc.util.InMemoryPreferences;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Preset-dictionary Deflate over TOKEN_BATCH bodies signed the way the payer signs them
+ */
+public class PayloadCompressionTest {
+    private static final String POS_ID = "POS-COMPRESSION";
+
+    @Test
+    public void tokenBatchRoundTrips() {
+        for (int tokenCount : new int[] {1, 5, 30}) {
+            byte[] body = tokenBatch(tokenCount);
+            byte[] compressed = PayloadCompression.compress(body);
+            assertNotNull("batch of " + tokenCount + " not compressed", compressed);
+            assertArrayEquals(body, PayloadCompression.decompress(compressed));
+        }
+    }
+
+    @Test
+    public void dictionaryImprovesTokenBatchRatio() {
+        List<byte[]> samples = Arrays.asList(tokenBatch(1), tokenBatch(5), tokenBatch(30));
+        PayloadCompression.BenchmarkResult result = PayloadCompression.benchmark(samples, 3);
+
+        assertEquals(3, result.samples);
+        assertEquals(0, result.skipped);
+        assertTrue("dictionary did not beat plain Deflate: " + result,
+                result.dictionaryBytes < result.plainDeflateBytes);
+        double ratio = (double) result.dictionaryBytes / result.originalBytes;
+        assertTrue("compression ratio " + ratio + " above 0.25", ratio < 0.25);
+    }
+
+    @Test
+    public void smallBodyIsNotCompressed() {
+        byte[] body = "{\"type\":\"ACCEPT\"}".getBytes(StandardCharsets.UTF_8);
+        assertNull(PayloadCompression.compress(body));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedBodyIsRejected() {
+        byte[] compressed = PayloadCompression.compress(tokenBatch(5));
+        PayloadCompression.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    /**
+     * TOKEN_BATCH body as queued by the payer for tokenCount freshly issued tokens
+     */
+    private static byte[] tokenBatch(int tokenCount) {
+        SoftwareKeyManager keys = new SoftwareKeyManager();
+        TokenManager wallet = new TokenManager(new InMemoryPreferences(), keys);
+        List<Token> tokens = new ArrayList<>();
+        for (int i = 0; i < tokenCount; i++) {
+            tokens.add(wallet.issueToken(10 * (i + 1), "TEST_ISSUER"));
+        }
+
+        LoopbackTransport.Network network = new LoopbackTransport.Network(0, 0);
+        PaymentOutbox outbox = new PaymentOutbox(new InMemoryPreferences());
+        try {
+            PayerNearbyClient client = new PayerNearbyClient(keys, wallet, null,
+                    network.createTransport(), outbox);
+            client.setMerchantCapabilities(Capabilities.LOCAL);
+            // Not connected, so the payment is only signed and written to the outbox
+            assertTrue(client.sendTokenBatch(tokens, POS_ID));
+        } finally {
+            network.shutdown();
+        }
+
+        List<PaymentOutbox.Entry> pending = outbox.pending(POS_ID);
+        assertEquals(1, pending.size());
+        assertEquals(Frame.TOKEN_BATCH, pending.get(0).type);
+        return pending.get(0).plaintext;
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.cbdc.crypto;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * DeviceKeyManager with software EC keys, for running the payment flow on a plain JVM.
+ * The device key certifies one session signing key, as the StrongBox key does on a device.
+ */
+public class SoftwareKeyManager extends DeviceKeyManager {
+    private static final long SESSION_KEY_VALIDITY_MS = 24 * 60 * 60 * 1000L;
+
+    private final KeyPair deviceKey = CryptoUtil.generateX25519KeyPair();
+    private final SessionSigningKey sessionSigningKey;
+
+    public SoftwareKeyManager() {
+        long now = System.currentTimeMillis();
+        KeyPair sessionKey = CryptoUtil.generateX25519KeyPair();
+        SigningCertificate certificate = SigningCertificate.issue(
+                deviceKey, sessionKey.getPublic(), now, now + SESSION_KEY_VALIDITY_MS);
+        sessionSigningKey = new SessionSigningKey(sessionKey.getPrivate(), certificate);
+    }
+
+    @Override
+    public KeyPair getOrCreateDeviceKey() {
+        return deviceKey;
+    }
+
+    @Override
+    public synchronized SessionSigningKey getSessionSigningKey() {
+        return sessionSigningKey;
+    }
+
+    @Override
+    public PublicKey getPublicKey() {
+        return deviceKey.getPublic();
+    }
+
+    @Override
+    public PrivateKey getPrivateKey() {
+        return deviceKey.getPrivate();
+    }
+
+    @Override
+    public boolean deleteDeviceKey() {
+        return false;
+    }
+
+    @Override
+    public boolean hasDeviceKey() {
+        return true;
+    }
+}